@@ -49,6 +49,8 @@ CONSTELLATION_PORT="$( cut -d'=' -f2 <<< "$(sed -n '1p' $CONF_FILE)")"
 TENSORFLOW_SERVING="$( cut -d'=' -f2 <<< "$(sed -n '2p' $CONF_FILE)")"
 TENSORFLOW_SERVING_CONFIG="$( cut -d'=' -f2 <<< "$(sed -n '3p' $CONF_FILE)")"
 
+# Used by the in process TensorFlow backend (-backend TENSORFLOW) to find the models
+export TENSORFLOW_SERVING_CONFIG
 
 if [[ -z ${CONSTELLATION_PORT} ]] || [[ -z ${TENSORFLOW_SERVING_CONFIG} ]]; then
   echo "Config file either missing or corrupted"
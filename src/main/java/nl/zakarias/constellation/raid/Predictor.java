@@ -2,10 +2,13 @@ package nl.zakarias.constellation.raid;
 
 import ibis.constellation.*;
 import nl.zakarias.constellation.raid.configuration.Configuration;
+import nl.zakarias.constellation.raid.modelServing.AsyncInference;
+import nl.zakarias.constellation.raid.modelServing.InferenceBackends;
 import nl.zakarias.constellation.raid.utils.CrunchifyGetIPHostname;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -14,10 +17,11 @@ public class Predictor {
 
     private AbstractContext contexts;
     private CrunchifyGetIPHostname submittedNetworkInfo;
+    private Configuration.ModelName[] warmupModels;
 
     private boolean done;
 
-    Predictor(Context[] contexts, int nrExecutors) {
+    Predictor(Context[] contexts, int nrExecutors, Configuration.ModelName[] warmupModels) {
         try {
             this.contexts = new OrContext(contexts);
         } catch (IllegalArgumentException e) {
@@ -25,6 +29,7 @@ public class Predictor {
             this.contexts = contexts[0];
         }
 
+        this.warmupModels = warmupModels;
         done = false;
     }
 
@@ -73,10 +78,29 @@ public class Predictor {
                 }
                 counter++;
             }
+            AsyncInference.shutdown();
+            InferenceBackends.closeAll();
             this.done = true;
         }));
     }
 
+    /**
+     * Fetch the metadata of the given models and make a first prediction with each of them, so the first Activities
+     * do not pay for loading and initializing the models. A model which cannot be warmed up is logged, not fatal.
+     */
+    private void warmup(){
+        for (Configuration.ModelName model : warmupModels) {
+            long startTime = System.nanoTime();
+            try {
+                InferenceBackends.warmup(model, Configuration.MODEL_VERSION);
+            } catch (IOException e) {
+                logger.error("Could not warm up model " + model + ": " + e.getMessage());
+                continue;
+            }
+            logger.info("Warmed up model " + model + " in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+        }
+    }
+
     /**
      * Start the {@link nl.zakarias.constellation.raid.Predictor}
      *
@@ -87,6 +111,7 @@ public class Predictor {
         submittedNetworkInfo = new CrunchifyGetIPHostname(constellation.identifier().toString());
 
         addShutdownHook(constellation);
+        warmup();
 
         logger.info("\n\nStarting Predictor("+ submittedNetworkInfo.hostname() +") with contexts: " + contexts + "\n\n");
 
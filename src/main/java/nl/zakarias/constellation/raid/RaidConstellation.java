@@ -2,10 +2,22 @@ package nl.zakarias.constellation.raid;
 
 import ibis.constellation.*;
 import nl.zakarias.constellation.raid.configuration.Configuration;
+import nl.zakarias.constellation.raid.flowControl.Pacer;
+import nl.zakarias.constellation.raid.modelServing.AsyncInference;
+import nl.zakarias.constellation.raid.modelServing.InferenceBackends;
+import nl.zakarias.constellation.raid.utils.SpoolDirectory;
 import nl.zakarias.constellation.raid.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 public class RaidConstellation {
 
     private static Logger logger = LoggerFactory.getLogger(RaidConstellation.class);
@@ -28,8 +40,21 @@ public class RaidConstellation {
                 + "[ -dataDir </source/dataset/path> ] "
                 + "[ -batchSize <int> ] "
                 + "[ -timeInterval <int> ] "
+                + "[ -rate <double> | -imageRate <double> ] "
+                + "[ -arrival [ " + Configuration.arrivalValues() + "] ] "
+                + "[ -trace </path/to/trace> ] "
                 + "[ -batchCount <int> ] "
-                + "[ -endless <boolean> ] ";
+                + "[ -endless <boolean> ] "
+                + "[ -encoded <boolean> ] "
+                + "[ -creditWindow <int> ] "
+                + "[ -watch <boolean> ] "
+                + "[ -batchWindow <int> ] "
+                + "[ -archiveDir </archive/path> ] "
+                + "[ -deleteSubmitted <boolean> ] "
+                + "[ -checkpoint </path/to/checkpoint> ] "
+                + "[ -duplicateDistance <int> ] "
+                + "[ -compress <model>,<model>,... ] "
+                + "[ -shard <modelName>:</source/dataset/path> ]... ";
     }
 
     private static String usagePredictor(){
@@ -38,7 +63,18 @@ public class RaidConstellation {
                 + "-role PREDICTOR "
                 + "-context A,B,C "
                 + "[ -nrExecutors <num> ] "
-                + "[ -context <String,String,String...>] ";
+                + "[ -context <String,String,String...>] "
+                + "[ -backend [ " + Configuration.backendValues() + "] | <MODEL>=<BACKEND>,<MODEL>=<BACKEND>... ] "
+                + "[ -maxBatchSize <int> ] "
+                + "[ -maxBatchDelay <int> ] "
+                + "[ -maxInFlight <int> ] "
+                + "[ -warmup <model>,<model>,... ] "
+                + "[ -endpoints <host>:<port>[:<grpcPort>],... ] "
+                + "[ -balancing <LEAST_OUTSTANDING|LATENCY> ] "
+                + "[ -resultCache <int> ] "
+                + "[ -maxRetries <int> ] "
+                + "[ -hedge <true|false> ] "
+                + "[ -decodeImages <true|false> ] ";
     }
 
     private static String usageTarget(){
@@ -92,8 +128,33 @@ public class RaidConstellation {
         int batchSize = Configuration.BATCH_SIZE;
         Configuration.ModelName modelName = null;
         int timeInterval = Configuration.TIME_INTERVAL; // MS
+        double rate = 0; // Batches per second
+        double imageRate = 0;
+        Configuration.Arrival arrival = null;
+        String traceFile = null;
         int batchCount = Configuration.BATCH_COUNT;
         boolean endless = Configuration.ENDLESS;
+        boolean encoded = Configuration.ENCODED_IMAGES;
+        int creditWindow = Configuration.CREDIT_WINDOW;
+        boolean watch = Configuration.WATCH_DIRECTORY;
+        int batchWindow = Configuration.BATCH_WINDOW; // MS
+        String archiveDir = null;
+        boolean deleteSubmitted = false;
+        String checkpointFile = null;
+        int duplicateDistance = Configuration.DUPLICATE_DISTANCE;
+        List<String> shardSpecs = new ArrayList<>();
+        Set<Configuration.ModelName> compressModels = new HashSet<>();
+        String backend = null;
+        int maxBatchSize = Configuration.MAX_BATCH_SIZE;
+        int maxBatchDelay = Configuration.MAX_BATCH_DELAY; // MS
+        int maxInFlight = Configuration.MAX_IN_FLIGHT;
+        Configuration.ModelName[] warmupModels = new Configuration.ModelName[0];
+        String endpoints = null;
+        Configuration.Balancing balancing = null;
+        int resultCacheSize = Configuration.RESULT_CACHE_SIZE;
+        int maxRetries = Configuration.MAX_RETRIES;
+        boolean hedging = Configuration.HEDGING;
+        boolean decodeImages = Configuration.DECODE_IMAGES;
 
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -149,6 +210,128 @@ public class RaidConstellation {
                     i++;
                     endless = args[i].toLowerCase().equals("true");
                     break;
+                case "-encoded":
+                    i++;
+                    encoded = args[i].toLowerCase().equals("true");
+                    break;
+                case "-rate":
+                    i++;
+                    rate = Double.parseDouble(args[i]);
+                    break;
+                case "-imageRate":
+                    i++;
+                    imageRate = Double.parseDouble(args[i]);
+                    break;
+                case "-arrival":
+                    i++;
+                    try {
+                        arrival = Configuration.Arrival.valueOf(args[i].toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        throw new Error("Invalid arrival: " + args[i] + ", must be one of: " + Configuration.arrivalValues());
+                    }
+                    break;
+                case "-trace":
+                    i++;
+                    traceFile = args[i];
+                    break;
+                case "-creditWindow":
+                    i++;
+                    creditWindow = Integer.parseInt(args[i]);
+                    break;
+                case "-watch":
+                    i++;
+                    watch = args[i].toLowerCase().equals("true");
+                    break;
+                case "-batchWindow":
+                    i++;
+                    batchWindow = Integer.parseInt(args[i]);
+                    break;
+                case "-archiveDir":
+                    i++;
+                    archiveDir = args[i];
+                    break;
+                case "-deleteSubmitted":
+                    i++;
+                    deleteSubmitted = args[i].toLowerCase().equals("true");
+                    break;
+                case "-checkpoint":
+                    i++;
+                    checkpointFile = args[i];
+                    break;
+                case "-duplicateDistance":
+                    i++;
+                    duplicateDistance = Integer.parseInt(args[i]);
+                    break;
+                case "-shard":
+                    i++;
+                    shardSpecs.add(args[i]);
+                    break;
+                case "-compress":
+                    i++;
+                    for (String compressName : args[i].split(",")) {
+                        try {
+                            compressModels.add(Configuration.ModelName.valueOf(compressName.trim().toUpperCase()));
+                        } catch (IllegalArgumentException e) {
+                            throw new Error("Invalid model name: " + compressName);
+                        }
+                    }
+                    break;
+                case "-backend":
+                    i++;
+                    backend = args[i];
+                    break;
+                case "-maxBatchSize":
+                    i++;
+                    maxBatchSize = Integer.parseInt(args[i]);
+                    break;
+                case "-maxBatchDelay":
+                    i++;
+                    maxBatchDelay = Integer.parseInt(args[i]);
+                    break;
+                case "-maxInFlight":
+                    i++;
+                    maxInFlight = Integer.parseInt(args[i]);
+                    break;
+                case "-warmup":
+                    i++;
+                    String[] warmupNames = args[i].split(",");
+                    warmupModels = new Configuration.ModelName[warmupNames.length];
+                    for (int j = 0; j < warmupNames.length; j++) {
+                        try {
+                            warmupModels[j] = Configuration.ModelName.valueOf(warmupNames[j].trim().toUpperCase());
+                        } catch (IllegalArgumentException e) {
+                            throw new Error("Invalid model name: " + warmupNames[j]);
+                        }
+                    }
+                    break;
+                case "-resultCache":
+                    i++;
+                    resultCacheSize = Integer.parseInt(args[i]);
+                    break;
+                case "-endpoints":
+                    i++;
+                    endpoints = args[i];
+                    break;
+                case "-balancing":
+                    i++;
+                    try {
+                        balancing = Configuration.Balancing.valueOf(args[i].toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        throw new Error("Invalid balancing: " + args[i] + ", must be one of: " + Configuration.balancingValues());
+                    }
+                    break;
+                case "-maxRetries":
+                    i++;
+                    maxRetries = Integer.parseInt(args[i]);
+                    break;
+                case "-hedge":
+                    i++;
+                    hedging = Boolean.parseBoolean(args[i]);
+                    break;
+                case "-decodeImages":
+                    i++;
+                    decodeImages = Boolean.parseBoolean(args[i]);
+                    break;
                 default:
                     if (role == null){
                         System.out.println("Invalid argument: " + args[i] + "\n\n" + usage());
@@ -200,16 +383,79 @@ public class RaidConstellation {
                 Source source = new Source(contexts, 10);
                 if (targetActivity == null) {
                     throw new IllegalArgumentException("Missing activity ID to send results to");
-                } if (sourceDataDir == null) {
-                    throw new IllegalArgumentException("Missing directory to retrieve predictions images from");
-                } if (modelName == null) {
-                    throw new IllegalArgumentException("Specify the name of the predictions model to use (e.g. inception)");
                 }
 
-                source.run(constellation, targetActivity, sourceDataDir, modelName, batchSize, timeInterval, batchCount, endless);
+                // -dataDir and -modelName form the first shard, every -shard adds another one
+                List<String> shardDirs = new ArrayList<>();
+                List<Configuration.ModelName> shardModels = new ArrayList<>();
+                if (sourceDataDir != null || shardSpecs.isEmpty()) {
+                    if (sourceDataDir == null) {
+                        throw new IllegalArgumentException("Missing directory to retrieve predictions images from");
+                    } if (modelName == null) {
+                        throw new IllegalArgumentException("Specify the name of the predictions model to use (e.g. inception)");
+                    }
+                    shardDirs.add(sourceDataDir);
+                    shardModels.add(modelName);
+                }
+                for (String spec : shardSpecs) {
+                    int separator = spec.indexOf(':');
+                    if (separator < 0) {
+                        throw new IllegalArgumentException("Invalid shard " + spec + ", expected <modelName>:<dataDir>");
+                    }
+                    try {
+                        shardModels.add(Configuration.ModelName.valueOf(spec.substring(0, separator).toUpperCase()));
+                    } catch (IllegalArgumentException e) {
+                        throw new Error("Invalid model name: " + spec.substring(0, separator));
+                    }
+                    shardDirs.add(spec.substring(separator + 1));
+                }
+
+                List<Source.Shard> shards = new ArrayList<>();
+                Set<String> shardNames = new HashSet<>();
+                for (int i = 0; i < shardDirs.size(); i++) {
+                    Path dataDir = Paths.get(shardDirs.get(i));
+                    String name = dataDir.getFileName() == null ? "root" : dataDir.getFileName().toString();
+                    if (!shardNames.add(name)) {
+                        name += "-" + i;
+                        shardNames.add(name);
+                    }
+
+                    // Shards of a watched directory keep their own archive and checkpoint when there are several
+                    SpoolDirectory spool = null;
+                    if (watch) {
+                        Path archive = archiveDir == null ? null : Paths.get(archiveDir);
+                        Path checkpoint = checkpointFile == null ? null : Paths.get(checkpointFile);
+                        if (shardDirs.size() > 1) {
+                            archive = archive == null ? null : archive.resolve(name);
+                            checkpoint = checkpoint == null ? null : checkpoint.resolveSibling(checkpoint.getFileName() + "." + name);
+                        }
+                        spool = new SpoolDirectory(dataDir, batchWindow, Configuration.SPOOL_SETTLE_TIME, archive,
+                                deleteSubmitted, checkpoint);
+                    }
+
+                    Pacer pacer = createPacer(rate, imageRate, arrival, traceFile, timeInterval, batchSize, endless, watch);
+                    shards.add(new Source.Shard(name, shardDirs.get(i), shardModels.get(i), pacer, spool,
+                            compressModels.contains(shardModels.get(i))));
+                }
+
+                source.run(constellation, targetActivity, shards, batchSize, batchCount, endless, encoded, creditWindow, duplicateDistance);
                 break;
             case PREDICTOR:
-                Predictor predictor = new Predictor(contexts, nrExecutors);
+                if (backend != null) {
+                    InferenceBackends.configure(backend);
+                }
+                InferenceBackends.configureBatching(maxBatchSize, maxBatchDelay);
+                InferenceBackends.configureCache(resultCacheSize);
+                if (endpoints != null) {
+                    InferenceBackends.configureEndpoints(endpoints);
+                }
+                if (balancing != null) {
+                    InferenceBackends.configureBalancing(balancing);
+                }
+                InferenceBackends.configureRequests(maxRetries, hedging);
+                InferenceBackends.configureDecoding(decodeImages);
+                AsyncInference.start(constellation, maxInFlight);
+                Predictor predictor = new Predictor(contexts, nrExecutors, warmupModels);
                 predictor.run(constellation);
                 return;
             case TARGET:
@@ -224,6 +470,26 @@ public class RaidConstellation {
         constellation.done();
     }
 
+    /**
+     * Create the pacer of a shard of the source, every shard has its own. Without a rate or trace the source waits
+     * timeInterval after every batch, or submits the files arriving in a watched directory as soon as a batch is ready
+     */
+    private static Pacer createPacer(double rate, double imageRate, Configuration.Arrival arrival, String traceFile, int timeInterval, int batchSize, boolean endless, boolean watch) throws IOException {
+        if (traceFile != null || arrival == Configuration.Arrival.TRACE) {
+            if (traceFile == null) {
+                throw new IllegalArgumentException("Missing -trace file to replay the arrivals of");
+            }
+            return Pacer.trace(Paths.get(traceFile), endless);
+        } else if (rate > 0 || imageRate > 0) {
+            double batchRate = rate > 0 ? rate : imageRate / batchSize;
+            if (arrival == null) {
+                arrival = Configuration.DEFAULT_ARRIVAL;
+            }
+            return arrival == Configuration.Arrival.POISSON ? Pacer.poisson(batchRate) : Pacer.constant(batchRate);
+        }
+        return Pacer.fixedDelay(watch ? 0 : timeInterval);
+    }
+
     public static void main(String[] args) {
         try {
             start(args);
@@ -1,6 +1,7 @@
 package nl.zakarias.constellation.raid;
 
 import nl.zakarias.constellation.raid.configuration.Configuration;
+import nl.zakarias.constellation.raid.flowControl.Credit;
 import nl.zakarias.constellation.raid.utils.CrunchifyGetIPHostname;
 
 /**
@@ -16,13 +17,17 @@ public class ResultEvent implements java.io.Serializable {
     public byte[] predictions_1D = null; // MNIST, CIFAR-10
     public byte[][] predictions_2D = null;
     public byte[][][] predictions_3D = null;
-    public float[][][][] predictions_4D = null; // Yolo
+    public float[] predictions_flat = null; // Yolo
+    public int[] predictionShape = null; // Shape of predictions_flat, the first dimension is the batch
     public byte[] correct;
     public float[] certainty;
-    public int[] imageIdentifiers;
+    public long[] imageIdentifiers; // Sequence numbers of the images at their source
+    public long[] imageHashes = null; // Hashes of the contents of the images, null if the source does not hash them
     public Configuration.ModelName modelName;
     public CrunchifyGetIPHostname host = null;
     public CrunchifyGetIPHostname src = null;
+    public Credit credit = null; // Sent back to the Source by the Target, null if the Source does not limit its batches
+    public int skippedFrames = 0; // Frames the Source dropped as near duplicates since the batch sent before this one
 
     /**
      * Constructor for results which contain only one element per predictions (e.g. a batch of MNIST classified images)
@@ -39,7 +44,7 @@ public class ResultEvent implements java.io.Serializable {
         this.certainty = certainty;
 
         // The following must be set from the outside
-        this.imageIdentifiers = new int[predictions_1D.length]; // Needs to be set from the outside
+        this.imageIdentifiers = new long[predictions_1D.length]; // Needs to be set from the outside
     }
 
     /**
@@ -57,7 +62,7 @@ public class ResultEvent implements java.io.Serializable {
         this.predictions_2D = predictions;
 
         // The following must be set from the outside
-        this.imageIdentifiers = new int[predictions.length]; // Needs to be set from the outside
+        this.imageIdentifiers = new long[predictions.length]; // Needs to be set from the outside
     }
 
     /**
@@ -75,24 +80,27 @@ public class ResultEvent implements java.io.Serializable {
         this.predictions_3D = predictions;
 
         // The following must be set from the outside
-        this.imageIdentifiers = new int[predictions.length]; // Needs to be set from the outside
+        this.imageIdentifiers = new long[predictions.length]; // Needs to be set from the outside
     }
 
     /**
-     * Constructor for results which contain a batch of 3D matrices per prediction (i.e. YOLO)
+     * Constructor for results where each prediction is a tensor (i.e. YOLO), stored flat in row major order as
+     * returned by the model
      *
      * @param modelName The model name that was used
      * @param correctClassification The correct classification (may be null)
-     * @param predictions The batch of predictions
+     * @param predictions The batch of predictions, flattened
+     * @param shape The shape of the predictions, starting with the batch dimension
      * @param certainty A list of certainties for these predictions
      */
-    public ResultEvent(Configuration.ModelName modelName, byte[] correctClassification, float[][][][] predictions, float[] certainty) {
+    public ResultEvent(Configuration.ModelName modelName, byte[] correctClassification, float[] predictions, int[] shape, float[] certainty) {
         this.modelName = modelName;
         this.correct = correctClassification;
         this.certainty = certainty;
-        this.predictions_4D = predictions;
+        this.predictions_flat = predictions;
+        this.predictionShape = shape;
 
         // The following must be set from the outside
-        this.imageIdentifiers = new int[predictions.length]; // Needs to be set from the outside
+        this.imageIdentifiers = new long[shape[0]]; // Needs to be set from the outside
     }
 }
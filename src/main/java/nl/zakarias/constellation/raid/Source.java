@@ -3,14 +3,23 @@ package nl.zakarias.constellation.raid;
 import ibis.constellation.*;
 import ibis.constellation.impl.ActivityIdentifierImpl;
 import ibis.constellation.impl.ConstellationIdentifierImpl;
+import nl.zakarias.constellation.raid.collectActivities.CollectCredits;
+import nl.zakarias.constellation.raid.flowControl.CreditWindow;
+import nl.zakarias.constellation.raid.flowControl.DuplicateFilter;
+import nl.zakarias.constellation.raid.flowControl.Pacer;
 import nl.zakarias.constellation.raid.models.ModelInterface;
+import nl.zakarias.constellation.raid.models.ShardOptions;
 import nl.zakarias.constellation.raid.configuration.Configuration;
 import nl.zakarias.constellation.raid.utils.CrunchifyGetIPHostname;
+import nl.zakarias.constellation.raid.utils.SpoolDirectory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class Source {
@@ -84,22 +93,56 @@ public class Source {
         }));
     }
 
+    /**
+     * A directory or dataset the source sends images from, with its own model and pacing. Every shard is submitted by
+     * its own thread with its own credit window, so its batches and statistics are independent of the other shards
+     */
+    static class Shard {
+        final String name;
+        final String sourceDir;
+        final Configuration.ModelName modelName;
+        final Pacer pacer;
+        final SpoolDirectory spool;
+        final boolean compress;
+
+        /**
+         * @param name Name of the shard, used in the logs and the name of its thread
+         * @param sourceDir The directory where the source images are located
+         * @param modelName The model which we wish to use for the images of this shard
+         * @param pacer Decides when each batch is sent, either after a fixed delay or following a schedule of arrivals
+         * @param spool Files arriving in the sourceDir while it is being watched, or null to only send the files in
+         *              it at the start
+         * @param compress Whether to compress the pixels of every batch before submitting it
+         */
+        Shard(String name, String sourceDir, Configuration.ModelName modelName, Pacer pacer, SpoolDirectory spool, boolean compress){
+            this.name = name;
+            this.sourceDir = sourceDir;
+            this.modelName = modelName;
+            this.pacer = pacer;
+            this.spool = spool;
+            this.compress = compress;
+        }
+    }
+
     /**
      * Start the {@link nl.zakarias.constellation.raid.Source}
      * @param constellation The {@link ibis.constellation.Constellation} instance for this process
      * @param target A string matching the {@link ibis.constellation.ActivityIdentifier} identifying the target where
      *               we want to send the result of all classifications
-     * @param sourceDir The directory where the source images are located
-     * @param modelName The model which we wish to use (must exist on the {@link Predictor} devices which steal
-     *                  Activities from this source (matching contexts)
+     * @param shards The directories or datasets to send images from, each one is submitted by its own thread. The
+     *               models must exist on the {@link Predictor} devices which steal Activities from this source
+     *               (matching contexts)
      * @param batchSize The number of images to send in each Activity
-     * @param timeInterval Time between sending images (in milliseconds)
-     * @param batchCount The number of batches to send in total, before exiting
+     * @param batchCount The number of batches to send in total by every shard, before exiting
      * @param endless Whether to keep sending batches forever or to sop after the batchCount has been reached.
+     * @param encoded Whether to send image files as they are stored (e.g. JPEG) instead of decoded pixels
+     * @param creditWindow Maximum number of batches of every shard without a result at the Target, 0 for no limit
+     * @param duplicateDistance Bits in which a frame may differ from the last frame sent of its stream to be dropped,
+     *                          negative to send all frames
      * @throws IOException Thrown if we experience problems reading the images from disc
      * @throws NoSuitableExecutorException Thrown if we experience problems submitting the activity
      */
-    void run(Constellation constellation, String target, String sourceDir, Configuration.ModelName modelName, int batchSize, int timeInterval, int batchCount, boolean endless) throws IOException, NoSuitableExecutorException {
+    void run(Constellation constellation, String target, List<Shard> shards, int batchSize, int batchCount, boolean endless, boolean encoded, int creditWindow, int duplicateDistance) throws IOException, NoSuitableExecutorException {
         submittedNetworkInfo = new CrunchifyGetIPHostname(constellation.identifier().toString());
         logger.info("\n\nStarting Source("+ submittedNetworkInfo.hostname() +") with contexts: " + this.contexts.toString() + "\n\n");
 
@@ -112,16 +155,52 @@ public class Source {
         String[] targetIdentifier = target.split(":");
         ActivityIdentifier aid = ActivityIdentifierImpl.createActivityIdentifier(new ConstellationIdentifierImpl(Integer.parseInt(targetIdentifier[0]), Integer.parseInt(targetIdentifier[1])), Integer.parseInt(targetIdentifier[2]), false);
 
-        // Could be for example MNIST or YOLO
-        ModelInterface model = Configuration.getModel(modelName);
-        if (model == null){
-            logger.error("Could not identify a valid model, options are: " + Configuration.InferenceModelEnumToString());
-            return;
+        StringBuilder modelNames = new StringBuilder();
+        for (Shard shard : shards) {
+            modelNames.append(modelNames.length() == 0 ? "" : ", ").append(shard.modelName);
         }
-        timer = constellation.getTimer("java", constellation.identifier().toString(), "Source using model: " + modelName.toString());
+        timer = constellation.getTimer("java", constellation.identifier().toString(), "Source using model: " + modelNames);
         timing = timer.start();
 
-        model.run(constellation, aid, sourceDir, this.contexts, batchSize, timeInterval, batchCount, endless);
+        // All shards share the Constellation instance and the target, each one submits from its own thread
+        List<Exception> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> submitters = new ArrayList<>();
+        for (Shard shard : shards) {
+            // Could be for example MNIST or YOLO
+            ModelInterface model = Configuration.getModel(shard.modelName);
+            if (model == null){
+                logger.error("Could not identify a valid model, options are: " + Configuration.InferenceModelEnumToString());
+                return;
+            }
+
+            Thread submitter = new Thread(() -> {
+                try {
+                    runShard(constellation, aid, shard, model, batchSize, batchCount, endless, encoded, creditWindow, duplicateDistance);
+                } catch (IOException | NoSuitableExecutorException e) {
+                    logger.error("Shard " + shard.name + " stopped: " + e.getMessage());
+                    failures.add(e);
+                }
+            }, "source-" + shard.name);
+            submitters.add(submitter);
+        }
+        if (shards.size() > 1) {
+            logger.info("Submitting " + shards.size() + " shards in parallel");
+        }
+        submitters.forEach(Thread::start);
+
+        for (Thread submitter : submitters) {
+            try {
+                submitter.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        if (!failures.isEmpty()) {
+            if (failures.get(0) instanceof NoSuitableExecutorException) {
+                throw (NoSuitableExecutorException) failures.get(0);
+            }
+            throw (IOException) failures.get(0);
+        }
 
         while (!isDone()){
             try {
@@ -133,4 +212,28 @@ public class Source {
 
         timer.stop(timing);
     }
+
+    /**
+     * Send the images of a shard, called on the thread of the shard
+     */
+    private void runShard(Constellation constellation, ActivityIdentifier aid, Shard shard, ModelInterface model, int batchSize, int batchCount, boolean endless, boolean encoded, int creditWindow, int duplicateDistance) throws IOException, NoSuitableExecutorException {
+        logger.info("Sending " + shard.sourceDir + " using model " + shard.modelName);
+
+        // The Target sends the credit of every batch back to this Activity once it has handled the result. It only
+        // runs on this node, the executors of the Source have the default context and the Activity cannot be stolen
+        CreditWindow credits = new CreditWindow(creditWindow);
+        if (credits.enabled()) {
+            credits.setCollector(constellation.submit(new CollectCredits(Context.DEFAULT, credits)));
+        }
+
+        DuplicateFilter duplicates = new DuplicateFilter(duplicateDistance);
+
+        try {
+            ShardOptions options = new ShardOptions(shard.sourceDir, batchSize, batchCount, endless, encoded, shard.compress, shard.pacer, shard.spool, credits, duplicates);
+            model.run(constellation, aid, this.contexts, options);
+        } finally {
+            shard.pacer.finish();
+            duplicates.finish();
+        }
+    }
 }
@@ -90,19 +90,38 @@ public class CollectAndProcessEvents extends Activity {
      *              index specifies which result we are currently storing in the JSON array.
      * @return JSON array with predictions
      */
-    private JsonArray getPrediction4D(ResultEvent result, int index){
+    private JsonArray getPredictionFlat(ResultEvent result, int index){
+        int size = 1;
+        for (int i = 1; i < result.predictionShape.length; i++) {
+            size *= result.predictionShape[i];
+        }
+
+        return getPredictionFlat(result, index * size, 1);
+    }
+
+    /**
+     * @param result {@link nl.zakarias.constellation.raid.ResultEvent} sent from sent from {@link nl.zakarias.constellation.raid.Predictor}
+     * @param offset Position of the first value of this (sub) array in the flat predictions
+     * @param dimension The dimension of the prediction shape to convert
+     * @return Nested JSON array with the values of the given dimension
+     */
+    private JsonArray getPredictionFlat(ResultEvent result, int offset, int dimension){
         JsonArray data = new JsonArray();
+        int length = result.predictionShape[dimension];
 
-        for (int z = 0; z < result.predictions_4D[index].length; z++) {
-            JsonArray arr = new JsonArray();
-            for (int x = 0; x < result.predictions_4D[index][z].length; x++) {
-                JsonArray arr2 = new JsonArray();
-                for (int y = 0; y < result.predictions_4D[index][z][x].length; y++) {
-                    arr2.add(result.predictions_4D[index][z][x][y]);
-                }
-                arr.add(arr2);
+        if (dimension == result.predictionShape.length - 1) {
+            for (int i = 0; i < length; i++) {
+                data.add(result.predictions_flat[offset + i]);
             }
-            data.add(arr);
+            return data;
+        }
+
+        int stride = 1;
+        for (int i = dimension + 1; i < result.predictionShape.length; i++) {
+            stride *= result.predictionShape[i];
+        }
+        for (int i = 0; i < length; i++) {
+            data.add(getPredictionFlat(result, offset + i * stride, dimension + 1));
         }
 
         return data;
@@ -130,14 +149,18 @@ public class CollectAndProcessEvents extends Activity {
 
             JsonObject item = new JsonObject();
             item.addProperty("image_id", result.imageIdentifiers[i]);
+            if (result.imageHashes != null) {
+                // As hex, JSON readers parsing numbers as doubles would lose the low bits of a 64 bit hash
+                item.addProperty("image_hash", String.format("%016x", result.imageHashes[i]));
+            }
             if (result.predictions_1D != null) {
                 item.addProperty("prediction", result.predictions_1D[i]);
             } else if (result.predictions_2D != null) {
                 item.add("prediction", getPrediction2D(result, i));
             } else if (result.predictions_3D != null) {
                 item.add("prediction", getPrediction3D(result, i));
-            } else { // 4D
-                item.add("prediction", getPrediction4D(result, i));
+            } else { // Flat tensor
+                item.add("prediction", getPredictionFlat(result, i));
             }
 
             if (result.certainty != null){
@@ -154,6 +177,7 @@ public class CollectAndProcessEvents extends Activity {
             predictions.add(item);
         }
         json.addProperty("batch_size", result.imageIdentifiers.length);
+        json.addProperty("skipped_frames", result.skippedFrames);
 
         if (Configuration.LOG_PREDICTIONS) {
             json.add("predictions", predictions);
@@ -223,6 +247,11 @@ public class CollectAndProcessEvents extends Activity {
 
         handleResult(result);
 
+        // Allow the source to submit another batch
+        if (result.credit != null) {
+            c.send(new Event(identifier(), result.credit.collector(), result.credit));
+        }
+
         count++;
 
         timer.stop(timing);
@@ -0,0 +1,57 @@
+package nl.zakarias.constellation.raid.collectActivities;
+
+import ibis.constellation.*;
+import nl.zakarias.constellation.raid.flowControl.Credit;
+import nl.zakarias.constellation.raid.flowControl.CreditWindow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This Activity is submitted from {@link nl.zakarias.constellation.raid.Source}, it collects the credits sent back by
+ * the {@link nl.zakarias.constellation.raid.Target} once it has handled the result of a batch, and returns them to the
+ * {@link CreditWindow} of the source. It cannot be stolen.
+ *
+ * The Activity will run for as long as the Source is running.
+ */
+public class CollectCredits extends Activity {
+    private static final Logger logger = LoggerFactory.getLogger(CollectCredits.class);
+
+    private static final long serialVersionUID = 1L;
+
+    private transient CreditWindow credits;
+
+    /**
+     * @param c Context matching the executors of the Source
+     * @param credits The window of the source
+     */
+    public CollectCredits(AbstractContext c, CreditWindow credits){
+        super(c, false, true);
+        this.credits = credits;
+    }
+
+    @Override
+    public int initialize(Constellation c) {
+        // Immediately start waiting for credits
+        return SUSPEND;
+    }
+
+    @Override
+    public int process(Constellation c, Event e) {
+        Credit credit = (Credit) e.getData();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Received " + credit);
+        }
+        credits.release(credit);
+        return SUSPEND;
+    }
+
+    @Override
+    public void cleanup(Constellation c) {
+        // empty
+    }
+
+    @Override
+    public String toString() {
+        return "CollectCredits(" + identifier() + ")";
+    }
+}
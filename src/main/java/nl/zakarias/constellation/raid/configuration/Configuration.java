@@ -39,11 +39,143 @@ public class Configuration {
     /** Number of of batches a source should send, if ENDLESS == true, this value is ignored */
     public static final int BATCH_COUNT = 1;
 
-    /** Time to wait between submitting images in MS (be aware of memory limitations when using low values) */
-    public static final int TIME_INTERVAL = 100;
+    /** Whether sources of image files send the encoded files (e.g. JPEG) instead of the decoded pixels */
+    public static final boolean ENCODED_IMAGES = false;
 
-    /** Threshold for how much available Java heap memory (KB) we need to upload new Activities */
-    public static final int HEAP_MEMORY_THRESHOLD = 50000; //50 MB
+    /** Whether Predictors decode and fit encoded images themselves, instead of handing the files to the model */
+    public static final boolean DECODE_IMAGES = true;
+
+    /** Whether sources send a 64 bit hash of the contents of every image along with its sequence number */
+    public static final boolean HASH_IMAGES = true;
+
+    /** Time to wait between submitting images */
+    public static final int TIME_INTERVAL = 100; // MS
+
+    /** Whether sources of image files keep submitting the files arriving in their directory */
+    public static final boolean WATCH_DIRECTORY = false;
+
+    /** Maximum time a file arriving in a watched directory waits for the rest of its batch */
+    public static final int BATCH_WINDOW = 10; // MS
+
+    /** Time the size of a file arriving in a watched directory must stay the same, unless it is a complete JPEG or PNG */
+    public static final int SPOOL_SETTLE_TIME = 200; // MS
+
+    /** Bits in which a frame may differ from the last frame sent of its stream to be dropped, negative sends all frames */
+    public static final int DUPLICATE_DISTANCE = -1;
+
+    /** Separates the stream of a frame (e.g. its camera) from the rest of the name of its file */
+    public static final String STREAM_SEPARATOR = "_";
+
+    /** How a source paced by a rate spreads its batches over time, see the argument -rate */
+    public static final Arrival DEFAULT_ARRIVAL = Arrival.CONSTANT;
+
+    /** Time a batch may be submitted after it was due without being counted as late */
+    public static final int PACING_TOLERANCE = 5; // MS
+
+    /** Time between two reports of the rate achieved by a paced source */
+    public static final int PACING_REPORT_INTERVAL = 10000; // MS
+
+    /** Maximum number of batches a source has submitted but not seen a result of, 0 disables the limit */
+    public static final int CREDIT_WINDOW = 64;
+
+    /** Number of batches a source may have outstanding before the completion rate has been measured */
+    public static final int CREDIT_WINDOW_INITIAL = 4;
+
+    /** Outstanding batches allowed for every batch completing within the lowest observed latency */
+    public static final double CREDIT_WINDOW_GAIN = 2.0;
+
+    /** Weight of the latest measurement in the moving average of the rate at which batches complete */
+    public static final double CREDIT_RATE_WEIGHT = 0.25;
+
+    /** Time after which a batch without a result is given up on, returning its credit to the source */
+    public static final int CREDIT_TIMEOUT = 60000; // MS
+
+    /** Number of threads decoding images ahead of a source of image files, 0 uses one thread per core */
+    public static final int PREFETCH_THREADS = 0;
+
+    /** Maximum number of batches a source of image files decodes ahead of submitting them */
+    public static final int PREFETCH_BATCHES = 16;
+
+    /** Scale images to the input size of the YOLO models keeping their aspect ratio, instead of cropping them */
+    public static final boolean LETTERBOX_IMAGES = true;
+
+    /** Pixel value of the padding around images which do not fill the input of the YOLO models */
+    public static final int LETTERBOX_PAD_VALUE = 128;
+
+    /** Maximum number of unused pixel buffers of each size kept for reuse by sources and Predictors */
+    public static final int BUFFER_POOL_SIZE = 32;
+
+    /** Send the pixels of stolen Activities as raw byte buffers next to the message, instead of serializing them */
+    public static final boolean BYTE_BUFFER_TRANSFER = true;
+
+    /** Fraction of the size of a batch compression must save for the batch to be sent compressed */
+    public static final double COMPRESSION_MIN_SAVING = 0.1;
+
+    /** Maximum number of persistent connections a Predictor keeps open to each TensorFlow Serving endpoint */
+    public static final int HTTP_MAX_CONNECTIONS_PER_ENDPOINT = 8;
+
+    /** Time before an unused connection to TensorFlow Serving is closed */
+    public static final int HTTP_IDLE_TIMEOUT = 30000; // MS
+
+    /** Time to wait when opening a new connection to TensorFlow Serving */
+    public static final int HTTP_CONNECT_TIMEOUT = 5000; // MS
+
+    /** Stream predict requests with chunked transfer encoding, instead of counting the body length up front */
+    public static final boolean HTTP_CHUNKED_REQUESTS = true;
+
+    /** Maximum number of images a Predictor merges into a single prediction, 1 disables batching across Activities */
+    public static final int MAX_BATCH_SIZE = 1;
+
+    /** Maximum time the first Activity of a batch waits for other Activities to join the prediction */
+    public static final int MAX_BATCH_DELAY = 5; // MS
+
+    /** Number of images of which a Predictor remembers the predictions, 0 disables the prediction cache */
+    public static final int RESULT_CACHE_SIZE = 0;
+
+    /** Maximum number of predictions in flight on a Predictor, 0 runs predictions on the executor threads */
+    public static final int MAX_IN_FLIGHT = 32;
+
+    /** Version of the models used by the Activities, 0 uses the latest version loaded by TensorFlow Serving */
+    public static final int MODEL_VERSION = 1;
+
+    /** Name of the signature used to make predictions with all models, matches tensorflow_serving */
+    public static final String SIGNATURE_NAME = "predict";
+
+    /** Name of the signature taking encoded images (DT_STRING), used for Activities carrying JPEG or PNG files */
+    public static final String ENCODED_SIGNATURE_NAME = "predict_encoded";
+
+    /** How a Predictor spreads its predictions over the endpoints given with the argument -endpoints */
+    public static final Balancing DEFAULT_BALANCING = Balancing.LEAST_OUTSTANDING;
+
+    /** Number of consecutive failed requests after which no more requests are sent to an endpoint for a while */
+    public static final int CIRCUIT_BREAKER_FAILURES = 3;
+
+    /** Time no requests are sent to a failing endpoint, doubled every time the endpoint fails again */
+    public static final int ENDPOINT_RETRY_INTERVAL = 1000; // MS
+
+    /** Maximum time no requests are sent to a failing endpoint */
+    public static final int ENDPOINT_MAX_RETRY_INTERVAL = 30000; // MS
+
+    /** Deadline of a prediction including its retries, also the time a connection waits for a response */
+    public static final int REQUEST_TIMEOUT = 10000; // MS
+
+    /** Number of times a prediction is retried when an endpoint cannot be reached or is overloaded */
+    public static final int MAX_RETRIES = 2;
+
+    /** Time to wait before the first retry of a prediction, doubled for every following retry */
+    public static final int RETRY_BACKOFF = 50; // MS
+
+    /** Send a duplicate of a prediction to another endpoint when it takes longer than most predictions */
+    public static final boolean HEDGING = false;
+
+    /** Percentile of the latency of recent predictions after which a duplicate prediction is sent */
+    public static final double HEDGE_PERCENTILE = 0.95;
+
+    /** Weight of the latest request in the moving average of the latency of an endpoint */
+    public static final double ENDPOINT_LATENCY_WEIGHT = 0.2;
+
+    /** Backend used for models without a backend selected with the argument -backend */
+    public static final Backend DEFAULT_BACKEND = Backend.REST;
 
     public enum NODE_ROLES {
         SOURCE("SOURCE"),
@@ -62,6 +194,66 @@ public class Configuration {
         }
     }
 
+    /**
+     * All available ways of making predictions, see {@link nl.zakarias.constellation.raid.modelServing.InferenceBackends}
+     */
+    public enum Backend {
+        REST("REST"),
+        GRPC("GRPC"),
+        TENSORFLOW("TENSORFLOW");
+
+        private final String name;
+
+        Backend(String s){
+            name = s;
+        }
+
+        @Override
+        public String toString() {
+            return this.name;
+        }
+    }
+
+    /**
+     * Ways of choosing a TensorFlow Serving endpoint for a prediction, see
+     * {@link nl.zakarias.constellation.raid.modelServing.BalancedBackend}
+     */
+    public enum Balancing {
+        LEAST_OUTSTANDING("LEAST_OUTSTANDING"),
+        LATENCY("LATENCY");
+
+        private final String name;
+
+        Balancing(String s){
+            name = s;
+        }
+
+        @Override
+        public String toString() {
+            return this.name;
+        }
+    }
+
+    /**
+     * Schedules of the arrival of batches at a paced source, see {@link nl.zakarias.constellation.raid.flowControl.Pacer}
+     */
+    public enum Arrival {
+        CONSTANT("CONSTANT"),
+        POISSON("POISSON"),
+        TRACE("TRACE");
+
+        private final String name;
+
+        Arrival(String s){
+            name = s;
+        }
+
+        @Override
+        public String toString() {
+            return this.name;
+        }
+    }
+
     /**
      * All available models. If manually adding a new model to tensorflow/tensorflow_serving/models/ it must be
      * added to this enum, as well as returned from {@link #getModel(ModelName) getModel}.
@@ -119,6 +311,36 @@ public class Configuration {
         return result.toString();
     }
 
+    public static String backendValues(){
+        StringBuilder result = new StringBuilder();
+
+        for (Backend backend : Backend.values()){
+            result.append(backend.toString()).append(" ");
+        }
+
+        return result.toString();
+    }
+
+    public static String balancingValues(){
+        StringBuilder result = new StringBuilder();
+
+        for (Balancing balancing : Balancing.values()){
+            result.append(balancing.toString()).append(" ");
+        }
+
+        return result.toString();
+    }
+
+    public static String arrivalValues(){
+        StringBuilder result = new StringBuilder();
+
+        for (Arrival arrival : Arrival.values()){
+            result.append(arrival.toString()).append(" ");
+        }
+
+        return result.toString();
+    }
+
     public static String InferenceModelEnumToString(){
         StringBuilder result = new StringBuilder();
 
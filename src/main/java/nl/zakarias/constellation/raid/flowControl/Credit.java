@@ -0,0 +1,41 @@
+package nl.zakarias.constellation.raid.flowControl;
+
+import ibis.constellation.ActivityIdentifier;
+
+import java.io.Serializable;
+
+/**
+ * Permission for a single batch to be in flight, taken from the {@link CreditWindow} of a source. The credit travels
+ * with the batch to the Predictor and with its result to the Target, which sends it back to the source as the data of
+ * an {@link ibis.constellation.Event}.
+ */
+public class Credit implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final ActivityIdentifier collector;
+    private final long sequence;
+
+    Credit(ActivityIdentifier collector, long sequence){
+        this.collector = collector;
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return The Activity on the source handing returned credits to its {@link CreditWindow}
+     */
+    public ActivityIdentifier collector(){
+        return collector;
+    }
+
+    /**
+     * @return Number of the batch, unique for the source
+     */
+    public long sequence(){
+        return sequence;
+    }
+
+    @Override
+    public String toString(){
+        return "Credit(" + sequence + ")";
+    }
+}
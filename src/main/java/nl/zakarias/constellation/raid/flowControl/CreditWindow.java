@@ -0,0 +1,178 @@
+package nl.zakarias.constellation.raid.flowControl;
+
+import ibis.constellation.ActivityIdentifier;
+import nl.zakarias.constellation.raid.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of batches a source has in flight. A credit is taken for every batch submitted and returned once
+ * the Target has handled its result, when there are no credits left the source waits.
+ *
+ * The size of the window follows the observed completion rate: enough batches to keep the Predictors busy for the
+ * lowest latency seen, times {@link Configuration#CREDIT_WINDOW_GAIN}. When the batches start queueing up their
+ * latency grows while the rate stays the same, so the window stops growing at about as many queued batches as are
+ * being processed. The window is only shrunk based on periods in which the source was actually held back by it, a
+ * source that submits slowly does not reduce the window it is allowed.
+ *
+ * A batch which is not acknowledged within {@link Configuration#CREDIT_TIMEOUT} (e.g. because its Predictor left) is
+ * given up on, its credit is returned and the window is halved.
+ */
+public class CreditWindow {
+    private static final Logger logger = LoggerFactory.getLogger(CreditWindow.class);
+
+    /** Shortest period over which the completion rate is measured */
+    private static final long RATE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+    /** Time after which the lowest latency is measured again, in case the Predictors became slower */
+    private static final long LATENCY_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    private final int maxWindow;
+    private final long timeout;
+    private ActivityIdentifier collector;
+
+    /** Send times of the outstanding batches by sequence number, the oldest first */
+    private final Map<Long, Long> outstanding = new LinkedHashMap<>();
+    private long nextSequence = 0;
+    private double window;
+
+    /** Batches completed per nanosecond, negative until measured */
+    private double rate = -1;
+    private long rateStart = System.nanoTime();
+    private int completed = 0;
+    /** Whether the source had to wait for a credit since rateStart */
+    private boolean limited = false;
+
+    private long minLatency = Long.MAX_VALUE;
+    private long minLatencyTime = 0;
+
+    /**
+     * @param maxWindow Maximum number of outstanding batches, 0 disables flow control
+     */
+    public CreditWindow(int maxWindow){
+        if (maxWindow < 0) {
+            throw new IllegalArgumentException("Credit window must be positive: " + maxWindow);
+        }
+        this.maxWindow = maxWindow;
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(Configuration.CREDIT_TIMEOUT);
+        this.window = Math.min(Configuration.CREDIT_WINDOW_INITIAL, maxWindow);
+    }
+
+    /**
+     * @return Whether batches need to acquire a credit
+     */
+    public boolean enabled(){
+        return maxWindow > 0;
+    }
+
+    /**
+     * @param collector The Activity receiving the returned credits, it must call {@link #release(Credit)}
+     */
+    public synchronized void setCollector(ActivityIdentifier collector){
+        this.collector = collector;
+    }
+
+    /**
+     * Wait until another batch may be submitted
+     *
+     * @return The credit to send along with the batch, or null if flow control is disabled
+     */
+    public synchronized Credit acquire(){
+        if (!enabled()) {
+            return null;
+        }
+
+        expire();
+        while (outstanding.size() >= limit()) {
+            limited = true;
+            long oldest = outstanding.values().iterator().next();
+            long wait = TimeUnit.NANOSECONDS.toMillis(oldest + timeout - System.nanoTime());
+            try {
+                wait(Math.max(wait, 1));
+            } catch (InterruptedException e) {
+                // Submit the batch anyway, the caller decides what to do on interruption
+                Thread.currentThread().interrupt();
+                break;
+            }
+            expire();
+        }
+
+        long sequence = nextSequence++;
+        outstanding.put(sequence, System.nanoTime());
+        return new Credit(collector, sequence);
+    }
+
+    /**
+     * Return the credit of a batch whose result has been handled, called once for every batch
+     */
+    public synchronized void release(Credit credit){
+        Long sent = outstanding.remove(credit.sequence());
+        if (sent == null) {
+            // Already given up on
+            return;
+        }
+
+        long now = System.nanoTime();
+        long latency = now - sent;
+        if (latency < minLatency || now - minLatencyTime > LATENCY_INTERVAL) {
+            minLatency = latency;
+            minLatencyTime = now;
+        }
+
+        completed++;
+        long elapsed = now - rateStart;
+        if (elapsed >= RATE_INTERVAL) {
+            double sample = (double) completed / elapsed;
+            rate = rate < 0 ? sample : Configuration.CREDIT_RATE_WEIGHT * sample + (1 - Configuration.CREDIT_RATE_WEIGHT) * rate;
+
+            double estimate = Math.max(1, Math.min(maxWindow, rate * minLatency * Configuration.CREDIT_WINDOW_GAIN));
+            window = limited ? estimate : Math.max(window, estimate);
+
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("Credit window %.1f, %.1f batches/s, lowest latency %d ms, %d outstanding",
+                        window, rate * TimeUnit.SECONDS.toNanos(1), TimeUnit.NANOSECONDS.toMillis(minLatency), outstanding.size()));
+            }
+
+            completed = 0;
+            rateStart = now;
+            limited = false;
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * @return Number of batches submitted but not yet acknowledged
+     */
+    public synchronized int outstanding(){
+        return outstanding.size();
+    }
+
+    /**
+     * @return Number of batches currently allowed to be outstanding
+     */
+    public synchronized int limit(){
+        return (int) Math.max(1, Math.min(maxWindow, window));
+    }
+
+    /**
+     * Give up on the batches which have been outstanding for longer than the timeout
+     */
+    private void expire(){
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Long, Long>> batches = outstanding.entrySet().iterator();
+        while (batches.hasNext()) {
+            Map.Entry<Long, Long> batch = batches.next();
+            if (now - batch.getValue() < timeout) {
+                break;
+            }
+            batches.remove();
+            window = Math.max(1, window / 2);
+            logger.warn("No result for batch " + batch.getKey() + " within " + Configuration.CREDIT_TIMEOUT + " ms, giving up on it");
+        }
+    }
+}
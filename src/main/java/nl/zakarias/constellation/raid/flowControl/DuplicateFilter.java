@@ -0,0 +1,111 @@
+package nl.zakarias.constellation.raid.flowControl;
+
+import nl.zakarias.constellation.raid.configuration.Configuration;
+import nl.zakarias.constellation.raid.utils.PerceptualHash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Drops frames which look almost the same as the last frame sent of the same stream, e.g. the frames of a fixed camera
+ * watching a scene in which nothing moves. Frames are compared by their {@link PerceptualHash}, a frame is dropped when
+ * its hash differs in at most the given number of bits from the hash of the last frame sent. Every frame is compared to
+ * a frame that was sent, so a scene changing slowly is still sent once it has drifted far enough.
+ *
+ * The stream of a frame is the part of its file name before the first {@link Configuration#STREAM_SEPARATOR} (e.g.
+ * cam3 for cam3_000172.jpg), files without one all belong to the same stream. The number of frames dropped is handed
+ * to the next batch sent, so the Target can account for them.
+ *
+ * Used by the submitting thread only, in the order in which the frames are submitted.
+ */
+public class DuplicateFilter {
+    private static final Logger logger = LoggerFactory.getLogger(DuplicateFilter.class);
+
+    private final int maxDistance;
+
+    /** Hash of the last frame sent of every stream */
+    private final Map<String, Long> lastSent = new HashMap<>();
+    /** Frames dropped since the last call to {@link #takeSkipped()} */
+    private int skipped = 0;
+
+    private long totalFrames = 0;
+    private long totalSkipped = 0;
+
+    /**
+     * @param maxDistance Largest number of differing bits for which a frame is dropped, negative disables the filter
+     */
+    public DuplicateFilter(int maxDistance){
+        if (maxDistance >= Long.SIZE) {
+            throw new IllegalArgumentException("Duplicate distance must be less than " + Long.SIZE + ": " + maxDistance);
+        }
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * @return Whether frames are compared, the perceptual hashes need not be computed otherwise
+     */
+    public boolean enabled(){
+        return maxDistance >= 0;
+    }
+
+    /**
+     * @param files The files of a batch of frames, in the order in which they are sent
+     * @param hashes The perceptual hashes of the frames
+     * @return Positions in the batch of the frames to send, in increasing order
+     */
+    public int[] filter(List<Path> files, long[] hashes){
+        int[] keep = new int[files.size()];
+        int kept = 0;
+        for (int i = 0; i < keep.length; i++) {
+            if (accept(stream(files.get(i)), hashes[i])) {
+                keep[kept++] = i;
+            }
+        }
+        return kept == keep.length ? keep : Arrays.copyOf(keep, kept);
+    }
+
+    private boolean accept(String stream, long hash){
+        totalFrames++;
+        Long last = lastSent.get(stream);
+        if (last != null && PerceptualHash.distance(last, hash) <= maxDistance) {
+            skipped++;
+            totalSkipped++;
+            return false;
+        }
+        lastSent.put(stream, hash);
+        return true;
+    }
+
+    /**
+     * @return The stream of a frame, see the description of the class
+     */
+    public static String stream(Path file){
+        String name = file.getFileName().toString();
+        int end = name.indexOf(Configuration.STREAM_SEPARATOR);
+        return end < 0 ? "" : name.substring(0, end);
+    }
+
+    /**
+     * @return Number of frames dropped since the last call, to be reported with the next batch sent
+     */
+    public int takeSkipped(){
+        int result = skipped;
+        skipped = 0;
+        return result;
+    }
+
+    /**
+     * Log the number of frames dropped, called when the source is done
+     */
+    public void finish(){
+        if (enabled() && totalFrames > 0) {
+            logger.info(String.format("Dropped %d of %d frames (%.1f%%) of %d streams as near duplicates", totalSkipped,
+                    totalFrames, 100.0 * totalSkipped / totalFrames, lastSent.size()));
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package nl.zakarias.constellation.raid.flowControl;
+
+import nl.zakarias.constellation.raid.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decides when a source submits its next batch. By default the source waits a fixed time after every batch, so the
+ * rate depends on how long reading and submitting a batch takes. A paced source instead follows a schedule of
+ * arrivals, independent of how long submitting takes (open loop): at a constant rate, as a Poisson process with a given
+ * mean rate, or replaying the times of a trace.
+ *
+ * Arrivals are due at absolute times, a batch that is submitted late does not delay the ones after it, so the rate does
+ * not drift. The source waits by parking the thread until shortly before a batch is due and spinning for the remainder,
+ * since parking alone is not precise enough for high rates. Every {@link Configuration#PACING_REPORT_INTERVAL} the
+ * achieved rate is logged, together with the number of batches submitted more than
+ * {@link Configuration#PACING_TOLERANCE} after they were due (e.g. because the credit window was full).
+ *
+ * A pacer is used by a single thread.
+ */
+public class Pacer {
+    private static final Logger logger = LoggerFactory.getLogger(Pacer.class);
+
+    /** Time before a batch is due at which the thread stops parking and spins */
+    private static final long SPIN_THRESHOLD = TimeUnit.MICROSECONDS.toNanos(200);
+
+    /**
+     * Gives the time between two arrivals
+     */
+    private interface Schedule {
+        /**
+         * @return Time until the next arrival in nanoseconds, or a negative value when there are no more arrivals
+         */
+        long next();
+    }
+
+    /** The arrivals, or null to wait a fixed delay after every batch */
+    private final Schedule schedule;
+    private final long delay;
+    /** Batches per second, 0 if not known */
+    private final double targetRate;
+    private final String description;
+    private final long tolerance;
+    private final long reportInterval;
+
+    private boolean started = false;
+    /** Time at which the current batch is due */
+    private long due;
+
+    // Statistics of the current report interval
+    private long reportStart;
+    private int batches, images, late;
+    private long maxLag;
+
+    // Statistics since the first batch
+    private long start;
+    private long totalBatches, totalImages, totalLate;
+
+    private Pacer(Schedule schedule, long delay, double targetRate, String description){
+        this.schedule = schedule;
+        this.delay = delay;
+        this.targetRate = targetRate;
+        this.description = description;
+        this.tolerance = TimeUnit.MILLISECONDS.toNanos(Configuration.PACING_TOLERANCE);
+        this.reportInterval = TimeUnit.MILLISECONDS.toNanos(Configuration.PACING_REPORT_INTERVAL);
+    }
+
+    /**
+     * @param delay Time to wait after every batch, in milliseconds
+     * @return A pacer waiting a fixed time between batches
+     */
+    public static Pacer fixedDelay(int delay){
+        return new Pacer(null, TimeUnit.MILLISECONDS.toNanos(delay), 0, "a delay of " + delay + " ms between batches");
+    }
+
+    /**
+     * @param rate Batches per second
+     * @return A pacer submitting batches at a constant rate
+     */
+    public static Pacer constant(double rate){
+        checkRate(rate);
+        long interval = Math.round(TimeUnit.SECONDS.toNanos(1) / rate);
+        return new Pacer(new Schedule() {
+            private boolean first = true;
+
+            @Override
+            public long next() {
+                if (first) {
+                    first = false;
+                    return 0;
+                }
+                return interval;
+            }
+        }, 0, rate, String.format("a constant rate of %.2f batches/s", rate));
+    }
+
+    /**
+     * @param rate Mean number of batches per second
+     * @return A pacer submitting batches as a Poisson process, with exponentially distributed times between them
+     */
+    public static Pacer poisson(double rate){
+        checkRate(rate);
+        SplittableRandom random = new SplittableRandom();
+        double mean = TimeUnit.SECONDS.toNanos(1) / rate;
+        return new Pacer(() -> Math.round(-Math.log(1 - random.nextDouble()) * mean), 0, rate,
+                String.format("Poisson arrivals at a mean rate of %.2f batches/s", rate));
+    }
+
+    /**
+     * Read a trace of arrivals: one arrival per line, its time in seconds as the first value of the line (separated by
+     * white space or a comma). Empty lines and lines starting with # are skipped. The times must not decrease, the
+     * first arrival is replayed right away.
+     *
+     * @param file The trace
+     * @param repeat Whether to replay the trace again once it is finished, the first arrival of the next replay
+     *               following the last one after the mean time between arrivals
+     * @return A pacer replaying the trace
+     * @throws IOException If the trace cannot be read or holds no valid arrivals
+     */
+    public static Pacer trace(Path file, boolean repeat) throws IOException {
+        long[] times = new long[64];
+        int count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                long time;
+                try {
+                    time = Math.round(Double.parseDouble(line.split("[\\s,]+")[0]) * TimeUnit.SECONDS.toNanos(1));
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + ":" + number + " is not an arrival time: " + line);
+                }
+                if (count > 0 && time < times[count - 1]) {
+                    throw new IOException(file + ":" + number + " arrives before the previous line");
+                }
+                if (count == times.length) {
+                    times = Arrays.copyOf(times, count * 2);
+                }
+                times[count++] = time;
+            }
+        }
+        if (count == 0) {
+            throw new IOException(file + " holds no arrivals");
+        }
+
+        long duration = times[count - 1] - times[0];
+        long restart = count > 1 ? duration / (count - 1) : TimeUnit.SECONDS.toNanos(1);
+        double rate = count > 1 && duration > 0 ? (count - 1) * (double) TimeUnit.SECONDS.toNanos(1) / duration : 0;
+        long[] arrivals = Arrays.copyOf(times, count);
+
+        return new Pacer(new Schedule() {
+            private int next = 0;
+
+            @Override
+            public long next() {
+                if (next == arrivals.length) {
+                    if (!repeat) {
+                        return -1;
+                    }
+                    next = 1;
+                    return restart;
+                }
+                long gap = next == 0 ? 0 : arrivals[next] - arrivals[next - 1];
+                next++;
+                return gap;
+            }
+        }, 0, rate, "the " + count + " arrivals of trace " + file + (repeat ? ", repeated" : ""));
+    }
+
+    private static void checkRate(double rate){
+        if (!(rate > 0) || Double.isInfinite(rate)) {
+            throw new IllegalArgumentException("Rate must be a positive number of batches per second: " + rate);
+        }
+    }
+
+    /**
+     * Wait until the next batch is due
+     *
+     * @return False if there are no more arrivals and the source should stop
+     */
+    public boolean await(){
+        long now = System.nanoTime();
+        if (!started) {
+            started = true;
+            start = now;
+            reportStart = now;
+            due = now;
+            logger.info("Submitting batches with " + description);
+        } else if (schedule == null) {
+            due = now + delay;
+        }
+
+        if (schedule != null) {
+            long gap = schedule.next();
+            if (gap < 0) {
+                return false;
+            }
+            due += gap;
+        }
+
+        waitUntil(due);
+        return true;
+    }
+
+    /**
+     * Record the submission of a batch, called right after submitting it
+     *
+     * @param images Number of images in the batch
+     */
+    public void submitted(int images){
+        long now = System.nanoTime();
+        batches++;
+        this.images += images;
+        totalBatches++;
+        totalImages += images;
+
+        if (schedule != null) {
+            long lag = now - due;
+            maxLag = Math.max(maxLag, lag);
+            if (lag > tolerance) {
+                late++;
+                totalLate++;
+            }
+        }
+
+        if (now - reportStart >= reportInterval) {
+            logger.info("Last " + describe(batches, this.images, late, now - reportStart) + ", at most "
+                    + TimeUnit.NANOSECONDS.toMillis(maxLag) + " ms late");
+            reportStart = now;
+            batches = 0;
+            this.images = 0;
+            late = 0;
+            maxLag = 0;
+        }
+    }
+
+    /**
+     * Log the rate achieved since the first batch, called when the source is done
+     */
+    public void finish(){
+        if (started) {
+            logger.info("In total " + describe(totalBatches, totalImages, totalLate, System.nanoTime() - start));
+        }
+    }
+
+    private String describe(long batches, long images, long late, long elapsed){
+        double seconds = (double) elapsed / TimeUnit.SECONDS.toNanos(1);
+        String result = String.format("%.1f s: %d batches, %.2f batches/s, %.2f images/s", seconds, batches,
+                batches / seconds, images / seconds);
+        if (schedule != null) {
+            if (targetRate > 0) {
+                result += String.format(" of %.2f batches/s targeted", targetRate);
+            }
+            result += String.format(", %d late (%.1f%%)", late, batches == 0 ? 0.0 : 100.0 * late / batches);
+        }
+        return result;
+    }
+
+    private static void waitUntil(long deadline){
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > SPIN_THRESHOLD) {
+            LockSupport.parkNanos(remaining - SPIN_THRESHOLD);
+        }
+        while (deadline - System.nanoTime() > 0) {
+            Thread.onSpinWait();
+        }
+    }
+}
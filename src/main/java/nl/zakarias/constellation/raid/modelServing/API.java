@@ -1,226 +1,182 @@
 package nl.zakarias.constellation.raid.modelServing;
 
-import com.google.gson.Gson;
+import nl.zakarias.constellation.raid.configuration.Configuration;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
+import java.net.SocketTimeoutException;
 
 /**
  * An API allowing the user to interface with the TensorFlow model server, in order to make predictions.
  */
 public class API {
-
     /**
-     * Inner class used for automatic JSON <-> String conversion and access
+     * @return A pool of persistent connections to TensorFlow Serving, to be used by all requests of one backend and
+     * closed together with it
      */
-    interface Content {}
-
-    public static class Content_single implements Content{
-        String signature_name;
-        int[][] instances;
-
-        private Content_single(String signature_string, byte[][] image){
-            this.signature_name = signature_string;
-
-            instances = new int[image.length][image[0].length];
-
-            for (int i=0; i<image.length; i++){
-                for(int x=0; x<image[i].length; x++){
-                    instances[i][x] = image[i][x] & 0xff; // Convert to int
-                }
-            }
-        }
-    }
-
-    public static class Content_1D implements Content{
-        String signature_name;
-        int[][] instances;
-
-        private Content_1D(String signature_string, byte[][] image){
-            this.signature_name = signature_string;
-
-            instances = new int[image.length][image[0].length];
-
-            for (int batch=0; batch<image.length; batch++){
-                for(int row=0; row<image[0].length; row++){
-                    instances[batch][row] = image[batch][row] & 0xff; // Convert to int
-                }
-            }
-        }
+    public static ConnectionPool<HttpConnection> createConnectionPool() {
+        return new ConnectionPool<>(HttpConnection::new, Configuration.HTTP_MAX_CONNECTIONS_PER_ENDPOINT,
+                Configuration.HTTP_IDLE_TIMEOUT, Configuration.HTTP_CONNECT_TIMEOUT);
     }
 
-    public static class Content_2D implements Content{
-        String signature_name;
-        int[][][] instances;
-
-        private Content_2D(String signature_string, byte[][][] image){
-            this.signature_name = signature_string;
-
-            instances = new int[image.length][image[0].length][image[0][0].length];
-
-            for (int batch=0; batch<image.length; batch++){
-                for(int row=0; row<image[0].length; row++){
-                    for(int col=0; col<image[0][0].length; col++) {
-                            instances[batch][row][col] = image[batch][row][col] & 0xff; // Convert to int
-                        }
-                }
-            }
-        }
+    /**
+     * Reads the body of a successful response, while the connection is still held
+     */
+    private interface ResponseHandler<T> {
+        T handle(HttpConnection.Response response) throws IOException;
     }
 
-    public static class Content_3D implements Content{
-        String signature_name;
-        int[][][][] instances;
-
-        private Content_3D(String signature_string, byte[][][][] image){
-            this.signature_name = signature_string;
-
-            instances = new int[image.length][image[0].length][image[0][0].length][image[0][0][0].length];
-
-            for (int batch=0; batch<image.length; batch++){
-                for(int row=0; row<image[0].length; row++){
-                    for(int col=0; col<image[0][0].length; col++) {
-                        for(int inner=0; inner<image[0][0][0].length; inner++) {
-                            instances[batch][row][col][inner] = image[batch][row][col][inner] & 0xff; // Convert to int
-                        }
-                    }
-                }
-            }
-        }
+    /**
+     * @param response Response from tensorflow model serving
+     *
+     * @return A String describing the error in the response
+     * @throws IOException If the body of the response cannot be read
+     */
+    private static String responseError(HttpConnection.Response response) throws IOException {
+        return String.format("HTTP Error Response Code %d \n", response.code) + response.bodyAsString() + "\n";
     }
 
-
     /**
-     * @param con Connection to tensorflow model serving
-     * @param code Response code of the request
+     * Send a request over a pooled connection and let the handler read the response. A connection taken from the pool
+     * may have been closed by the server while it was idle, in that case the request is retried once on a new
+     * connection.
      *
-     * @return A String containing the result of the response
-     * @throws IOException If something goes wrong with the connection to the server
+     * @param pool Connections to reuse, see {@link #createConnectionPool()}
+     * @param host Host on which the tensorflow model server is listening
+     * @param port Port number on which the tensorflow model server is listening
+     * @param path Path of the request, e.g. /v1/models/mnist:predict
+     * @param body The body of a POST request, or null for a GET request
+     * @param handler Reads the body of the response
+     * @return The result of the handler
+     * @throws ModelServingException If the server responded with an error status
+     * @throws IOException If the server could not be reached
      */
-    private static String responseError(HttpURLConnection con, int code) throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(con.getErrorStream()));
-        String inputLine;
-        StringBuilder result = new StringBuilder();
+    private static <T> T send(ConnectionPool<HttpConnection> pool, String host, int port, String path, RequestBody body, ResponseHandler<T> handler) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            HttpConnection connection = pool.acquire(host, port);
+            boolean reused = connection.isReused();
+
+            HttpConnection.Response response;
+            try {
+                response = body == null ? connection.get(path) : connection.post(path, "application/json", body);
+            } catch (IOException e) {
+                pool.discard(connection);
+                // A timed out request is not retried, the server received it but did not answer in time
+                if (!reused || attempt > 0 || e instanceof SocketTimeoutException) {
+                    throw e;
+                }
+                continue;
+            }
 
-        result.append(String.format("HTTP Error Response Code %d \n", code));
+            try {
+                if (response.code >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                    String error = responseError(response);
+                    pool.release(connection);
+                    throw new ModelServingException(response.code, error);
+                }
 
-        while ((inputLine = in.readLine()) != null) {
-            result.append(inputLine);
+                T result = handler.handle(response);
+                response.drain();
+                pool.release(connection);
+                return result;
+            } catch (ModelServingException e) {
+                throw e;
+            } catch (IOException | RuntimeException e) {
+                pool.discard(connection);
+                throw e;
+            }
         }
-        in.close();
-        result.append("\n");
-
-        return result.toString();
     }
 
     /**
      * Take a batch of images and make a API call to TensorFlow Serving to get a prediction. Wait for the results, check
-     * the response code for errors and return the prediction as a string in JSON format that needs to be converted to
-     * JSON format.
+     * the response code for errors and decode the predictions into the output array.
      *
-     * @param url URL to access the correct TensorfFlow serving model
-     * @param data The data to classify
-     * @return Returns a JSON string containing the results of the predictions (can be a batch of predictions)
-     * @throws IOException Thrown in case we cannot access the URL
+     * @param pool Connections to reuse, see {@link #createConnectionPool()}
+     * @param host Host on which the tensorflow model server is listening
+     * @param port Port number on which the tensorflow model server is listening
+     * @param path Path to access the correct TensorfFlow serving model
+     * @param data Encoder writing the data to classify
+     * @param output Array to store the predictions in, must match the size of the output tensor of the model
+     * @throws ModelServingException If the server responded with an error status
+     * @throws IOException If the server could not be reached or the response cannot be decoded
      */
-    private static String makePrediction(URL url, Content data) throws IOException {
+    private static void makePrediction(ConnectionPool<HttpConnection> pool, String host, int port, String path, JsonRequestEncoder data, float[] output) throws IOException {
 
         long startTime = System.nanoTime();
-        Gson gson = new Gson();
 
-        HttpURLConnection connection;
         try {
-            connection = (HttpURLConnection) url.openConnection();
+            send(pool, host, port, path, data, response -> {
+                PredictionDecoder.decode(response.body(), output);
+                return null;
+            });
+        } catch (ModelServingException e){
+            throw e;
         } catch (IOException e){
-            throw new Error("Could not contact TF model server, check that the version number and modelName is correct\n" + e.getMessage());
+            throw new IOException("Prediction request to TF model server failed, check that the version number and modelName is correct\n" + e.getMessage(), e);
         }
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Content-Type","application/json");
-
-        connection.setDoOutput(true);
-        connection.setDoInput(true);
-        DataOutputStream wr = new DataOutputStream(connection.getOutputStream());
-        wr.writeBytes(gson.toJson(data));
-        wr.flush();
-        wr.close();
-
-        int responseCode = connection.getResponseCode();
-
-        if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
-            throw new Error(responseError(connection, responseCode));
-        }
-
-        BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-        String inputLine;
-        StringBuilder result = new StringBuilder();
-
-        while ((inputLine = in.readLine()) != null) {
-            result.append(inputLine);
-        }
-        in.close();
 
         long endTime = System.nanoTime();
         long duration = ((endTime - startTime) / 1000000);  //divide by 1000000 to get milliseconds.
         System.out.println("Classification took: " + duration + "ms or " + duration / 1000. + "s");
-
-
-        return result.toString();
     }
 
     /**
-     * Make a prediction using tensorflow serving and the given model. Any number of images can be supplied as a batch,
-     * with the first dimension representing each individual image. For example,
-     * batch size 1 would correspond to the following image: byte[1][rows*cols] image.
+     * Make a prediction using tensorflow serving and the given model, on a batch of images stored one after the other
+     * in a single array. The images are sent as nested arrays following the shape.
      *
+     * @param pool Connections to reuse, see {@link #createConnectionPool()}
+     * @param host Host on which the tensorflow model server is listening
      * @param port Port number on which the tensorflow model server is listening
      * @param modelName Model name
      * @param version Model version number
-     * @param image A batch of images to classify, each in a 1 dimensional array
+     * @param images The pixel values of the batch, in row major order
+     * @param shape Shape of the batch, the first dimension is the number of images
+     * @param signatureString Signature of the model to use
+     * @param output Preallocated array receiving the predictions of the batch, flattened in row major order
      *
-     * @return A String containing the result of the response.
      * @throws IOException If something goes wrong with the connection to the server
      */
-    public static String predict(int port, String modelName, int version, byte[][] image, String signatureString) throws IOException {
-        URL url = new URL("http://localhost:" + port + "/v1/models/" + modelName + ":predict");
+    public static void predict(ConnectionPool<HttpConnection> pool, String host, int port, String modelName, int version, byte[] images, int[] shape, String signatureString, float[] output) throws IOException {
+        String path = "/v1/models/" + modelName + ":predict";
         if (version > 0){
-            url = new URL("http://localhost:" + port + "/v1/models/" + modelName + "/versions/" + version + ":predict");
+            path = "/v1/models/" + modelName + "/versions/" + version + ":predict";
         }
-        Content_single data = new Content_single(signatureString, image);
+        JsonRequestEncoder data = new JsonRequestEncoder(signatureString, images, shape);
 
-        return makePrediction(url, data);
+        makePrediction(pool, host, port, path, data, output);
     }
 
     /**
-     * Make a prediction using tensorflow serving and the given model. Any number of images can be supplied as a batch,
-     * with the first dimension representing each individual image. For example,
-     * batch size 1 would correspond to the following image: byte[1][rows][cols][values] image.
+     * Make a prediction using tensorflow serving on a batch of encoded images, each holding the bytes of a JPEG or PNG
+     * file. The images are sent base64 encoded as {"b64": ...} instances, and decoded by the model.
      *
+     * @param pool Connections to reuse, see {@link #createConnectionPool()}
+     * @param host Host on which the tensorflow model server is listening
      * @param port Port number on which the tensorflow model server is listening
      * @param modelName Model name
      * @param version Model version number
-     * @param image A batch of images to classify, each in a 3 dimensional array
+     * @param images A batch of encoded images to classify
+     * @param signatureString Signature of the model to use, taking encoded images
+     * @param output Preallocated array receiving the predictions of the batch, flattened in row major order
      *
-     * @return A String containing the result of the response.
      * @throws IOException If something goes wrong with the connection to the server
      */
-    public static String predict(int port, String modelName, int version, byte[][][][] image, String signatureString) throws IOException {
-        URL url = new URL("http://localhost:" + port + "/v1/models/" + modelName + ":predict");
+    public static void predictEncoded(ConnectionPool<HttpConnection> pool, String host, int port, String modelName, int version, byte[][] images, String signatureString, float[] output) throws IOException {
+        String path = "/v1/models/" + modelName + ":predict";
         if (version > 0){
-            url = new URL("http://localhost:" + port + "/v1/models/" + modelName + "/versions/" + version + ":predict");
+            path = "/v1/models/" + modelName + "/versions/" + version + ":predict";
         }
-        Content_3D data = new Content_3D(signatureString, image);
+        JsonRequestEncoder data = new JsonRequestEncoder(signatureString, images);
 
-        return makePrediction(url, data);
+        makePrediction(pool, host, port, path, data, output);
     }
 
     /**
      * Get the status of a certain model running on the tensorflow model serving
      *
+     * @param pool Connections to reuse, see {@link #createConnectionPool()}
+     * @param host Host on which the tensorflow model server is listening
      * @param port Port number on which the tensorflow model server is listening
      * @param modelName Model name
      * @param version Model version number
@@ -228,27 +184,20 @@ public class API {
      * @return Status of the model
      * @throws IOException If something goes wrong with the connection to the server
      */
-    public static String getStatus(int port, String modelName, int version) throws IOException {
-        StringBuilder result = new StringBuilder();
-
-        URL url = new URL("http://localhost:" + port + "/v1/models/" + modelName);
+    public static String getStatus(ConnectionPool<HttpConnection> pool, String host, int port, String modelName, int version) throws IOException {
+        String path = "/v1/models/" + modelName;
         if (version > 0){
-            url = new URL("http://localhost:" + port + "/v1/models/" + modelName + "/versions/" + version);
+            path = "/v1/models/" + modelName + "/versions/" + version;
         }
-        URLConnection connection = url.openConnection();
 
-        BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-        String inputLine;
-        while ((inputLine = in.readLine()) != null)
-            result.append(inputLine);
-        in.close();
-
-        return result.toString();
+        return send(pool, host, port, path, null, HttpConnection.Response::bodyAsString);
     }
 
     /**
      * Get model metadata, containing information on model input tensor dimensions, status, output format etc
      *
+     * @param pool Connections to reuse, see {@link #createConnectionPool()}
+     * @param host Host on which the tensorflow model server is listening
      * @param port Port number on which the tensorflow model server is listening
      * @param modelName Model name
      * @param version Model version number
@@ -256,21 +205,12 @@ public class API {
      * @return Metadata of the model
      * @throws IOException If something goes wrong with the connection to the server
      */
-    public static String getModelMetadata(int port, String modelName, int version) throws IOException {
-        StringBuilder result = new StringBuilder();
-
-        URL url = new URL("http://localhost:" + port + "/v1/models/" + modelName + "/metadata");
+    public static String getModelMetadata(ConnectionPool<HttpConnection> pool, String host, int port, String modelName, int version) throws IOException {
+        String path = "/v1/models/" + modelName + "/metadata";
         if (version > 0){
-            url = new URL("http://localhost:" + port + "/v1/models/" + modelName + "/versions/" + version + "/metadata");
+            path = "/v1/models/" + modelName + "/versions/" + version + "/metadata";
         }
-        URLConnection connection = url.openConnection();
-
-        BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-        String inputLine;
-        while ((inputLine = in.readLine()) != null)
-            result.append(inputLine);
-        in.close();
 
-        return result.toString();
+        return send(pool, host, port, path, null, HttpConnection.Response::bodyAsString);
     }
 }
@@ -0,0 +1,119 @@
+package nl.zakarias.constellation.raid.modelServing;
+
+import ibis.constellation.ActivityIdentifier;
+import ibis.constellation.Constellation;
+import ibis.constellation.Event;
+import nl.zakarias.constellation.raid.ResultEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs predictions outside of the Constellation executor threads. An Activity submits its classification and suspends,
+ * once the prediction completes the {@link ResultEvent}, or the exception that made it fail, is sent to the Activity
+ * as the data of an {@link Event}, which resumes it in {@link ibis.constellation.Activity#process}.
+ *
+ * At most a fixed number of predictions are in flight on a Predictor, independent of the number of executors. When the
+ * window is full, submitting blocks the executor until a prediction completes.
+ */
+public class AsyncInference {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncInference.class);
+
+    private static final long SHUTDOWN_TIMEOUT = 10; // Seconds
+
+    /**
+     * Process wide Constellation instance, which, unlike the instance handed to an Activity, can deliver events from
+     * threads that are not executors
+     */
+    private static volatile Constellation constellation;
+    private static volatile ExecutorService executor;
+    private static volatile Semaphore window;
+
+    /**
+     * Start running predictions asynchronously, with at most maxInFlight predictions running at the same time.
+     *
+     * @param constellation The Constellation instance of this process, used to send the completion events
+     * @param maxInFlight Maximum number of predictions in flight, 0 keeps predictions on the executor threads
+     */
+    public static synchronized void start(Constellation constellation, int maxInFlight) {
+        if (maxInFlight < 0) {
+            throw new IllegalArgumentException("Maximum number of in flight predictions must be positive: " + maxInFlight);
+        }
+        if (executor != null || maxInFlight == 0) {
+            return;
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        AsyncInference.constellation = constellation;
+        AsyncInference.window = new Semaphore(maxInFlight);
+        AsyncInference.executor = Executors.newFixedThreadPool(maxInFlight, runnable -> {
+            Thread thread = new Thread(runnable, "raid-inference-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return True if Activities should submit their predictions, false if they should run them on the executor
+     */
+    public static boolean enabled() {
+        return executor != null;
+    }
+
+    /**
+     * Run the classification of an Activity asynchronously. The Activity must expect events and should return
+     * {@link ibis.constellation.Activity#SUSPEND} from initialize, the completion event has the Activity as both
+     * source and target, its data holds either the {@link ResultEvent} or the exception thrown by the classification.
+     *
+     * @param activity Identifier of the Activity to resume when the prediction completes
+     * @param classification Performs the prediction and creates the result
+     */
+    public static void submit(ActivityIdentifier activity, Callable<ResultEvent> classification) {
+        window.acquireUninterruptibly();
+        try {
+            executor.execute(() -> {
+                Object data;
+                try {
+                    data = classification.call();
+                } catch (Exception | Error e) {
+                    data = e;
+                } finally {
+                    window.release();
+                }
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Prediction completed, resuming activity " + activity);
+                }
+                constellation.send(new Event(activity, activity, data));
+            });
+        } catch (RuntimeException e) {
+            window.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop accepting predictions and wait a while for those in flight, called when the process is shutting down.
+     */
+    public static synchronized void shutdown() {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                logger.info("Predictions still in flight at shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+    }
+}
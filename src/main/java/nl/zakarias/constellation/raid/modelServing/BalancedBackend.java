@@ -0,0 +1,375 @@
+package nl.zakarias.constellation.raid.modelServing;
+
+import nl.zakarias.constellation.raid.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Sends predictions to one or more TensorFlow Serving instances, each reached through its own
+ * {@link InferenceBackend}, and bounds how long a prediction may take.
+ *
+ * Every prediction goes to the available endpoint with the fewest outstanding requests, or, with latency weighted
+ * balancing, to the endpoint with the lowest expected waiting time: its outstanding requests times its average
+ * latency. Endpoints whose circuit breaker is open are skipped (see {@link Endpoint}), when no endpoint is available
+ * the prediction fails immediately instead of waiting for an overloaded server.
+ *
+ * A prediction failing because an endpoint cannot be reached or is overloaded is retried with exponential backoff,
+ * preferably on another endpoint, as long as its deadline has not passed. With hedging, a duplicate of a prediction is
+ * sent to a second endpoint when the first has not answered within the {@link Configuration#HEDGE_PERCENTILE} latency
+ * of recent predictions, and the first answer is used. Predictions run on a separate thread, so the caller can give up
+ * on them when the deadline passes, hedged or not.
+ */
+public class BalancedBackend implements InferenceBackend {
+    private static final Logger logger = LoggerFactory.getLogger(BalancedBackend.class);
+
+    /** gRPC status codes of an overloaded or unavailable server */
+    private static final int GRPC_DEADLINE_EXCEEDED = 4;
+    private static final int GRPC_RESOURCE_EXHAUSTED = 8;
+    private static final int GRPC_UNAVAILABLE = 14;
+    /** HTTP status codes of an overloaded or unavailable server */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_UNAVAILABLE = 503;
+    private static final int HTTP_GATEWAY_TIMEOUT = 504;
+
+    private final Endpoint[] endpoints;
+    private final InferenceBackend[] backends;
+    private final Configuration.Balancing balancing;
+    private final int maxRetries;
+    private final long timeout;
+
+    private final boolean hedging;
+    /** Runs the predictions, so they can be abandoned at their deadline */
+    private final ExecutorService callPool;
+    private final LatencyTracker latencies = new LatencyTracker(Configuration.HEDGE_PERCENTILE);
+
+    /** Rotates the endpoint the search starts at, so ties are spread over all endpoints */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * A call made to the backend of one endpoint
+     */
+    private interface Call<T> {
+        /**
+         * @param output Array receiving the predictions, null for calls without output
+         */
+        T run(InferenceBackend backend, float[] output) throws IOException;
+    }
+
+    /**
+     * A call running in the background, writing to its own output array
+     */
+    private static class Attempt<T> {
+        final float[] output;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Attempt(float[] output){
+            this.output = output;
+        }
+    }
+
+    /**
+     * @param endpoints The TensorFlow Serving instances to use
+     * @param factory Creates the backend making the predictions for a single endpoint
+     * @param balancing How to choose an endpoint for each prediction
+     * @param maxRetries Number of times a prediction is retried when an endpoint is unavailable
+     * @param hedging Whether to send a duplicate of slow predictions to a second endpoint
+     */
+    public BalancedBackend(List<Endpoint> endpoints, Function<Endpoint, InferenceBackend> factory, Configuration.Balancing balancing, int maxRetries, boolean hedging){
+        this.endpoints = endpoints.toArray(new Endpoint[0]);
+        this.backends = new InferenceBackend[this.endpoints.length];
+        for (int i = 0; i < this.endpoints.length; i++) {
+            backends[i] = factory.apply(this.endpoints[i]);
+        }
+        this.balancing = balancing;
+        this.maxRetries = maxRetries;
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(Configuration.REQUEST_TIMEOUT);
+
+        this.hedging = hedging && this.endpoints.length > 1;
+
+        AtomicInteger count = new AtomicInteger();
+        this.callPool = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "raid-prediction-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Choose an endpoint and count the request as outstanding on it.
+     *
+     * @param exclude Index of an endpoint to avoid, -1 for none
+     * @param allowExcluded Whether the excluded endpoint may be used when no other endpoint is available
+     * @return Index of the endpoint to send the request to, or -1 if no endpoint is available
+     */
+    private int select(int exclude, boolean allowExcluded){
+        for (int tries = 0; tries < endpoints.length; tries++) {
+            long now = System.nanoTime();
+            int start = Math.floorMod(next.getAndIncrement(), endpoints.length);
+
+            int best = -1;
+            double bestScore = Double.MAX_VALUE;
+            for (int n = 0; n < endpoints.length; n++) {
+                int i = (start + n) % endpoints.length;
+                Endpoint endpoint = endpoints[i];
+                if (i == exclude || !endpoint.isAvailable(now)) {
+                    continue;
+                }
+
+                double score = endpoint.outstanding();
+                if (balancing == Configuration.Balancing.LATENCY) {
+                    score = (score + 1) * endpoint.latency();
+                }
+                if (score < bestScore) {
+                    best = i;
+                    bestScore = score;
+                }
+            }
+            if (best < 0 && allowExcluded && exclude >= 0 && endpoints[exclude].isAvailable(now)) {
+                best = exclude;
+            }
+            if (best < 0) {
+                return -1;
+            }
+            if (endpoints[best].start()) {
+                return best;
+            }
+            // Another thread started probing this endpoint first, choose again
+        }
+        return -1;
+    }
+
+    /**
+     * @return True if the server answered, but is overloaded or unavailable
+     */
+    private static boolean isOverloaded(int code){
+        return code == GRPC_DEADLINE_EXCEEDED || code == GRPC_RESOURCE_EXHAUSTED || code == GRPC_UNAVAILABLE
+                || code == HTTP_TOO_MANY_REQUESTS || code == HTTP_UNAVAILABLE || code == HTTP_GATEWAY_TIMEOUT;
+    }
+
+    /**
+     * @return False if the request itself was rejected, and would fail on every endpoint
+     */
+    private static boolean isRetryable(IOException e){
+        return !(e instanceof ModelServingException) || isOverloaded(((ModelServingException) e).code());
+    }
+
+    /**
+     * Make the call on a selected endpoint, updating the state of the endpoint with the outcome
+     */
+    private <T> T attempt(int i, Call<T> call, float[] output) throws IOException {
+        Endpoint endpoint = endpoints[i];
+        long startTime = System.nanoTime();
+        try {
+            T result = call.run(backends[i], output);
+            long duration = System.nanoTime() - startTime;
+            endpoint.succeeded(duration);
+            latencies.record(duration);
+            return result;
+        } catch (ModelServingException e) {
+            if (isOverloaded(e.code())) {
+                endpoint.failed();
+            } else {
+                // The endpoint answered, the request itself was wrong
+                endpoint.succeeded(System.nanoTime() - startTime);
+            }
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            endpoint.failed();
+            throw e;
+        }
+    }
+
+    private <T> Attempt<T> startAttempt(int i, Call<T> call, float[] output){
+        Attempt<T> attempt = new Attempt<>(output == null ? null : new float[output.length]);
+        callPool.execute(() -> {
+            try {
+                attempt.result.complete(attempt(i, call, attempt.output));
+            } catch (IOException | RuntimeException e) {
+                attempt.result.completeExceptionally(e);
+            }
+        });
+        return attempt;
+    }
+
+    /**
+     * Wait for a future to complete, successfully or not
+     *
+     * @return False if the time passed before the future completed
+     */
+    private static boolean await(CompletableFuture<?> future, long nanos) throws IOException {
+        try {
+            future.get(nanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            // Completed exceptionally
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a prediction");
+        }
+        return true;
+    }
+
+    /**
+     * @return The result of a completed attempt, its predictions are copied to the output
+     */
+    private static <T> T finish(Attempt<T> attempt, float[] output) throws IOException {
+        T result;
+        try {
+            result = attempt.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a prediction");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw (RuntimeException) e.getCause();
+        }
+        if (output != null) {
+            System.arraycopy(attempt.output, 0, output, 0, output.length);
+        }
+        return result;
+    }
+
+    /**
+     * Make the call on the selected endpoint, and with hedging a duplicate on a second endpoint when it is slow. The
+     * first successful answer is used, the other is ignored once it completes. Calls still running at the deadline are
+     * abandoned, their answers are ignored as well.
+     *
+     * @param deadline Time from {@link System#nanoTime()} at which the call fails
+     */
+    private <T> T timed(int primary, Call<T> call, float[] output, long deadline) throws IOException {
+        List<Attempt<T>> running = new ArrayList<>();
+        Attempt<T> first = startAttempt(primary, call, output);
+        running.add(first);
+
+        long delay = hedging ? latencies.estimate() : -1;
+        if (delay >= 0 && !await(first.result, Math.min(delay, deadline - System.nanoTime()))) {
+            int second = select(primary, false);
+            if (second >= 0) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Hedging prediction on " + endpoints[primary] + " with " + endpoints[second]);
+                }
+                running.add(startAttempt(second, call, output));
+            }
+        }
+
+        IOException failure = null;
+        while (!running.isEmpty()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new IOException("Prediction did not complete within " + Configuration.REQUEST_TIMEOUT + "ms", failure);
+            }
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[running.size()];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = running.get(i).result;
+            }
+            await(CompletableFuture.anyOf(futures), remaining);
+
+            for (Iterator<Attempt<T>> iterator = running.iterator(); iterator.hasNext(); ) {
+                Attempt<T> attempt = iterator.next();
+                if (attempt.result.isDone()) {
+                    iterator.remove();
+                    try {
+                        return finish(attempt, output);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+        throw failure;
+    }
+
+    private <T> T call(Call<T> call, float[] output) throws IOException {
+        long deadline = System.nanoTime() + timeout;
+        IOException failure = null;
+        int previous = -1;
+
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            if (attempt > 0) {
+                long backoff = TimeUnit.MILLISECONDS.toNanos((long) Configuration.RETRY_BACKOFF << (attempt - 1));
+                if (System.nanoTime() + backoff - deadline >= 0) {
+                    break;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.sleep(backoff);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            int i = select(previous, true);
+            if (i < 0) {
+                throw new IOException("No TensorFlow Serving endpoint available, the circuits of " + Arrays.toString(endpoints) + " are open", failure);
+            }
+            try {
+                return timed(i, call, output, deadline);
+            } catch (IOException e) {
+                if (!isRetryable(e)) {
+                    throw e;
+                }
+                logger.warn("Prediction on TensorFlow Serving at " + endpoints[i] + " failed: " + e.getMessage());
+                failure = e;
+                previous = i;
+            }
+        }
+        throw failure;
+    }
+
+    @Override
+    public void predict(String modelName, int version, byte[] images, int[] shape, String signatureName, float[] output) throws IOException {
+        call((backend, out) -> {
+            backend.predict(modelName, version, images, shape, signatureName, out);
+            return null;
+        }, output);
+    }
+
+    @Override
+    public void predictEncoded(String modelName, int version, byte[][] images, String signatureName, float[] output) throws IOException {
+        call((backend, out) -> {
+            backend.predictEncoded(modelName, version, images, signatureName, out);
+            return null;
+        }, output);
+    }
+
+    @Override
+    public ModelMetadata metadata(String modelName, int version, String signatureName) throws IOException {
+        return call((backend, out) -> backend.metadata(modelName, version, signatureName), null);
+    }
+
+    /**
+     * @return The endpoints with their current load, in the order they were configured
+     */
+    public List<Endpoint> endpoints(){
+        List<Endpoint> result = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            result.add(endpoint);
+        }
+        return result;
+    }
+
+    @Override
+    public void close(){
+        callPool.shutdown();
+        for (InferenceBackend backend : backends) {
+            backend.close();
+        }
+    }
+}
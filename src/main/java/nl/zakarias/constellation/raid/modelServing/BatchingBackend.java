@@ -0,0 +1,305 @@
+package nl.zakarias.constellation.raid.modelServing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the predictions of concurrently running activities into larger batches before passing them to another
+ * {@link InferenceBackend}. Every model (and image shape, or encoded images) has its own batch: the first executor
+ * thread to arrive waits until either the maximum batch size has been reached or the maximum delay has passed, then
+ * makes a single prediction for all images collected so far. The output is split up again, so each caller receives
+ * exactly the predictions of its own images. The pixels of the callers are copied into one array for the batch,
+ * encoded images are not copied, only the references to them.
+ */
+public class BatchingBackend implements InferenceBackend {
+    private static final Logger logger = LoggerFactory.getLogger(BatchingBackend.class);
+
+    private final InferenceBackend backend;
+    private final int maxBatchSize;
+    private final long maxDelay;
+
+    private final Map<String, Batcher> batchers = new ConcurrentHashMap<>();
+
+    /**
+     * The images and output array of a single caller
+     */
+    private static class Request {
+        /** The pixels of the images one after the other, or null for encoded images */
+        final byte[] images;
+        final byte[][] encodedImages;
+        final int count;
+        final float[] output;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        boolean taken = false;
+
+        Request(byte[] images, int count, float[] output){
+            this.images = images;
+            this.encodedImages = null;
+            this.count = count;
+            this.output = output;
+        }
+
+        Request(byte[][] encodedImages, float[] output){
+            this.images = null;
+            this.encodedImages = encodedImages;
+            this.count = encodedImages.length;
+            this.output = output;
+        }
+
+        int size(){
+            return count;
+        }
+    }
+
+    /**
+     * Collects the requests for one model, version, signature and image shape
+     */
+    private class Batcher {
+        final String modelName;
+        final int version;
+        final String signatureName;
+        /** Shape of a single image, or null for encoded JPEG or PNG files */
+        final int[] imageShape;
+
+        final ArrayDeque<Request> pending = new ArrayDeque<>();
+        int pendingImages = 0;
+        boolean collecting = false;
+
+        Batcher(String modelName, int version, String signatureName, int[] imageShape){
+            this.modelName = modelName;
+            this.version = version;
+            this.signatureName = signatureName;
+            this.imageShape = imageShape;
+        }
+
+        /**
+         * Add the request to the batch and wait until its predictions are in its output array. The calling thread
+         * may be the one collecting and running a batch, possibly several times, before its own request is done.
+         */
+        void submit(Request request) throws IOException {
+            synchronized (this) {
+                pending.add(request);
+                pendingImages += request.size();
+                notifyAll();
+            }
+
+            while (true) {
+                List<Request> batch = null;
+                synchronized (this) {
+                    if (request.taken) {
+                        break;
+                    }
+                    if (!collecting) {
+                        collecting = true;
+                        try {
+                            awaitBatch();
+                        } finally {
+                            batch = takeBatch();
+                            collecting = false;
+                            notifyAll();
+                        }
+                    } else {
+                        waitUninterruptibly(0);
+                    }
+                }
+                if (batch != null) {
+                    run(batch);
+                }
+            }
+
+            try {
+                request.result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a batched prediction");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Batched prediction failed", e.getCause());
+            }
+        }
+
+        /**
+         * Wait until the batch is full or the maximum delay has passed
+         */
+        private void awaitBatch(){
+            long deadline = System.nanoTime() + maxDelay;
+            long remaining;
+            while (pendingImages < maxBatchSize && (remaining = deadline - System.nanoTime()) > 0) {
+                waitUninterruptibly(remaining);
+            }
+        }
+
+        private void waitUninterruptibly(long nanos){
+            try {
+                if (nanos > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, nanos);
+                } else {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Take the oldest requests from the queue, up to the maximum batch size. A single request larger than the
+         * maximum batch size is taken on its own.
+         */
+        private List<Request> takeBatch(){
+            List<Request> batch = new ArrayList<>();
+            int images = 0;
+            while (!pending.isEmpty() && (batch.isEmpty() || images + pending.peek().size() <= maxBatchSize)) {
+                Request request = pending.poll();
+                request.taken = true;
+                images += request.size();
+                batch.add(request);
+            }
+            pendingImages -= images;
+            return batch;
+        }
+
+        /**
+         * Make one prediction for all requests in the batch and copy the predictions to the output of each request
+         */
+        private void run(List<Request> batch){
+            if (batch.size() == 1) {
+                Request request = batch.get(0);
+                try {
+                    predict(request.images, request.encodedImages, request.size(), request.output);
+                    request.result.complete(null);
+                } catch (IOException | RuntimeException e) {
+                    request.result.completeExceptionally(e);
+                }
+                return;
+            }
+
+            int images = 0;
+            int outputs = 0;
+            for (Request request : batch) {
+                images += request.size();
+                outputs += request.output.length;
+            }
+
+            byte[] pixels = null;
+            byte[][] encodedImages = null;
+            float[] output = new float[outputs];
+
+            int position = 0;
+            if (imageShape != null) {
+                int length = 0;
+                for (Request request : batch) {
+                    length += request.images.length;
+                }
+                pixels = new byte[length];
+                for (Request request : batch) {
+                    System.arraycopy(request.images, 0, pixels, position, request.images.length);
+                    position += request.images.length;
+                }
+            } else {
+                encodedImages = new byte[images][];
+                for (Request request : batch) {
+                    System.arraycopy(request.encodedImages, 0, encodedImages, position, request.size());
+                    position += request.size();
+                }
+            }
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Predicting batch of " + images + " images from " + batch.size() + " activities with " + modelName);
+            }
+
+            try {
+                predict(pixels, encodedImages, images, output);
+            } catch (IOException | RuntimeException e) {
+                for (Request request : batch) {
+                    request.result.completeExceptionally(e);
+                }
+                return;
+            }
+
+            position = 0;
+            for (Request request : batch) {
+                System.arraycopy(output, position, request.output, 0, request.output.length);
+                position += request.output.length;
+                request.result.complete(null);
+            }
+        }
+
+        private void predict(byte[] images, byte[][] encodedImages, int count, float[] output) throws IOException {
+            if (imageShape == null) {
+                backend.predictEncoded(modelName, version, encodedImages, signatureName, output);
+                return;
+            }
+            int[] shape = new int[imageShape.length + 1];
+            shape[0] = count;
+            System.arraycopy(imageShape, 0, shape, 1, imageShape.length);
+            backend.predict(modelName, version, images, shape, signatureName, output);
+        }
+    }
+
+    /**
+     * @param backend The backend making the predictions
+     * @param maxBatchSize Maximum number of images predicted at once
+     * @param maxDelay Maximum time in milliseconds the first request of a batch waits for other requests
+     */
+    public BatchingBackend(InferenceBackend backend, int maxBatchSize, int maxDelay){
+        this.backend = backend;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelay = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+    }
+
+    /**
+     * Only requests for the same model with images of the same shape, and the same number of outputs per image, can
+     * be merged. Encoded images can be merged regardless of their size.
+     *
+     * @param imageShape Shape of a single image, or null for encoded images
+     */
+    private Batcher batcher(String modelName, int version, String signatureName, int[] imageShape, int outputsPerImage){
+        String shape = imageShape == null ? "encoded" : Arrays.toString(imageShape);
+        String key = modelName + ":" + version + ":" + signatureName + ":" + shape + ":" + outputsPerImage;
+        return batchers.computeIfAbsent(key, k -> new Batcher(modelName, version, signatureName, imageShape));
+    }
+
+    @Override
+    public void predict(String modelName, int version, byte[] images, int[] shape, String signatureName, float[] output) throws IOException {
+        if (shape[0] == 0 || shape[0] >= maxBatchSize) {
+            backend.predict(modelName, version, images, shape, signatureName, output);
+            return;
+        }
+        int[] imageShape = Arrays.copyOfRange(shape, 1, shape.length);
+        batcher(modelName, version, signatureName, imageShape, output.length / shape[0])
+                .submit(new Request(images, shape[0], output));
+    }
+
+    @Override
+    public void predictEncoded(String modelName, int version, byte[][] images, String signatureName, float[] output) throws IOException {
+        if (images.length == 0 || images.length >= maxBatchSize) {
+            backend.predictEncoded(modelName, version, images, signatureName, output);
+            return;
+        }
+        batcher(modelName, version, signatureName, null, output.length / images.length)
+                .submit(new Request(images, output));
+    }
+
+    @Override
+    public ModelMetadata metadata(String modelName, int version, String signatureName) throws IOException {
+        return backend.metadata(modelName, version, signatureName);
+    }
+
+    @Override
+    public void close(){
+        backend.close();
+    }
+}
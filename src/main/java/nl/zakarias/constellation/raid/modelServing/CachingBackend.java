@@ -0,0 +1,218 @@
+package nl.zakarias.constellation.raid.modelServing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the predictions of the most recently seen images, so images which are sent again (e.g. by a source
+ * looping over its dataset, or a camera resending identical frames) are answered without calling another
+ * {@link InferenceBackend}. Predictions are cached per image, keyed by model, version, signature and the SHA-256 hash
+ * of the pixels. Only the images of a batch which are not in the cache are sent to the backend. The least recently
+ * used predictions are evicted once the cache holds the maximum number of images.
+ */
+public class CachingBackend implements InferenceBackend {
+    private static final Logger logger = LoggerFactory.getLogger(CachingBackend.class);
+
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error("SHA-256 is not available: " + e.getMessage());
+        }
+    });
+
+    private final InferenceBackend backend;
+    private final Map<String, float[]> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param backend The backend making the predictions of images not in the cache
+     * @param maxEntries Maximum number of images of which the predictions are kept
+     */
+    public CachingBackend(InferenceBackend backend, int maxEntries){
+        this.backend = backend;
+        this.cache = new LinkedHashMap<String, float[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, float[]> eldest){
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    private static String key(String modelName, int version, String signatureName, MessageDigest digest){
+        return modelName + ":" + version + ":" + signatureName + ":" + Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    private static String key(String modelName, int version, String signatureName, byte[] image){
+        MessageDigest digest = digests.get();
+        digest.update(image);
+        return key(modelName, version, signatureName, digest);
+    }
+
+    /**
+     * @param images The images of a batch, one after the other
+     * @param shape Shape of the batch, the rows and columns are included since the same pixels in another shape are
+     * another image
+     */
+    private static String key(String modelName, int version, String signatureName, byte[] images, int offset, int length, int[] shape){
+        MessageDigest digest = digests.get();
+        digest.update(images, offset, length);
+        if (shape.length > 2) {
+            byte[] dims = new byte[2 * (shape.length - 2)];
+            for (int dim = 1; dim < shape.length - 1; dim++) {
+                dims[2 * (dim - 1)] = (byte) shape[dim];
+                dims[2 * (dim - 1) + 1] = (byte) (shape[dim] >> 8);
+            }
+            digest.update(dims);
+        }
+        return key(modelName, version, signatureName, digest);
+    }
+
+    /**
+     * Copy the cached predictions of the images into the output.
+     *
+     * @return Positions of the images not in the cache, or null if all images were found
+     */
+    private int[] lookup(String[] keys, float[] output, int outputsPerImage){
+        int[] missing = new int[keys.length];
+        int count = 0;
+        synchronized (cache) {
+            for (int i = 0; i < keys.length; i++) {
+                float[] predictions = cache.get(keys[i]);
+                if (predictions != null && predictions.length == outputsPerImage) {
+                    System.arraycopy(predictions, 0, output, i * outputsPerImage, outputsPerImage);
+                } else {
+                    missing[count++] = i;
+                }
+            }
+        }
+        hits.addAndGet(keys.length - count);
+        misses.addAndGet(count);
+        if (count == 0) {
+            return null;
+        }
+        int[] result = new int[count];
+        System.arraycopy(missing, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Store the predictions of the missing images and copy them into the output
+     */
+    private void store(String[] keys, int[] missing, float[] predicted, float[] output, int outputsPerImage){
+        synchronized (cache) {
+            for (int i = 0; i < missing.length; i++) {
+                float[] predictions = new float[outputsPerImage];
+                System.arraycopy(predicted, i * outputsPerImage, predictions, 0, outputsPerImage);
+                cache.put(keys[missing[i]], predictions);
+            }
+        }
+        if (predicted != output) {
+            for (int i = 0; i < missing.length; i++) {
+                System.arraycopy(predicted, i * outputsPerImage, output, missing[i] * outputsPerImage, outputsPerImage);
+            }
+        }
+    }
+
+    @Override
+    public void predict(String modelName, int version, byte[] images, int[] shape, String signatureName, float[] output) throws IOException {
+        int count = shape[0];
+        if (count == 0) {
+            backend.predict(modelName, version, images, shape, signatureName, output);
+            return;
+        }
+        int outputsPerImage = output.length / count;
+        int imageSize = images.length / count;
+        String[] keys = new String[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = key(modelName, version, signatureName, images, i * imageSize, imageSize, shape);
+        }
+
+        int[] missing = lookup(keys, output, outputsPerImage);
+        if (missing == null) {
+            return;
+        }
+        if (missing.length == count) {
+            backend.predict(modelName, version, images, shape, signatureName, output);
+            store(keys, missing, output, output, outputsPerImage);
+            return;
+        }
+
+        byte[] batch = new byte[missing.length * imageSize];
+        for (int i = 0; i < missing.length; i++) {
+            System.arraycopy(images, missing[i] * imageSize, batch, i * imageSize, imageSize);
+        }
+        int[] batchShape = shape.clone();
+        batchShape[0] = missing.length;
+        float[] predicted = new float[missing.length * outputsPerImage];
+        backend.predict(modelName, version, batch, batchShape, signatureName, predicted);
+        store(keys, missing, predicted, output, outputsPerImage);
+    }
+
+    @Override
+    public void predictEncoded(String modelName, int version, byte[][] images, String signatureName, float[] output) throws IOException {
+        // Encoded images are hashed as they are, the same picture encoded differently is another image
+        if (images.length == 0) {
+            backend.predictEncoded(modelName, version, images, signatureName, output);
+            return;
+        }
+        int outputsPerImage = output.length / images.length;
+        String[] keys = new String[images.length];
+        for (int i = 0; i < images.length; i++) {
+            keys[i] = key(modelName, version, signatureName, images[i]);
+        }
+
+        int[] missing = lookup(keys, output, outputsPerImage);
+        if (missing == null) {
+            return;
+        }
+        if (missing.length == images.length) {
+            backend.predictEncoded(modelName, version, images, signatureName, output);
+            store(keys, missing, output, output, outputsPerImage);
+            return;
+        }
+
+        byte[][] batch = new byte[missing.length][];
+        for (int i = 0; i < missing.length; i++) {
+            batch[i] = images[missing[i]];
+        }
+        float[] predicted = new float[missing.length * outputsPerImage];
+        backend.predictEncoded(modelName, version, batch, signatureName, predicted);
+        store(keys, missing, predicted, output, outputsPerImage);
+    }
+
+    @Override
+    public ModelMetadata metadata(String modelName, int version, String signatureName) throws IOException {
+        return backend.metadata(modelName, version, signatureName);
+    }
+
+    /**
+     * @return Number of images answered from the cache
+     */
+    public long hits(){
+        return hits.get();
+    }
+
+    /**
+     * @return Number of images which were not in the cache and had to be predicted
+     */
+    public long misses(){
+        return misses.get();
+    }
+
+    @Override
+    public void close(){
+        logger.info("Prediction cache hits: " + hits() + ", misses: " + misses());
+        backend.close();
+    }
+}
@@ -0,0 +1,184 @@
+package nl.zakarias.constellation.raid.modelServing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of persistent connections, shared by all classifiers using the same backend. For each
+ * TensorFlow Serving endpoint (host and port) at most a bounded number of connections are open at the same time.
+ * Connections that have been idle for longer than the idle timeout are closed by a background thread, and every
+ * connection is checked before it is handed out again.
+ */
+public class ConnectionPool<C extends PooledConnection> {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+    /**
+     * Opens new connections for the pool
+     */
+    public interface Factory<C> {
+        C open(String host, int port, int connectTimeout) throws IOException;
+    }
+
+    private final Factory<C> factory;
+    private final int maxConnectionsPerEndpoint;
+    private final long idleTimeout;
+    private final int connectTimeout;
+
+    private final Map<String, EndpointPool> pools = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    /**
+     * The idle connections and the number of available connection slots for one endpoint
+     */
+    private class EndpointPool {
+        final String host;
+        final int port;
+        final ConcurrentLinkedDeque<C> idle = new ConcurrentLinkedDeque<>();
+        final Semaphore permits = new Semaphore(maxConnectionsPerEndpoint, true);
+
+        EndpointPool(String host, int port){
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    /**
+     * @param factory Opens new connections
+     * @param maxConnectionsPerEndpoint Maximum number of connections open at the same time to one endpoint
+     * @param idleTimeout Time in milliseconds after which an unused connection is closed
+     * @param connectTimeout Time in milliseconds to wait when opening a new connection
+     */
+    public ConnectionPool(Factory<C> factory, int maxConnectionsPerEndpoint, long idleTimeout, int connectTimeout){
+        this.factory = factory;
+        this.maxConnectionsPerEndpoint = maxConnectionsPerEndpoint;
+        this.idleTimeout = idleTimeout;
+        this.connectTimeout = connectTimeout;
+
+        Thread evictor = new Thread(this::evictIdleConnections, "raid-connection-pool-evictor");
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    private EndpointPool pool(String host, int port){
+        return pools.computeIfAbsent(host + ":" + port, key -> new EndpointPool(host, port));
+    }
+
+    /**
+     * Get a connection to the endpoint, reusing an idle one if possible. Blocks while all connections to this
+     * endpoint are in use. The connection *MUST* be given back with {@link #release(PooledConnection)}.
+     *
+     * @param host Hostname of the TensorFlow Serving endpoint
+     * @param port Port of the TensorFlow Serving endpoint
+     * @return An open connection
+     * @throws IOException If no connection could be opened
+     */
+    public C acquire(String host, int port) throws IOException {
+        if (closed) {
+            throw new IOException("Connection pool has been closed");
+        }
+        EndpointPool pool = pool(host, port);
+
+        try {
+            if (!pool.permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for a free connection to " + host + ":" + port);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection to " + host + ":" + port);
+        }
+
+        try {
+            C connection;
+            while ((connection = pool.idle.pollFirst()) != null) {
+                if (System.currentTimeMillis() - connection.lastUsed() < idleTimeout && connection.isHealthy()) {
+                    return connection;
+                }
+                connection.close();
+            }
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Opening new connection to " + host + ":" + port);
+            }
+            return factory.open(host, port, connectTimeout);
+        } catch (IOException | RuntimeException e) {
+            pool.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Give a connection back to the pool after the response has been read completely. Connections the server asked
+     * us to close are discarded.
+     *
+     * @param connection The connection returned by {@link #acquire(String, int)}
+     */
+    public void release(C connection){
+        EndpointPool pool = pools.get(connection.endpoint());
+
+        if (closed || !connection.isKeepAlive() || pool == null) {
+            connection.close();
+        } else {
+            // Most recently used first, so the least used connections will time out
+            pool.idle.addFirst(connection);
+        }
+
+        if (pool != null) {
+            pool.permits.release();
+        }
+    }
+
+    /**
+     * Close and give back a connection which failed during a request, it will not be reused.
+     *
+     * @param connection The connection returned by {@link #acquire(String, int)}
+     */
+    public void discard(C connection){
+        connection.close();
+        release(connection);
+    }
+
+    private void evictIdleConnections(){
+        while (!closed) {
+            try {
+                Thread.sleep(Math.max(idleTimeout / 2, 1000));
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            for (EndpointPool pool : pools.values()) {
+                Iterator<C> it = pool.idle.iterator();
+                while (it.hasNext()) {
+                    C connection = it.next();
+                    if (now - connection.lastUsed() >= idleTimeout && pool.idle.removeFirstOccurrence(connection)) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Closing idle connection to " + connection.endpoint());
+                        }
+                        connection.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Close all idle connections and stop pooling, connections in use are closed when they are released.
+     */
+    public void close(){
+        closed = true;
+        for (EndpointPool pool : pools.values()) {
+            C connection;
+            while ((connection = pool.idle.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+}
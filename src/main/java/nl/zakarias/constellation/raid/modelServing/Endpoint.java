@@ -0,0 +1,155 @@
+package nl.zakarias.constellation.raid.modelServing;
+
+import nl.zakarias.constellation.raid.configuration.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A TensorFlow Serving instance a Predictor sends its predictions to, together with the load and health state used by
+ * {@link BalancedBackend} to choose between instances.
+ *
+ * Each endpoint has a circuit breaker. After {@link Configuration#CIRCUIT_BREAKER_FAILURES} consecutive failures the
+ * circuit opens and no requests are sent to the endpoint for a while, the time doubling every time the circuit opens
+ * again. Once the time has passed the circuit is half open: a single request is let through to probe the endpoint, if
+ * it succeeds the circuit closes again.
+ */
+public class Endpoint {
+    public final String host;
+    /** Port of the REST API */
+    public final int port;
+    /** Port of the gRPC API */
+    public final int grpcPort;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+    /** Moving average of the time a request takes, 0 until the first request completed */
+    private volatile double latency = 0;
+    private final AtomicInteger failures = new AtomicInteger();
+    /** Number of times the circuit opened since the endpoint last succeeded */
+    private volatile int trips = 0;
+    private volatile long openUntil = 0;
+    /** Set while the single request probing a half open circuit is in flight */
+    private final AtomicBoolean probing = new AtomicBoolean();
+
+    /**
+     * @param host Host on which the tensorflow model server is listening
+     * @param port Port number of the REST API of the tensorflow model server
+     * @param grpcPort Port number of the gRPC API of the tensorflow model server
+     */
+    public Endpoint(String host, int port, int grpcPort){
+        this.host = host;
+        this.port = port;
+        this.grpcPort = grpcPort;
+    }
+
+    /**
+     * Parse a comma separated list of endpoints, each written as host:port or host:port:grpcPort. When the gRPC port
+     * is left out the port below the REST port is used, matching the scripts starting TensorFlow Serving.
+     *
+     * @param list The list of endpoints, e.g. localhost:8501,localhost:8503
+     * @return The endpoints in the order of the list
+     * @throws IllegalArgumentException If an endpoint is not written correctly
+     */
+    public static List<Endpoint> parse(String list){
+        List<Endpoint> endpoints = new ArrayList<>();
+        for (String part : list.split(",")) {
+            String[] fields = part.trim().split(":");
+            try {
+                if (fields.length == 2) {
+                    int port = Integer.parseInt(fields[1]);
+                    endpoints.add(new Endpoint(fields[0], port, port - 1));
+                } else if (fields.length == 3) {
+                    endpoints.add(new Endpoint(fields[0], Integer.parseInt(fields[1]), Integer.parseInt(fields[2])));
+                } else {
+                    throw new IllegalArgumentException("Invalid endpoint: " + part + ", expected <host>:<port>[:<grpcPort>]");
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid port in endpoint: " + part, e);
+            }
+        }
+        return endpoints;
+    }
+
+    /**
+     * @return Number of requests sent to this endpoint which have not completed yet
+     */
+    public int outstanding(){
+        return outstanding.get();
+    }
+
+    /**
+     * @return Moving average of the time a request takes in milliseconds, 0 if no request completed yet
+     */
+    public double latency(){
+        return latency;
+    }
+
+    /**
+     * @return False if the circuit of this endpoint is open or half open
+     */
+    public boolean isHealthy(){
+        return failures.get() < Configuration.CIRCUIT_BREAKER_FAILURES;
+    }
+
+    /**
+     * @param now Current time from {@link System#nanoTime()}
+     * @return True if a request may be sent to this endpoint, false if its circuit is open or already being probed
+     */
+    boolean isAvailable(long now){
+        if (isHealthy()) {
+            return true;
+        }
+        return now - openUntil >= 0 && !probing.get();
+    }
+
+    /**
+     * Called before sending a request to this endpoint, after it was found to be available.
+     *
+     * @return False if another thread just started probing the half open circuit of this endpoint
+     */
+    boolean start(){
+        if (!isHealthy() && !probing.compareAndSet(false, true)) {
+            return false;
+        }
+        outstanding.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Called when the endpoint answered a request, with a prediction or an error status
+     *
+     * @param duration Time the request took in nanoseconds
+     */
+    void succeeded(long duration){
+        outstanding.decrementAndGet();
+        double millis = duration / 1000000.;
+        double previous = latency;
+        latency = previous == 0 ? millis : previous + Configuration.ENDPOINT_LATENCY_WEIGHT * (millis - previous);
+        failures.set(0);
+        trips = 0;
+        probing.set(false);
+    }
+
+    /**
+     * Called when the endpoint could not be reached or is overloaded, opens the circuit after too many failures
+     */
+    void failed(){
+        outstanding.decrementAndGet();
+        int count = failures.incrementAndGet();
+        boolean probe = probing.getAndSet(false);
+        // Requests sent before the circuit opened do not keep it open for longer
+        if (count == Configuration.CIRCUIT_BREAKER_FAILURES || probe) {
+            int tripped = Math.min(trips + 1, 16);
+            trips = tripped;
+            long interval = Math.min((long) Configuration.ENDPOINT_RETRY_INTERVAL << (tripped - 1), Configuration.ENDPOINT_MAX_RETRY_INTERVAL);
+            openUntil = System.nanoTime() + interval * 1000000;
+        }
+    }
+
+    @Override
+    public String toString(){
+        return host + ":" + port;
+    }
+}
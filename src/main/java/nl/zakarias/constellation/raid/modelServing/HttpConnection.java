@@ -0,0 +1,406 @@
+package nl.zakarias.constellation.raid.modelServing;
+
+import nl.zakarias.constellation.raid.configuration.Configuration;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single persistent HTTP/1.1 connection to a TensorFlow Serving endpoint. Connections are handed out by the
+ * {@link ConnectionPool} and must be given back to it when a request/response exchange has completed, so the
+ * underlying socket can be reused by the next request.
+ */
+public class HttpConnection implements PooledConnection {
+    private final String host;
+    private final int port;
+
+    private final Socket socket;
+    private final BufferedInputStream in;
+    private final BufferedOutputStream out;
+
+    private long lastUsed;
+    private boolean keepAlive = true;
+    private boolean reused = false;
+
+    /**
+     * Wraps every write in a HTTP/1.1 chunk, used when the length of the body is not known in advance
+     */
+    private static class ChunkedOutputStream extends FilterOutputStream {
+        ChunkedOutputStream(OutputStream out){
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(b, off, len);
+            out.write(CRLF);
+        }
+
+        /**
+         * Write the last chunk, does not close the underlying connection
+         */
+        @Override
+        public void close() throws IOException {
+            out.write(LAST_CHUNK);
+        }
+    }
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The status of a HTTP response. The body is streamed from the connection and has to be read (or drained) before
+     * the connection is given back to the pool.
+     */
+    public static class Response {
+        public final int code;
+        private final InputStream body;
+
+        Response(int code, InputStream body){
+            this.code = code;
+            this.body = body;
+        }
+
+        /**
+         * @return The body of the response, ends where the response ends
+         */
+        public InputStream body(){
+            return body;
+        }
+
+        public String bodyAsString() throws IOException {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = body.read(buffer)) != -1) {
+                result.write(buffer, 0, n);
+            }
+            return new String(result.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Skip whatever is left of the body, so the next response can be read from the connection
+         */
+        void drain() throws IOException {
+            byte[] buffer = new byte[8192];
+            while (body.read(buffer) != -1) {
+                // discard
+            }
+        }
+    }
+
+    /**
+     * Body of a response with a Content-Length header
+     */
+    private class FixedLengthInputStream extends InputStream {
+        private long remaining;
+
+        FixedLengthInputStream(long length){
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Connection closed by " + endpoint() + " in the middle of a response");
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) {
+                throw new EOFException("Connection closed by " + endpoint() + " in the middle of a response");
+            }
+            remaining -= n;
+            return n;
+        }
+    }
+
+    /**
+     * Body of a response sent with chunked transfer encoding
+     */
+    private class ChunkedInputStream extends InputStream {
+        private int remaining = 0;
+        private boolean done = false;
+
+        /**
+         * @return False if the last chunk has been read
+         */
+        private boolean nextChunk() throws IOException {
+            if (done) {
+                return false;
+            }
+            if (remaining == 0) {
+                String sizeLine = readLine();
+                if (sizeLine == null) {
+                    throw new EOFException("Connection closed by " + endpoint() + " in the middle of a response");
+                }
+                if (sizeLine.isEmpty()) {
+                    // CRLF at the end of the previous chunk
+                    sizeLine = readLine();
+                    if (sizeLine == null) {
+                        throw new EOFException("Connection closed by " + endpoint() + " in the middle of a response");
+                    }
+                }
+                int semicolon = sizeLine.indexOf(';');
+                remaining = Integer.parseInt((semicolon < 0 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+                if (remaining == 0) {
+                    // Skip trailers
+                    String trailer;
+                    while ((trailer = readLine()) != null && !trailer.isEmpty()) {
+                        // ignore
+                    }
+                    done = true;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Connection closed by " + endpoint() + " in the middle of a response");
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            int n = in.read(b, off, Math.min(len, remaining));
+            if (n == -1) {
+                throw new EOFException("Connection closed by " + endpoint() + " in the middle of a response");
+            }
+            remaining -= n;
+            return n;
+        }
+    }
+
+    HttpConnection(String host, int port, int connectTimeout) throws IOException {
+        this.host = host;
+        this.port = port;
+
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        socket.connect(new InetSocketAddress(host, port), connectTimeout);
+        // A server which stops answering fails the request instead of blocking the Activity forever
+        socket.setSoTimeout(Configuration.REQUEST_TIMEOUT);
+
+        in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+        out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        lastUsed = System.currentTimeMillis();
+    }
+
+    @Override
+    public String endpoint(){
+        return host + ":" + port;
+    }
+
+    @Override
+    public long lastUsed(){
+        return lastUsed;
+    }
+
+    @Override
+    public boolean isReused(){
+        return reused;
+    }
+
+    @Override
+    public boolean isKeepAlive(){
+        return keepAlive;
+    }
+
+    /**
+     * Checked without blocking on every acquire, the pool has already dropped connections idle for too long. A
+     * connection with data pending was sent something in between requests (e.g. the server closing it) and is
+     * discarded. A connection closed silently by the server is only noticed when the request fails, which
+     * {@link API} retries once on a new connection.
+     */
+    @Override
+    public boolean isHealthy(){
+        if (!keepAlive || socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()){
+            return false;
+        }
+
+        try {
+            // Nothing should be sent to us in between requests
+            return in.available() == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void writeHead(String method, String path, String contentType, long contentLength, boolean chunked) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(host).append(':').append(port).append("\r\n");
+        head.append("Connection: keep-alive\r\n");
+        if (contentType != null) {
+            head.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        if (contentLength >= 0) {
+            head.append("Content-Length: ").append(contentLength).append("\r\n");
+        } else if (chunked) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        }
+        head.append("\r\n");
+
+        out.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Send a POST request and wait for the complete response. Bodies of unknown length are sent with chunked
+     * transfer encoding.
+     *
+     * @param path The path on the server, e.g. /v1/models/mnist:predict
+     * @param contentType The content type of the body
+     * @param body The body of the request
+     * @return The response from the server
+     * @throws IOException If the connection fails or the response is malformed
+     */
+    Response post(String path, String contentType, RequestBody body) throws IOException {
+        long contentLength = body.contentLength();
+        writeHead("POST", path, contentType, contentLength, contentLength < 0);
+        if (contentLength < 0) {
+            ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+            body.writeTo(chunked);
+            chunked.close();
+        } else {
+            body.writeTo(out);
+        }
+        out.flush();
+
+        return readResponse();
+    }
+
+    /**
+     * Send a GET request and wait for the complete response.
+     *
+     * @param path The path on the server, e.g. /v1/models/mnist/metadata
+     * @return The response from the server
+     * @throws IOException If the connection fails or the response is malformed
+     */
+    Response get(String path) throws IOException {
+        writeHead("GET", path, null, -1, false);
+        out.flush();
+
+        return readResponse();
+    }
+
+    private Response readResponse() throws IOException {
+        String statusLine;
+        int code;
+
+        // Skip any interim (1xx) responses
+        do {
+            statusLine = readLine();
+            if (statusLine == null) {
+                throw new EOFException("Connection closed by " + endpoint() + " before a response was received");
+            }
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2) {
+                throw new IOException("Malformed HTTP status line from " + endpoint() + ": " + statusLine);
+            }
+            code = Integer.parseInt(parts[1]);
+            keepAlive = !statusLine.startsWith("HTTP/1.0");
+
+            long contentLength = -1;
+            boolean chunked = false;
+
+            String header;
+            while ((header = readLine()) != null && !header.isEmpty()) {
+                int colon = header.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = header.substring(0, colon).trim();
+                String value = header.substring(colon + 1).trim();
+
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.toLowerCase().contains("chunked");
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    keepAlive = !value.equalsIgnoreCase("close");
+                }
+            }
+
+            if (code >= 100 && code < 200) {
+                continue;
+            }
+
+            reused = true;
+            lastUsed = System.currentTimeMillis();
+
+            if (chunked) {
+                return new Response(code, new ChunkedInputStream());
+            } else if (contentLength >= 0) {
+                return new Response(code, new FixedLengthInputStream(contentLength));
+            }
+
+            // Body is delimited by the server closing the connection
+            keepAlive = false;
+            return new Response(code, in);
+        } while (true);
+    }
+
+    /**
+     * @return A line of the HTTP head without the line terminator, or null on EOF
+     */
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int len = line.length();
+                if (len > 0 && line.charAt(len - 1) == '\r') {
+                    line.setLength(len - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    @Override
+    public void close() {
+        keepAlive = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore, we are discarding this connection anyway
+        }
+    }
+}
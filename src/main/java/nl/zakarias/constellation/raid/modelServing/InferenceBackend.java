@@ -0,0 +1,52 @@
+package nl.zakarias.constellation.raid.modelServing;
+
+import java.io.IOException;
+
+/**
+ * A way of running a model on a batch of images. The classifiers do not depend on how the prediction is made, the
+ * backend used for each model is chosen at runtime through {@link InferenceBackends}.
+ */
+public interface InferenceBackend {
+    /**
+     * Make a prediction on a batch of images stored one after the other in a single array, in row major order. For
+     * example, a batch of 2 RGB images of 608x608 pixels has shape {2, 608, 608, 3}.
+     *
+     * @param modelName Model name, as known by TensorFlow Serving
+     * @param version Model version number, 0 for the latest version
+     * @param images The pixel values of the batch, exactly as many as the shape holds
+     * @param shape Shape of the batch, the first dimension is the number of images
+     * @param signatureName Signature of the model to use
+     * @param output Preallocated array receiving the predictions of the batch, flattened in row major order
+     * @throws IOException If the prediction could not be made
+     */
+    void predict(String modelName, int version, byte[] images, int[] shape, String signatureName, float[] output) throws IOException;
+
+    /**
+     * Make a prediction on a batch of encoded images, each holding the bytes of a JPEG or PNG file. The images are
+     * decoded by the model, which must have been exported with a signature taking a DT_STRING input.
+     *
+     * @param modelName Model name, as known by TensorFlow Serving
+     * @param version Model version number, 0 for the latest version
+     * @param images A batch of encoded images to classify
+     * @param signatureName Signature of the model to use, taking encoded images
+     * @param output Preallocated array receiving the predictions of the batch, flattened in row major order
+     * @throws IOException If the prediction could not be made
+     */
+    void predictEncoded(String modelName, int version, byte[][] images, String signatureName, float[] output) throws IOException;
+
+    /**
+     * Look up the input and output shapes of a model signature.
+     *
+     * @param modelName Model name, as known by TensorFlow Serving
+     * @param version Model version number, 0 for the latest version
+     * @param signatureName Signature of the model to use
+     * @return The shapes of the signature
+     * @throws IOException If the metadata could not be retrieved
+     */
+    ModelMetadata metadata(String modelName, int version, String signatureName) throws IOException;
+
+    /**
+     * Release all connections and other resources held by this backend
+     */
+    void close();
+}
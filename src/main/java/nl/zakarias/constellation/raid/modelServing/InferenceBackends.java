@@ -0,0 +1,284 @@
+package nl.zakarias.constellation.raid.modelServing;
+
+import nl.zakarias.constellation.raid.configuration.Configuration;
+import nl.zakarias.constellation.raid.modelServing.grpc.GrpcBackend;
+import nl.zakarias.constellation.raid.modelServing.tensorflow.TensorFlowBackend;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Keeps track of which {@link InferenceBackend} is used for each model in this process. Backends are selected with the
+ * -backend argument of the Predictor, models without a selection use {@link Configuration#DEFAULT_BACKEND}. Each
+ * backend is created once, when the first model using it makes a prediction. When batching is enabled the backends
+ * are wrapped in a {@link BatchingBackend}, merging the predictions of concurrently running Activities. When the
+ * prediction cache is enabled they are wrapped in a {@link CachingBackend}, answering images seen before.
+ *
+ * The REST and gRPC backends connect to the TensorFlow Serving endpoints given with the -endpoints argument, or the
+ * environment variable TENSORFLOW_SERVING_ENDPOINTS. Without either, the single instance on localhost at
+ * TENSORFLOW_SERVING_PORT is used. The endpoints are combined in a {@link BalancedBackend}, which also retries
+ * predictions failing on an unavailable endpoint and stops sending predictions to endpoints that keep failing.
+ */
+public class InferenceBackends {
+    private static final Logger logger = LoggerFactory.getLogger(InferenceBackends.class);
+
+    private static final Map<Configuration.ModelName, Configuration.Backend> selected = new ConcurrentHashMap<>();
+    private static final Map<Configuration.Backend, InferenceBackend> backends = new ConcurrentHashMap<>();
+    private static final Map<String, ModelMetadata> metadata = new ConcurrentHashMap<>();
+
+    private static volatile Configuration.Backend defaultBackend = Configuration.DEFAULT_BACKEND;
+    private static volatile int maxBatchSize = Configuration.MAX_BATCH_SIZE;
+    private static volatile int maxBatchDelay = Configuration.MAX_BATCH_DELAY;
+    private static volatile int resultCacheSize = Configuration.RESULT_CACHE_SIZE;
+    private static volatile List<Endpoint> endpoints = null;
+    private static volatile Configuration.Balancing balancing = Configuration.DEFAULT_BALANCING;
+    private static volatile int maxRetries = Configuration.MAX_RETRIES;
+    private static volatile boolean hedging = Configuration.HEDGING;
+    private static volatile boolean decodeImages = Configuration.DECODE_IMAGES;
+
+    /**
+     * Select the backends from the -backend argument. Either a single backend used for all models (e.g. GRPC), or a
+     * comma separated list of models and backends (e.g. MNIST=GRPC,YOLO=REST).
+     *
+     * @param selection The value of the -backend argument
+     * @throws IllegalArgumentException If a model or backend does not exist
+     */
+    public static void configure(String selection){
+        for (String part : selection.split(",")) {
+            String[] pair = part.trim().split("=");
+            try {
+                if (pair.length == 1) {
+                    defaultBackend = Configuration.Backend.valueOf(pair[0].toUpperCase());
+                } else if (pair.length == 2) {
+                    selected.put(Configuration.ModelName.valueOf(pair[0].toUpperCase()), Configuration.Backend.valueOf(pair[1].toUpperCase()));
+                } else {
+                    throw new IllegalArgumentException("Invalid backend selection: " + part);
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid backend selection: " + part + ", expected <MODEL>=[ "
+                        + Configuration.backendValues() + "]", e);
+            }
+        }
+    }
+
+    /**
+     * Set how predictions of concurrently running Activities are merged, must be called before the first prediction.
+     *
+     * @param maxBatchSize Maximum number of images in a single prediction, 1 disables batching
+     * @param maxBatchDelay Maximum time in milliseconds to wait for other Activities to join a batch
+     */
+    public static void configureBatching(int maxBatchSize, int maxBatchDelay){
+        InferenceBackends.maxBatchSize = maxBatchSize;
+        InferenceBackends.maxBatchDelay = maxBatchDelay;
+    }
+
+    /**
+     * Set the size of the prediction cache, must be called before the first prediction.
+     *
+     * @param resultCacheSize Number of images of which the predictions are kept, 0 disables the cache
+     */
+    public static void configureCache(int resultCacheSize){
+        InferenceBackends.resultCacheSize = resultCacheSize;
+    }
+
+    /**
+     * Set the TensorFlow Serving instances used by the REST and gRPC backends, must be called before the first
+     * prediction.
+     *
+     * @param list Comma separated list of endpoints, see {@link Endpoint#parse(String)}
+     * @throws IllegalArgumentException If an endpoint is not written correctly
+     */
+    public static void configureEndpoints(String list){
+        InferenceBackends.endpoints = Endpoint.parse(list);
+    }
+
+    /**
+     * Set how predictions are spread over several endpoints, must be called before the first prediction.
+     *
+     * @param balancing How to choose an endpoint for each prediction
+     */
+    public static void configureBalancing(Configuration.Balancing balancing){
+        InferenceBackends.balancing = balancing;
+    }
+
+    /**
+     * Set how failing and slow predictions are handled, must be called before the first prediction.
+     *
+     * @param maxRetries Number of times a prediction is retried when an endpoint is unavailable
+     * @param hedging Whether to send a duplicate of slow predictions to a second endpoint
+     */
+    public static void configureRequests(int maxRetries, boolean hedging){
+        InferenceBackends.maxRetries = maxRetries;
+        InferenceBackends.hedging = hedging;
+    }
+
+    /**
+     * Set where encoded images (e.g. JPEG files) are decoded, must be called before the first prediction.
+     *
+     * @param decodeImages Whether Activities decode and fit encoded images on this Predictor, instead of sending the
+     *                     files to the encoded signature of the model
+     */
+    public static void configureDecoding(boolean decodeImages){
+        InferenceBackends.decodeImages = decodeImages;
+    }
+
+    /**
+     * @return Whether Activities carrying encoded images decode them on this Predictor and predict on the pixels
+     */
+    public static boolean decodeImages(){
+        return decodeImages;
+    }
+
+    /**
+     * @param modelName The model to make predictions with
+     * @return The backend selected for this model
+     */
+    public static InferenceBackend get(Configuration.ModelName modelName){
+        Configuration.Backend backend = selected.getOrDefault(modelName, defaultBackend);
+        return backends.computeIfAbsent(backend, InferenceBackends::create);
+    }
+
+    /**
+     * Get the input and output shapes of a model. The metadata is retrieved from the backend once for every version
+     * of the model and kept for the lifetime of the process.
+     *
+     * @param model The model to make predictions with
+     * @param modelName Model name, as known by TensorFlow Serving
+     * @param version Model version number, 0 for the latest version
+     * @param signatureName Signature of the model to use
+     * @return The shapes of the signature
+     * @throws IOException If the metadata could not be retrieved
+     */
+    public static ModelMetadata metadata(Configuration.ModelName model, String modelName, int version, String signatureName) throws IOException {
+        String key = model + ":" + modelName + ":" + version + ":" + signatureName;
+        ModelMetadata cached = metadata.get(key);
+        if (cached == null) {
+            cached = get(model).metadata(modelName, version, signatureName);
+            metadata.put(key, cached);
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Metadata of " + modelName + " version " + version + ": " + cached);
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Retrieve the metadata of a model and make a prediction on a single blank image, so the model is loaded and
+     * initialized before the first Activity arrives. The prediction is skipped when the input shape is unknown.
+     *
+     * @param model The model to warm up
+     * @param version Model version number, 0 for the latest version
+     * @throws IOException If the metadata could not be retrieved or the prediction failed
+     */
+    public static void warmup(Configuration.ModelName model, int version) throws IOException {
+        String modelName = model.toString().toLowerCase(); // Matches tensorflow_serving
+        ModelMetadata modelMetadata = metadata(model, modelName, version, Configuration.SIGNATURE_NAME);
+
+        int[] input = modelMetadata.inputShape();
+        int[] output = modelMetadata.outputShape();
+        if (input == null || output == null) {
+            logger.info("Not warming up " + modelName + ", the shape of its " + modelMetadata + " is not supported");
+            return;
+        }
+
+        int[] shape = new int[input.length + 1];
+        shape[0] = 1;
+        System.arraycopy(input, 0, shape, 1, input.length);
+        float[] predictions = new float[ModelMetadata.size(output)];
+        get(model).predict(modelName, version, new byte[ModelMetadata.size(input)], shape, Configuration.SIGNATURE_NAME, predictions);
+    }
+
+    private static InferenceBackend create(Configuration.Backend backend){
+        if (logger.isDebugEnabled()) {
+            logger.debug("Creating " + backend + " inference backend");
+        }
+        InferenceBackend created = createBackend(backend);
+        if (maxBatchSize > 1) {
+            created = new BatchingBackend(created, maxBatchSize, maxBatchDelay);
+        }
+        if (resultCacheSize > 0) {
+            created = new CachingBackend(created, resultCacheSize);
+        }
+        return created;
+    }
+
+    private static InferenceBackend createBackend(Configuration.Backend backend){
+        switch (backend) {
+            case REST:
+                return balanced(endpoint -> new RestBackend(endpoint.host, endpoint.port));
+            case GRPC:
+                return balanced(endpoint -> new GrpcBackend(endpoint.host, endpoint.grpcPort));
+            case TENSORFLOW:
+                String configFile = System.getenv("TENSORFLOW_SERVING_CONFIG");
+                if (configFile == null) {
+                    throw new Error("Environment variable TENSORFLOW_SERVING_CONFIG has not been set");
+                }
+                try {
+                    return new TensorFlowBackend(configFile);
+                } catch (IOException e) {
+                    throw new Error("Could not read TensorFlow model config file: " + e.getMessage());
+                }
+            default:
+                throw new Error("No inference backend implemented for: " + backend);
+        }
+    }
+
+    /**
+     * @param factory Creates the backend for a single endpoint
+     * @return A backend balancing the predictions over all endpoints
+     */
+    private static InferenceBackend balanced(Function<Endpoint, InferenceBackend> factory){
+        List<Endpoint> list = endpoints();
+        if (list.size() > 1) {
+            logger.info("Balancing predictions over " + list + " by " + balancing + (hedging ? ", hedging slow predictions" : ""));
+        }
+        return new BalancedBackend(list, factory, balancing, maxRetries, hedging);
+    }
+
+    /**
+     * @return The endpoints given with -endpoints or TENSORFLOW_SERVING_ENDPOINTS, or the local TensorFlow Serving
+     */
+    private static List<Endpoint> endpoints(){
+        if (endpoints != null) {
+            return endpoints;
+        }
+        String list = System.getenv("TENSORFLOW_SERVING_ENDPOINTS");
+        if (list != null && !list.trim().isEmpty()) {
+            return Endpoint.parse(list);
+        }
+        return Collections.singletonList(new Endpoint("localhost", restPort(), grpcPort()));
+    }
+
+    /**
+     * @return Port of the REST API of TensorFlow Serving, from the environment variable TENSORFLOW_SERVING_PORT
+     */
+    private static int restPort(){
+        return Integer.parseInt(System.getenv("TENSORFLOW_SERVING_PORT"));
+    }
+
+    /**
+     * @return Port of the gRPC API of TensorFlow Serving, from the environment variable TENSORFLOW_SERVING_GRPC_PORT.
+     * When not set the port below the REST port is used, matching the scripts starting TensorFlow Serving.
+     */
+    private static int grpcPort(){
+        String port = System.getenv("TENSORFLOW_SERVING_GRPC_PORT");
+        return port != null ? Integer.parseInt(port) : restPort() - 1;
+    }
+
+    /**
+     * Close all backends created in this process, called when the process is shutting down.
+     */
+    public static void closeAll(){
+        for (InferenceBackend backend : backends.values()) {
+            backend.close();
+        }
+        backends.clear();
+    }
+}
@@ -0,0 +1,207 @@
+package nl.zakarias.constellation.raid.modelServing;
+
+import nl.zakarias.constellation.raid.configuration.Configuration;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Writes the body of a TensorFlow Serving predict request, {"signature_name":"...","instances":[...]}, directly from
+ * the byte array holding the images into the request stream, as nested arrays following the shape of the batch. No
+ * intermediate int arrays or JSON String are created, pixel values are written from a lookup table with their decimal
+ * representation. Encoded images are written as
+ * {"b64":"..."} instances, which TensorFlow Serving decodes to a DT_STRING tensor.
+ */
+class JsonRequestEncoder implements RequestBody {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** ASCII decimal representation of all unsigned byte values */
+    private static final byte[][] DIGITS = new byte[256][];
+
+    static {
+        for (int i = 0; i < DIGITS.length; i++) {
+            DIGITS[i] = Integer.toString(i).getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static final byte[] B64_HEAD = "{\"b64\":\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] B64_TAIL = "\"}".getBytes(StandardCharsets.US_ASCII);
+    private static final Base64.Encoder BASE64 = Base64.getEncoder();
+
+    private final byte[] head;
+    /** Encoded JPEG or PNG files, or null when sending pixel values */
+    private final byte[][] encodedImages;
+    private final byte[] images;
+    private final int[] shape;
+
+    private OutputStream out;
+    private byte[] buffer;
+    private int pos;
+
+    /**
+     * @param signatureName Signature of the model to use
+     * @param images A batch of images stored one after the other, in row major order
+     * @param shape Shape of the batch, the first dimension is the number of images
+     */
+    JsonRequestEncoder(String signatureName, byte[] images, int[] shape){
+        this.head = head(signatureName);
+        this.encodedImages = null;
+        this.images = images;
+        this.shape = shape;
+    }
+
+    /**
+     * @param signatureName Signature of the model to use, taking encoded images
+     * @param encodedImages A batch of encoded images, each holding the bytes of a JPEG or PNG file
+     */
+    JsonRequestEncoder(String signatureName, byte[][] encodedImages){
+        this.head = head(signatureName);
+        this.encodedImages = encodedImages;
+        this.images = null;
+        this.shape = null;
+    }
+
+    private static byte[] head(String signatureName){
+        String escaped = signatureName.replace("\\", "\\\\").replace("\"", "\\\"");
+        return ("{\"signature_name\":\"" + escaped + "\",\"instances\":").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return -1 when streaming with chunked transfer encoding, otherwise the exact length of the body
+     */
+    @Override
+    public long contentLength(){
+        return Configuration.HTTP_CHUNKED_REQUESTS ? -1 : countLength();
+    }
+
+    /**
+     * Counts the exact number of bytes {@link #writeTo(OutputStream)} will write, without writing anything.
+     *
+     * @return The length of the request body in bytes
+     */
+    long countLength(){
+        long length = head.length + 1; // closing }
+        if (encodedImages != null) {
+            length += arrayLength(encodedImages.length);
+            for (byte[] image : encodedImages) {
+                length += B64_HEAD.length + base64Length(image.length) + B64_TAIL.length;
+            }
+        } else {
+            // Every dimension adds the brackets and separators of its arrays
+            long arrays = 1;
+            for (int dim = 0; dim < shape.length; dim++) {
+                length += arrays * arrayLength(shape[dim]);
+                arrays *= shape[dim];
+            }
+            for (byte value : images) {
+                length += DIGITS[value & 0xff].length;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @param elements Number of elements in a JSON array
+     * @return Number of bytes for the brackets and separators of the array
+     */
+    private static long arrayLength(int elements){
+        return 2 + Math.max(elements - 1, 0);
+    }
+
+    private static long base64Length(int bytes){
+        return 4L * ((bytes + 2) / 3);
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        this.out = out;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.pos = 0;
+
+        put(head);
+        if (encodedImages != null) {
+            put('[');
+            for (int i = 0; i < encodedImages.length; i++) {
+                if (i > 0) put(',');
+                put(B64_HEAD);
+                put(BASE64.encode(encodedImages[i]));
+                put(B64_TAIL);
+            }
+            put(']');
+        } else {
+            putNested(0, 0);
+        }
+        put('}');
+
+        flushBuffer();
+        this.buffer = null;
+        this.out = null;
+    }
+
+    /**
+     * Write the images as nested arrays, one level for every dimension of the shape
+     *
+     * @param dim Dimension to write
+     * @param offset Position of the first value of the array in the images
+     * @return Position following the last value written
+     */
+    private int putNested(int dim, int offset) throws IOException {
+        if (dim == shape.length - 1) {
+            putValues(offset, shape[dim]);
+            return offset + shape[dim];
+        }
+        put('[');
+        for (int i = 0; i < shape[dim]; i++) {
+            if (i > 0) put(',');
+            offset = putNested(dim + 1, offset);
+        }
+        put(']');
+        return offset;
+    }
+
+    private void putValues(int offset, int length) throws IOException {
+        put('[');
+        for (int i = offset; i < offset + length; i++) {
+            // At most a separator and three digits
+            if (pos + 4 > buffer.length) {
+                flushBuffer();
+            }
+            if (i > offset) {
+                buffer[pos++] = ',';
+            }
+            byte[] digits = DIGITS[images[i] & 0xff];
+            for (byte digit : digits) {
+                buffer[pos++] = digit;
+            }
+        }
+        put(']');
+    }
+
+    private void put(char c) throws IOException {
+        if (pos == buffer.length) {
+            flushBuffer();
+        }
+        buffer[pos++] = (byte) c;
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        if (pos + bytes.length > buffer.length) {
+            flushBuffer();
+        }
+        if (bytes.length > buffer.length) {
+            out.write(bytes);
+            return;
+        }
+        System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0) {
+            out.write(buffer, 0, pos);
+            pos = 0;
+        }
+    }
+}
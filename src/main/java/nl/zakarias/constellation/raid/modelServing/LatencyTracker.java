@@ -0,0 +1,49 @@
+package nl.zakarias.constellation.raid.modelServing;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the durations of the most recent requests to estimate a percentile of the latency. The percentile is
+ * recomputed after every few recorded requests instead of on every lookup.
+ */
+class LatencyTracker {
+    private static final int SAMPLES = 512;
+    private static final int RECOMPUTE_INTERVAL = 32;
+
+    private final double percentile;
+    private final long[] samples = new long[SAMPLES];
+    private int count = 0;
+    private int next = 0;
+    private int sinceRecompute = 0;
+    private volatile long estimate = -1;
+
+    /**
+     * @param percentile The percentile to estimate, between 0 and 1
+     */
+    LatencyTracker(double percentile){
+        this.percentile = percentile;
+    }
+
+    /**
+     * @param duration Time a request took in nanoseconds
+     */
+    synchronized void record(long duration){
+        samples[next] = duration;
+        next = (next + 1) % SAMPLES;
+        count = Math.min(count + 1, SAMPLES);
+
+        if (++sinceRecompute >= RECOMPUTE_INTERVAL) {
+            sinceRecompute = 0;
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            estimate = sorted[Math.min((int) (percentile * count), count - 1)];
+        }
+    }
+
+    /**
+     * @return The estimated percentile in nanoseconds, or -1 if too few requests have been recorded
+     */
+    long estimate(){
+        return estimate;
+    }
+}
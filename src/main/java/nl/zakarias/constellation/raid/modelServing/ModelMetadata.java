@@ -0,0 +1,139 @@
+package nl.zakarias.constellation.raid.modelServing;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import nl.zakarias.constellation.raid.modelServing.protobuf.Signature;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Shapes of the input and output tensor of a model signature, as reported by the model server. The shapes exclude the
+ * batch dimension, so they describe a single image and the predictions for a single image. A shape is null when the
+ * server does not report it, or when it contains dimensions of any size besides the batch dimension.
+ */
+public class ModelMetadata {
+    private final int[] inputShape;
+    private final int[] outputShape;
+
+    /**
+     * @param inputShape Shape of the input including the batch dimension, -1 for dimensions of any size, or null
+     * @param outputShape Shape of the output including the batch dimension, -1 for dimensions of any size, or null
+     */
+    public ModelMetadata(long[] inputShape, long[] outputShape){
+        this.inputShape = perImage(inputShape);
+        this.outputShape = perImage(outputShape);
+    }
+
+    /**
+     * @param signature A signature read from the protobuf metadata of a model
+     * @return The shapes of the signature
+     */
+    public static ModelMetadata fromSignature(Signature signature){
+        return new ModelMetadata(signature.inputShape, signature.outputShape);
+    }
+
+    /**
+     * Read the shapes from the response of the REST metadata API of TensorFlow Serving,
+     * {"metadata": {"signature_def": {"signature_def": {"predict": {"inputs": {...}, "outputs": {...}}}}}}
+     *
+     * @param json Body of the metadata response
+     * @param signatureName Name of the signature
+     * @return The shapes of the signature
+     * @throws IOException If the response is malformed or does not contain the signature
+     */
+    static ModelMetadata fromJson(String json, String signatureName) throws IOException {
+        try {
+            JsonObject signatures = JsonParser.parseString(json).getAsJsonObject()
+                    .getAsJsonObject("metadata")
+                    .getAsJsonObject("signature_def")
+                    .getAsJsonObject("signature_def");
+            JsonObject signature = signatures == null ? null : signatures.getAsJsonObject(signatureName);
+            if (signature == null) {
+                throw new IOException("Model has no signature named " + signatureName);
+            }
+            return new ModelMetadata(onlyShape(signature.getAsJsonObject("inputs")), onlyShape(signature.getAsJsonObject("outputs")));
+        } catch (JsonParseException | IllegalStateException | ClassCastException | NullPointerException e) {
+            throw new IOException("Could not read model metadata: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param tensors Map of tensor aliases to TensorInfo objects
+     * @return The shape of the only tensor in the map, or null if the map does not hold exactly one tensor
+     */
+    private static long[] onlyShape(JsonObject tensors){
+        if (tensors == null || tensors.size() != 1) {
+            return null;
+        }
+        JsonObject shape = tensors.entrySet().iterator().next().getValue().getAsJsonObject().getAsJsonObject("tensor_shape");
+        if (shape == null || (shape.has("unknown_rank") && shape.get("unknown_rank").getAsBoolean())) {
+            return null;
+        }
+
+        JsonArray dims = shape.has("dim") ? shape.getAsJsonArray("dim") : new JsonArray();
+        long[] result = new long[dims.size()];
+        for (int i = 0; i < result.length; i++) {
+            // int64 values are encoded as strings
+            result[i] = dims.get(i).getAsJsonObject().get("size").getAsLong();
+        }
+        return result;
+    }
+
+    private static int[] perImage(long[] shape){
+        if (shape == null || shape.length == 0) {
+            return null;
+        }
+        int[] result = new int[shape.length - 1];
+        for (int i = 0; i < result.length; i++) {
+            if (shape[i + 1] < 0) {
+                return null;
+            }
+            result[i] = (int) shape[i + 1];
+        }
+        return result;
+    }
+
+    /**
+     * @return Shape of a single input image, or null if unknown
+     */
+    public int[] inputShape(){
+        return inputShape;
+    }
+
+    /**
+     * @param fallback Shape to use when the server did not report the output shape
+     * @return Shape of the predictions for a single image
+     */
+    public int[] outputShape(int... fallback){
+        return outputShape != null ? outputShape : fallback;
+    }
+
+    /**
+     * @param fallback Shape to use when the server did not report the output shape
+     * @return Number of predicted values for a single image
+     */
+    public int outputSize(int... fallback){
+        return size(outputShape(fallback));
+    }
+
+    /**
+     * @param shape Shape of a tensor
+     * @return Number of elements in the tensor
+     */
+    public static int size(int[] shape){
+        int size = 1;
+        for (int dim : shape) {
+            size *= dim;
+        }
+        return size;
+    }
+
+    @Override
+    public String toString(){
+        return "input " + (inputShape == null ? "unknown" : Arrays.toString(inputShape))
+                + ", output " + (outputShape == null ? "unknown" : Arrays.toString(outputShape));
+    }
+}
@@ -0,0 +1,28 @@
+package nl.zakarias.constellation.raid.modelServing;
+
+import java.io.IOException;
+
+/**
+ * Thrown when TensorFlow Serving was reached, but answered a request with an error status.
+ */
+public class ModelServingException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int code;
+
+    /**
+     * @param code The HTTP status code of the response, or the gRPC status code of a call
+     * @param message Description of the error, including the body of the response
+     */
+    public ModelServingException(int code, String message){
+        super(message);
+        this.code = code;
+    }
+
+    /**
+     * @return The HTTP or gRPC status code returned by the server
+     */
+    public int code(){
+        return code;
+    }
+}
@@ -0,0 +1,38 @@
+package nl.zakarias.constellation.raid.modelServing;
+
+import java.io.Closeable;
+
+/**
+ * A persistent connection to a TensorFlow Serving endpoint which can be kept in a {@link ConnectionPool}
+ */
+public interface PooledConnection extends Closeable {
+    /**
+     * @return The host and port this connection is connected to, as host:port
+     */
+    String endpoint();
+
+    /**
+     * @return Time in milliseconds since the epoch when this connection was last used
+     */
+    long lastUsed();
+
+    /**
+     * @return True if this connection has been used for at least one earlier request
+     */
+    boolean isReused();
+
+    /**
+     * @return True if the server allows us to keep using this connection
+     */
+    boolean isKeepAlive();
+
+    /**
+     * Check that the connection is still usable before handing it out again.
+     *
+     * @return True if the connection can be used for another request
+     */
+    boolean isHealthy();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,291 @@
+package nl.zakarias.constellation.raid.modelServing;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Pull based decoder for TensorFlow Serving predict responses, {"predictions": [...]}. The (nested) arrays of numbers
+ * in the predictions field are read straight from the response bytes into a flat, preallocated float array in row
+ * major order. No reflection, Strings or intermediate JSON tree are used.
+ */
+class PredictionDecoder {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Powers of ten used when parsing numbers, covers the exponents that fit in a float */
+    private static final double[] POWERS_OF_TEN = new double[64];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+
+    private PredictionDecoder(InputStream in){
+        this.in = in;
+    }
+
+    /**
+     * Decode the predictions in a response into the output array.
+     *
+     * @param in The body of the response
+     * @param output Preallocated array, must have exactly as many elements as the predictions tensor
+     * @throws IOException If reading fails, the response is not valid or does not match the size of the output
+     */
+    static void decode(InputStream in, float[] output) throws IOException {
+        new PredictionDecoder(in).decodeInto(output);
+    }
+
+    private void decodeInto(float[] output) throws IOException {
+        expect('{');
+        boolean found = false;
+
+        int c = skipWhitespace();
+        while (c != '}') {
+            String key = readKey();
+            expect(':');
+
+            if (key.equals("predictions")) {
+                int count = readValues(output);
+                if (count != output.length) {
+                    throw new IOException("Expected " + output.length + " predicted values, got " + count);
+                }
+                found = true;
+            } else if (key.equals("error")) {
+                throw new IOException("TensorFlow Serving returned an error: " + readKey());
+            } else {
+                skipValue();
+            }
+
+            c = skipWhitespace();
+            if (c == ',') {
+                pos++;
+                c = skipWhitespace();
+            }
+        }
+
+        if (!found) {
+            throw new IOException("Response does not contain any predictions");
+        }
+    }
+
+    /**
+     * Read a number or a (nested) array of numbers into the output
+     *
+     * @return The number of values read
+     */
+    private int readValues(float[] output) throws IOException {
+        int count = 0;
+        int depth = 0;
+
+        do {
+            int c = skipWhitespace();
+            if (c == '[') {
+                pos++;
+                depth++;
+            } else if (c == ']') {
+                pos++;
+                depth--;
+            } else if (c == ',') {
+                pos++;
+            } else if (c == '{') {
+                throw new IOException("Predictions with multiple named outputs are not supported");
+            } else {
+                float value = readNumber();
+                if (count < output.length) {
+                    output[count] = value;
+                }
+                count++;
+            }
+        } while (depth > 0);
+
+        return count;
+    }
+
+    private float readNumber() throws IOException {
+        int c = peek();
+        boolean negative = false;
+        if (c == '-') {
+            negative = true;
+            pos++;
+            c = peek();
+        } else if (c == '+') {
+            pos++;
+            c = peek();
+        }
+
+        if (c == 'N' || c == 'I') {
+            String literal = readLiteral();
+            if (literal.equals("NaN")) {
+                return Float.NaN;
+            } else if (literal.equals("Infinity")) {
+                return negative ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
+            }
+            throw new IOException("Unexpected value in predictions: " + literal);
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any = false;
+
+        // Integer part
+        while ((c = peek()) >= '0' && c <= '9') {
+            pos++;
+            any = true;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa > 0) digits++;
+            } else {
+                exponent++;
+            }
+        }
+
+        // Fraction
+        if (c == '.') {
+            pos++;
+            while ((c = peek()) >= '0' && c <= '9') {
+                pos++;
+                any = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa > 0) digits++;
+                    exponent--;
+                }
+            }
+        }
+
+        if (!any) {
+            throw new IOException("Unexpected character in predictions: '" + (char) c + "'");
+        }
+
+        // Exponent
+        if (c == 'e' || c == 'E') {
+            pos++;
+            c = peek();
+            boolean negativeExponent = false;
+            if (c == '-' || c == '+') {
+                negativeExponent = c == '-';
+                pos++;
+            }
+            int e = 0;
+            while ((c = peek()) >= '0' && c <= '9') {
+                pos++;
+                if (e < 1000) e = e * 10 + (c - '0');
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+
+        double value = mantissa;
+        if (exponent < 0) {
+            value = -exponent < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-exponent] : value * Math.pow(10, exponent);
+        } else if (exponent > 0) {
+            value = exponent < POWERS_OF_TEN.length ? value * POWERS_OF_TEN[exponent] : value * Math.pow(10, exponent);
+        }
+
+        return (float) (negative ? -value : value);
+    }
+
+    private String readLiteral() throws IOException {
+        StringBuilder literal = new StringBuilder();
+        int c;
+        while (((c = peek()) >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+            pos++;
+            literal.append((char) c);
+        }
+        return literal.toString();
+    }
+
+    /**
+     * @return The content of a JSON string
+     */
+    private String readKey() throws IOException {
+        expect('"');
+        StringBuilder key = new StringBuilder();
+        int c;
+        while ((c = next()) != '"') {
+            if (c == '\\') {
+                c = next();
+            }
+            key.append((char) c);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Skip over any JSON value (object, array, string or literal)
+     */
+    private void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            int c = next();
+            if (c == '"') {
+                while ((c = next()) != '"') {
+                    if (c == '\\') {
+                        next();
+                    }
+                }
+            } else if (c == '[' || c == '{') {
+                depth++;
+            } else if (c == ']' || c == '}') {
+                depth--;
+            }
+        } while (depth > 0 || !atValueEnd());
+    }
+
+    /**
+     * @return True if the next non whitespace character ends a value
+     */
+    private boolean atValueEnd() throws IOException {
+        int c = skipWhitespace();
+        return c == ',' || c == '}' || c == ']';
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = skipWhitespace();
+        if (c != expected) {
+            throw new IOException("Expected '" + expected + "' in prediction response, got '" + (char) c + "'");
+        }
+        pos++;
+    }
+
+    /**
+     * @return The next non whitespace character, without consuming it
+     */
+    private int skipWhitespace() throws IOException {
+        int c;
+        while ((c = peek()) == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            pos++;
+        }
+        if (c == -1) {
+            throw new IOException("Unexpected end of prediction response");
+        }
+        return c;
+    }
+
+    private int next() throws IOException {
+        int c = peek();
+        if (c == -1) {
+            throw new IOException("Unexpected end of prediction response");
+        }
+        pos++;
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[pos] & 0xff;
+    }
+}
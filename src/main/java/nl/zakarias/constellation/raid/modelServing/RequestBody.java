@@ -0,0 +1,22 @@
+package nl.zakarias.constellation.raid.modelServing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The body of a request, written straight into the connection
+ */
+public interface RequestBody {
+    /**
+     * @return The number of bytes {@link #writeTo(OutputStream)} writes, or -1 if unknown
+     */
+    long contentLength();
+
+    /**
+     * Write the complete body to the stream
+     *
+     * @param out Stream to write to
+     * @throws IOException If writing to the connection fails
+     */
+    void writeTo(OutputStream out) throws IOException;
+}
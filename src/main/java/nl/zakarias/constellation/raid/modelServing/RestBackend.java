@@ -0,0 +1,42 @@
+package nl.zakarias.constellation.raid.modelServing;
+
+import java.io.IOException;
+
+/**
+ * Makes predictions with the REST JSON API of TensorFlow Serving, see {@link API}
+ */
+public class RestBackend implements InferenceBackend {
+    private final String host;
+    private final int port;
+    /** Connections to this endpoint only, so closing the backend does not affect other endpoints */
+    private final ConnectionPool<HttpConnection> pool = API.createConnectionPool();
+
+    /**
+     * @param host Host on which the tensorflow model server is listening
+     * @param port Port number on which the REST API of the tensorflow model server is listening
+     */
+    public RestBackend(String host, int port){
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public void predict(String modelName, int version, byte[] images, int[] shape, String signatureName, float[] output) throws IOException {
+        API.predict(pool, host, port, modelName, version, images, shape, signatureName, output);
+    }
+
+    @Override
+    public void predictEncoded(String modelName, int version, byte[][] images, String signatureName, float[] output) throws IOException {
+        API.predictEncoded(pool, host, port, modelName, version, images, signatureName, output);
+    }
+
+    @Override
+    public ModelMetadata metadata(String modelName, int version, String signatureName) throws IOException {
+        return ModelMetadata.fromJson(API.getModelMetadata(pool, host, port, modelName, version), signatureName);
+    }
+
+    @Override
+    public void close(){
+        pool.close();
+    }
+}
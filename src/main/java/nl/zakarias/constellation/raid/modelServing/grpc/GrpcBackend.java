@@ -0,0 +1,149 @@
+package nl.zakarias.constellation.raid.modelServing.grpc;
+
+import nl.zakarias.constellation.raid.configuration.Configuration;
+import nl.zakarias.constellation.raid.modelServing.ConnectionPool;
+import nl.zakarias.constellation.raid.modelServing.InferenceBackend;
+import nl.zakarias.constellation.raid.modelServing.ModelMetadata;
+import nl.zakarias.constellation.raid.modelServing.ModelServingException;
+import nl.zakarias.constellation.raid.modelServing.RequestBody;
+import nl.zakarias.constellation.raid.modelServing.protobuf.Signature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Makes predictions with the gRPC PredictionService of TensorFlow Serving. Images are sent as binary TensorProtos and
+ * the predictions are read back as raw floats, instead of the decimal text used by the REST API. The input tensor
+ * name and type are looked up once per model, version and signature with GetModelMetadata.
+ */
+public class GrpcBackend implements InferenceBackend {
+    private static final Logger logger = LoggerFactory.getLogger(GrpcBackend.class);
+
+    private final String host;
+    private final int port;
+    private final ConnectionPool<Http2Connection> pool = new ConnectionPool<>(Http2Connection::new,
+            Configuration.HTTP_MAX_CONNECTIONS_PER_ENDPOINT, Configuration.HTTP_IDLE_TIMEOUT, Configuration.HTTP_CONNECT_TIMEOUT);
+
+    private final Map<String, Signature> signatures = new ConcurrentHashMap<>();
+
+    /**
+     * @param host Host on which the tensorflow model server is listening
+     * @param port Port number of the gRPC API of the tensorflow model server
+     */
+    public GrpcBackend(String host, int port){
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * A request message which has already been serialized completely
+     */
+    private static class EncodedMessage implements RequestBody {
+        private final byte[] message;
+
+        EncodedMessage(byte[] message){
+            this.message = message;
+        }
+
+        @Override
+        public long contentLength(){
+            return message.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(message);
+        }
+    }
+
+    /**
+     * Make a call over a pooled connection. A connection taken from the pool may have been closed by the server while
+     * it was idle, in that case the call is retried once on a new connection.
+     */
+    private byte[] call(String method, RequestBody message) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Http2Connection connection = pool.acquire(host, port);
+            boolean reused = connection.isReused();
+
+            try {
+                byte[] response = connection.call(method, message);
+                pool.release(connection);
+                return response;
+            } catch (ModelServingException e) {
+                // The call failed, but the connection is still in a known state
+                pool.release(connection);
+                throw e;
+            } catch (IOException | RuntimeException e) {
+                pool.discard(connection);
+                if (!reused || attempt > 0 || e instanceof RuntimeException || e instanceof SocketTimeoutException) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private Signature signature(String modelName, int version, String signatureName) throws IOException {
+        String key = modelName + ":" + version + ":" + signatureName;
+        Signature signature = signatures.get(key);
+        if (signature == null) {
+            byte[] response = call(TensorProtos.GET_MODEL_METADATA_METHOD, new EncodedMessage(TensorProtos.metadataRequest(modelName, version)));
+            signature = TensorProtos.parseSignature(response, signatureName);
+            signatures.put(key, signature);
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Signature " + signatureName + " of " + modelName + " takes input " + signature.inputName + " of type " + signature.inputType);
+            }
+        }
+        return signature;
+    }
+
+    private void makePrediction(Signature signature, PredictRequestBody request, float[] output) throws IOException {
+        long startTime = System.nanoTime();
+
+        byte[] response;
+        try {
+            response = call(TensorProtos.PREDICT_METHOD, request);
+        } catch (ModelServingException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new IOException("Prediction request to TF model server failed, check that the version number and modelName is correct\n" + e.getMessage(), e);
+        }
+        TensorProtos.parsePredictResponse(response, signature.outputName, output);
+
+        if (logger.isDebugEnabled()) {
+            long duration = (System.nanoTime() - startTime) / 1000000;
+            logger.debug("Classification took: " + duration + "ms");
+        }
+    }
+
+    @Override
+    public void predict(String modelName, int version, byte[] images, int[] shape, String signatureName, float[] output) throws IOException {
+        Signature signature = signature(modelName, version, signatureName);
+        PredictRequestBody request = new PredictRequestBody(TensorProtos.modelSpec(modelName, version, signatureName), signature, images, shape);
+
+        makePrediction(signature, request, output);
+    }
+
+    @Override
+    public void predictEncoded(String modelName, int version, byte[][] images, String signatureName, float[] output) throws IOException {
+        Signature signature = signature(modelName, version, signatureName);
+        PredictRequestBody request = PredictRequestBody.encoded(TensorProtos.modelSpec(modelName, version, signatureName), signature, images);
+
+        makePrediction(signature, request, output);
+    }
+
+    @Override
+    public ModelMetadata metadata(String modelName, int version, String signatureName) throws IOException {
+        return ModelMetadata.fromSignature(signature(modelName, version, signatureName));
+    }
+
+    @Override
+    public void close(){
+        pool.close();
+    }
+}
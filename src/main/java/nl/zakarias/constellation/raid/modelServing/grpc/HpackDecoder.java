@@ -0,0 +1,294 @@
+package nl.zakarias.constellation.raid.modelServing.grpc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Decodes the HPACK (RFC 7541) header blocks received on one HTTP/2 connection. Fields may refer to the static table
+ * or to the dynamic table, and strings may be Huffman encoded, as servers like TensorFlow Serving do by default. The
+ * dynamic table lives as long as the connection, so every header block received on it must be decoded, in the order
+ * in which the blocks arrive, even those of streams that are no longer of interest.
+ */
+final class HpackDecoder {
+    /** Overhead of a dynamic table entry on top of the length of its name and value (RFC 7541 section 4.1) */
+    private static final int ENTRY_OVERHEAD = 32;
+
+    /** Huffman codes of the octets and of EOS (RFC 7541 Appendix B), aligned to the least significant bit */
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff
+    };
+
+    /** Length in bits of each Huffman code */
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+
+    private static final int EOS = 256;
+
+    /**
+     * The Huffman code as a binary tree, the children of node n are at 2n (bit 0) and 2n + 1 (bit 1). A child is
+     * either the index of the next node, or a symbol stored as -(symbol + 1).
+     */
+    private static final int[] HUFFMAN_TREE = huffmanTree();
+
+    /**
+     * An entry of the dynamic table
+     */
+    private static class Entry {
+        final String name;
+        final String value;
+        final int size;
+
+        Entry(String name, String value, int size){
+            this.name = name;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /** The dynamic table, the most recently added entry first */
+    private final ArrayDeque<Entry> table = new ArrayDeque<>();
+    /** Largest size of the dynamic table, as sent to the peer in SETTINGS_HEADER_TABLE_SIZE */
+    private final int maxTableSize;
+    /** Size of the dynamic table set by the peer, at most maxTableSize */
+    private int tableCapacity;
+    private int tableSize = 0;
+
+    /**
+     * @param maxTableSize The size of the dynamic table advertised to the peer in SETTINGS_HEADER_TABLE_SIZE
+     */
+    HpackDecoder(int maxTableSize){
+        this.maxTableSize = maxTableSize;
+        // Until the peer has acknowledged our settings it may use the default size, see RFC 7540 section 6.5.2
+        this.tableCapacity = Math.max(maxTableSize, Http2.DEFAULT_HEADER_TABLE_SIZE);
+    }
+
+    private static int[] huffmanTree(){
+        int[] tree = new int[2 * HUFFMAN_CODES.length];
+        int nodes = 1;
+        for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int child = 2 * node + (HUFFMAN_CODES[symbol] >>> bit & 1);
+                if (bit == 0) {
+                    tree[child] = -(symbol + 1);
+                } else {
+                    if (tree[child] == 0) {
+                        tree[child] = nodes++;
+                    }
+                    node = tree[child];
+                }
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Decode a header block
+     *
+     * @param block The complete header block (HEADERS and CONTINUATION payloads)
+     * @return Alternating names and values
+     * @throws IOException If the block is malformed, the connection must be closed since the dynamic table can no
+     *                     longer be trusted
+     */
+    List<String> decode(byte[] block) throws IOException {
+        List<String> headers = new ArrayList<>();
+        int[] pos = {0};
+
+        while (pos[0] < block.length) {
+            int b = block[pos[0]] & 0xff;
+            if ((b & 0x80) != 0) {
+                // Indexed header field
+                Entry entry = entry(decodeInteger(block, pos, 7));
+                headers.add(entry.name);
+                headers.add(entry.value);
+            } else if ((b & 0xE0) == 0x20) {
+                // Dynamic table size update
+                int capacity = decodeInteger(block, pos, 5);
+                if (capacity > Math.max(maxTableSize, Http2.DEFAULT_HEADER_TABLE_SIZE)) {
+                    throw new IOException("HPACK table size " + capacity + " exceeds the advertised size " + maxTableSize);
+                }
+                tableCapacity = capacity;
+                evict(0);
+            } else {
+                // Literal, with incremental indexing (6 bit prefix), without or never indexed (4 bit prefix)
+                boolean indexing = (b & 0x40) != 0;
+                int index = decodeInteger(block, pos, indexing ? 6 : 4);
+                byte[] name = index == 0 ? decodeString(block, pos) : null;
+                String nameString = index == 0 ? new String(name, StandardCharsets.UTF_8) : entry(index).name;
+                byte[] value = decodeString(block, pos);
+                String valueString = new String(value, StandardCharsets.UTF_8);
+                headers.add(nameString);
+                headers.add(valueString);
+                if (indexing) {
+                    int nameLength = name != null ? name.length : nameString.getBytes(StandardCharsets.UTF_8).length;
+                    add(new Entry(nameString, valueString, nameLength + value.length + ENTRY_OVERHEAD));
+                }
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * @param index Index in the static table, followed by the dynamic table
+     */
+    private Entry entry(int index) throws IOException {
+        if (index > 0 && index < Http2.STATIC_TABLE.length) {
+            return new Entry(Http2.STATIC_TABLE[index][0], Http2.STATIC_TABLE[index][1], 0);
+        }
+        int dynamic = index - Http2.STATIC_TABLE.length;
+        if (index <= 0 || dynamic >= table.size()) {
+            throw new IOException("Invalid HPACK index " + index);
+        }
+        Iterator<Entry> entries = table.iterator();
+        for (int i = 0; i < dynamic; i++) {
+            entries.next();
+        }
+        return entries.next();
+    }
+
+    private void add(Entry entry){
+        // An entry larger than the table empties it and is not added (RFC 7541 section 4.4)
+        evict(entry.size);
+        if (entry.size <= tableCapacity) {
+            table.addFirst(entry);
+            tableSize += entry.size;
+        }
+    }
+
+    /**
+     * Remove the oldest entries until there is room for an entry of the given size
+     */
+    private void evict(int room){
+        while (!table.isEmpty() && tableSize + room > tableCapacity) {
+            tableSize -= table.removeLast().size;
+        }
+    }
+
+    private static int decodeInteger(byte[] block, int[] pos, int prefixBits) throws IOException {
+        int max = (1 << prefixBits) - 1;
+        int value = block[pos[0]++] & max;
+        if (value < max) {
+            return value;
+        }
+        for (int shift = 0; shift < 28; shift += 7) {
+            if (pos[0] >= block.length) {
+                throw new IOException("Truncated HPACK integer");
+            }
+            int b = block[pos[0]++] & 0xff;
+            value += (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("HPACK integer too large");
+    }
+
+    private static byte[] decodeString(byte[] block, int[] pos) throws IOException {
+        if (pos[0] >= block.length) {
+            throw new IOException("Truncated HPACK string");
+        }
+        boolean huffman = (block[pos[0]] & 0x80) != 0;
+        int length = decodeInteger(block, pos, 7);
+        if (length > block.length - pos[0]) {
+            throw new IOException("Truncated HPACK string");
+        }
+        int start = pos[0];
+        pos[0] += length;
+        if (!huffman) {
+            byte[] value = new byte[length];
+            System.arraycopy(block, start, value, 0, length);
+            return value;
+        }
+        return decodeHuffman(block, start, length);
+    }
+
+    /**
+     * @throws IOException If the string contains EOS or is not padded with at most 7 one bits
+     */
+    static byte[] decodeHuffman(byte[] block, int offset, int length) throws IOException {
+        ByteArrayOutputStream value = new ByteArrayOutputStream(length * 8 / 5 + 1);
+        int node = 0;
+        // Bits read since the last complete symbol, and whether they were all ones
+        int pending = 0;
+        boolean ones = true;
+        for (int i = offset; i < offset + length; i++) {
+            int b = block[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int set = b >>> bit & 1;
+                int child = HUFFMAN_TREE[2 * node + set];
+                if (child < 0) {
+                    int symbol = -child - 1;
+                    if (symbol == EOS) {
+                        throw new IOException("EOS in HPACK Huffman string");
+                    }
+                    value.write(symbol);
+                    node = 0;
+                    pending = 0;
+                    ones = true;
+                } else {
+                    node = child;
+                    pending++;
+                    ones &= set == 1;
+                }
+            }
+        }
+        if (pending > 7 || !ones) {
+            throw new IOException("Invalid padding of HPACK Huffman string");
+        }
+        return value.toByteArray();
+    }
+}
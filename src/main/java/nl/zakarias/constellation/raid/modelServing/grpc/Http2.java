@@ -0,0 +1,224 @@
+package nl.zakarias.constellation.raid.modelServing.grpc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The parts of HTTP/2 (RFC 7540) and HPACK (RFC 7541) needed for unary gRPC calls over cleartext connections, shared
+ * by {@link Http2Connection} and {@link LocalPredictionServer}. Headers are written as plain literals which are never
+ * indexed, received header blocks are decoded by a {@link HpackDecoder} of the connection.
+ */
+final class Http2 {
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    static final int FRAME_HEADER_LENGTH = 9;
+    static final int DEFAULT_WINDOW_SIZE = 65535;
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    static final int DEFAULT_HEADER_TABLE_SIZE = 4096;
+
+    static final int TYPE_DATA = 0x0;
+    static final int TYPE_HEADERS = 0x1;
+    static final int TYPE_RST_STREAM = 0x3;
+    static final int TYPE_SETTINGS = 0x4;
+    static final int TYPE_PING = 0x6;
+    static final int TYPE_GOAWAY = 0x7;
+    static final int TYPE_WINDOW_UPDATE = 0x8;
+    static final int TYPE_CONTINUATION = 0x9;
+
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    static final int SETTINGS_ENABLE_PUSH = 0x2;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    /** HPACK static table (RFC 7541 Appendix A), index 0 is unused */
+    static final String[][] STATIC_TABLE = {
+            null,
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+            {":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+            {":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+            {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""},
+            {"cache-control", ""}, {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""},
+            {"content-length", ""}, {"content-location", ""}, {"content-range", ""}, {"content-type", ""},
+            {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+            {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+            {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""}, {"max-forwards", ""},
+            {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""},
+    };
+
+    private Http2(){
+    }
+
+    /**
+     * A single frame, with padding already removed from DATA and HEADERS payloads
+     */
+    static class Frame {
+        final int type;
+        final int flags;
+        final int streamId;
+        final byte[] payload;
+        final int offset;
+        final int length;
+
+        Frame(int type, int flags, int streamId, byte[] payload, int offset, int length){
+            this.type = type;
+            this.flags = flags;
+            this.streamId = streamId;
+            this.payload = payload;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        boolean hasFlag(int flag){
+            return (flags & flag) != 0;
+        }
+
+        int readInt(int position){
+            int i = offset + position;
+            return (payload[i] & 0xff) << 24 | (payload[i + 1] & 0xff) << 16 | (payload[i + 2] & 0xff) << 8 | (payload[i + 3] & 0xff);
+        }
+    }
+
+    static Frame readFrame(DataInputStream in, int maxFrameSize) throws IOException {
+        int length = in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+        int type = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        int streamId = in.readInt() & 0x7FFFFFFF;
+
+        if (length > maxFrameSize) {
+            throw new IOException("HTTP/2 frame of " + length + " bytes exceeds the maximum frame size");
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+
+        int offset = 0;
+        if ((type == TYPE_DATA || type == TYPE_HEADERS) && (flags & FLAG_PADDED) != 0) {
+            int padding = payload[0] & 0xff;
+            offset = 1;
+            length -= 1 + padding;
+        }
+        if (type == TYPE_HEADERS && (flags & FLAG_PRIORITY) != 0) {
+            offset += 5;
+            length -= 5;
+        }
+        if (length < 0) {
+            throw new IOException("Malformed HTTP/2 frame");
+        }
+        return new Frame(type, flags, streamId, payload, offset, length);
+    }
+
+    static void writeFrameHeader(OutputStream out, int length, int type, int flags, int streamId) throws IOException {
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type);
+        out.write(flags);
+        writeInt(out, streamId);
+    }
+
+    static void writeFrame(OutputStream out, int type, int flags, int streamId, byte[] payload) throws IOException {
+        writeFrameHeader(out, payload.length, type, flags, streamId);
+        out.write(payload);
+    }
+
+    static void writeSettings(OutputStream out, int... settings) throws IOException {
+        writeFrameHeader(out, settings.length / 2 * 6, TYPE_SETTINGS, 0, 0);
+        for (int i = 0; i < settings.length; i += 2) {
+            out.write(settings[i] >>> 8);
+            out.write(settings[i]);
+            writeInt(out, settings[i + 1]);
+        }
+    }
+
+    static void writeWindowUpdate(OutputStream out, int streamId, int increment) throws IOException {
+        writeFrameHeader(out, 4, TYPE_WINDOW_UPDATE, 0, streamId);
+        writeInt(out, increment);
+    }
+
+    static void writeRstStream(OutputStream out, int streamId, int errorCode) throws IOException {
+        writeFrameHeader(out, 4, TYPE_RST_STREAM, 0, streamId);
+        writeInt(out, errorCode);
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    /**
+     * Encode headers as HPACK literals without indexing. Names that are in the static table are referenced by index.
+     *
+     * @param headers Alternating names and values
+     * @return The header block
+     */
+    static byte[] encodeHeaders(String... headers){
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        for (int i = 0; i < headers.length; i += 2) {
+            int index = staticNameIndex(headers[i]);
+            encodeInteger(block, 0x00, 4, index);
+            if (index == 0) {
+                encodeString(block, headers[i]);
+            }
+            encodeString(block, headers[i + 1]);
+        }
+        return block.toByteArray();
+    }
+
+    private static int staticNameIndex(String name){
+        for (int i = 1; i < STATIC_TABLE.length; i++) {
+            if (STATIC_TABLE[i][0].equals(name)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private static void encodeInteger(ByteArrayOutputStream out, int pattern, int prefixBits, int value){
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(pattern | value);
+            return;
+        }
+        out.write(pattern | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void encodeString(ByteArrayOutputStream out, String value){
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        encodeInteger(out, 0x00, 7, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @param headers Decoded headers, alternating names and values
+     * @param name Name of the header
+     * @return The value of the first header with the name, or null
+     */
+    static String header(List<String> headers, String name){
+        for (int i = 0; i < headers.size(); i += 2) {
+            if (name.equals(headers.get(i))) {
+                return headers.get(i + 1);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,396 @@
+package nl.zakarias.constellation.raid.modelServing.grpc;
+
+import nl.zakarias.constellation.raid.configuration.Configuration;
+import nl.zakarias.constellation.raid.modelServing.ConnectionPool;
+import nl.zakarias.constellation.raid.modelServing.ModelServingException;
+import nl.zakarias.constellation.raid.modelServing.PooledConnection;
+import nl.zakarias.constellation.raid.modelServing.RequestBody;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * A single cleartext HTTP/2 connection to a gRPC server, on which unary calls are made one after the other. Each call
+ * uses a new stream, the connection itself is kept open and handed out by the {@link ConnectionPool} like the REST
+ * connections.
+ */
+public class Http2Connection implements PooledConnection {
+    /** Flow control window we give the server, large enough for the biggest prediction response */
+    private static final int RECEIVE_WINDOW = 16 * 1024 * 1024;
+
+    /** gRPC status code for a successful call */
+    private static final int GRPC_OK = 0;
+
+    private final String host;
+    private final int port;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final BufferedOutputStream out;
+
+    private int nextStreamId = 1;
+    private long lastUsed;
+    private boolean reused = false;
+    private boolean open = true;
+
+    private long connectionSendWindow = Http2.DEFAULT_WINDOW_SIZE;
+    private long streamSendWindow;
+    private int peerInitialWindowSize = Http2.DEFAULT_WINDOW_SIZE;
+    private int peerMaxFrameSize = Http2.DEFAULT_MAX_FRAME_SIZE;
+    private int unacknowledgedBytes = 0;
+
+    /** Header blocks must be decoded in order, including those of other streams, to keep its dynamic table in sync */
+    private final HpackDecoder headerDecoder = new HpackDecoder(Http2.DEFAULT_HEADER_TABLE_SIZE);
+    /** HEADERS and CONTINUATION payloads of the header block being received */
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+
+    /**
+     * Splits everything written into DATA frames of one stream, waiting for the server to open its flow control
+     * window when needed.
+     */
+    private class DataFrameOutputStream extends OutputStream {
+        private final int streamId;
+        private final StreamResponse response;
+        private final byte[] buffer = new byte[Http2.DEFAULT_MAX_FRAME_SIZE];
+        private int pos = 0;
+
+        DataFrameOutputStream(int streamId, StreamResponse response){
+            this.streamId = streamId;
+            this.response = response;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (pos == buffer.length) {
+                sendBuffered(false);
+            }
+            buffer[pos++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (pos == buffer.length) {
+                    sendBuffered(false);
+                }
+                int n = Math.min(len, buffer.length - pos);
+                System.arraycopy(b, off, buffer, pos, n);
+                pos += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Send the rest of the data, the last frame ends the stream
+         */
+        void finish() throws IOException {
+            sendBuffered(true);
+        }
+
+        private void sendBuffered(boolean endStream) throws IOException {
+            int sent = 0;
+            do {
+                int length = (int) Math.min(Math.min(pos - sent, peerMaxFrameSize), Math.min(connectionSendWindow, streamSendWindow));
+                if (length <= 0 && pos > sent) {
+                    // Window exhausted, wait for the server to send a WINDOW_UPDATE
+                    out.flush();
+                    handleFrame(Http2.readFrame(in, RECEIVE_WINDOW), streamId, response);
+                    continue;
+                }
+                boolean last = endStream && sent + length == pos;
+                Http2.writeFrameHeader(out, length, Http2.TYPE_DATA, last ? Http2.FLAG_END_STREAM : 0, streamId);
+                out.write(buffer, sent, length);
+                sent += length;
+                connectionSendWindow -= length;
+                streamSendWindow -= length;
+            } while (sent < pos);
+            pos = 0;
+        }
+    }
+
+    /**
+     * The response of a single stream
+     */
+    private static class StreamResponse {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        List<String> headers = null;
+        List<String> trailers = null;
+        boolean ended = false;
+        int unacknowledgedBytes = 0;
+    }
+
+    Http2Connection(String host, int port, int connectTimeout) throws IOException {
+        this.host = host;
+        this.port = port;
+
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        socket.connect(new InetSocketAddress(host, port), connectTimeout);
+        // A server which stops answering fails the request instead of blocking the Activity forever
+        socket.setSoTimeout(Configuration.REQUEST_TIMEOUT);
+
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+
+        out.write(Http2.PREFACE);
+        Http2.writeSettings(out,
+                Http2.SETTINGS_HEADER_TABLE_SIZE, Http2.DEFAULT_HEADER_TABLE_SIZE,
+                Http2.SETTINGS_ENABLE_PUSH, 0,
+                Http2.SETTINGS_INITIAL_WINDOW_SIZE, RECEIVE_WINDOW);
+        Http2.writeWindowUpdate(out, 0, RECEIVE_WINDOW - Http2.DEFAULT_WINDOW_SIZE);
+        out.flush();
+        lastUsed = System.currentTimeMillis();
+    }
+
+    @Override
+    public String endpoint(){
+        return host + ":" + port;
+    }
+
+    @Override
+    public long lastUsed(){
+        return lastUsed;
+    }
+
+    @Override
+    public boolean isReused(){
+        return reused;
+    }
+
+    @Override
+    public boolean isKeepAlive(){
+        return open;
+    }
+
+    /**
+     * Unlike HTTP/1.1, the server may send frames (SETTINGS, PING) while the connection is idle, so only a GOAWAY or
+     * a closed socket make the connection unusable. A connection that was closed silently fails on the next call,
+     * which is retried by the caller.
+     */
+    @Override
+    public boolean isHealthy(){
+        return open && !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown();
+    }
+
+    /**
+     * Make a unary gRPC call and wait for the response message.
+     *
+     * @param path The method to call, e.g. /tensorflow.serving.PredictionService/Predict
+     * @param message The serialized request message, its length must be known
+     * @return The serialized response message
+     * @throws ModelServingException If the server answered with a gRPC or HTTP error status
+     * @throws IOException If the connection fails or the response is malformed
+     */
+    byte[] call(String path, RequestBody message) throws IOException {
+        if (!open) {
+            throw new IOException("Connection to " + endpoint() + " has been closed by the server");
+        }
+        int streamId = nextStreamId;
+        nextStreamId += 2;
+        streamSendWindow = peerInitialWindowSize;
+
+        byte[] headers = Http2.encodeHeaders(
+                ":method", "POST",
+                ":scheme", "http",
+                ":path", path,
+                ":authority", endpoint(),
+                "content-type", "application/grpc",
+                "te", "trailers");
+        Http2.writeFrame(out, Http2.TYPE_HEADERS, Http2.FLAG_END_HEADERS, streamId, headers);
+
+        // Length prefixed message: compression flag and 4 byte length
+        long length = message.contentLength();
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("gRPC messages must have a known length smaller than 2GB");
+        }
+        StreamResponse response = new StreamResponse();
+        DataFrameOutputStream data = new DataFrameOutputStream(streamId, response);
+        data.write(new byte[]{0, (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+        message.writeTo(data);
+        data.finish();
+        out.flush();
+
+        while (!response.ended) {
+            handleFrame(Http2.readFrame(in, RECEIVE_WINDOW), streamId, response);
+        }
+        reused = true;
+        lastUsed = System.currentTimeMillis();
+
+        return responseMessage(response);
+    }
+
+    /**
+     * Handle a frame from the server. Frames of the active stream are added to its response.
+     */
+    private void handleFrame(Http2.Frame frame, int streamId, StreamResponse response) throws IOException {
+        switch (frame.type) {
+            case Http2.TYPE_DATA:
+                if (frame.streamId == streamId) {
+                    response.data.write(frame.payload, frame.offset, frame.length);
+                    response.ended = frame.hasFlag(Http2.FLAG_END_STREAM);
+                    response.unacknowledgedBytes += frame.payload.length;
+                    if (!response.ended && response.unacknowledgedBytes >= RECEIVE_WINDOW / 2) {
+                        Http2.writeWindowUpdate(out, streamId, response.unacknowledgedBytes);
+                        response.unacknowledgedBytes = 0;
+                    }
+                }
+                replenishWindow(frame.payload.length);
+                break;
+            case Http2.TYPE_HEADERS:
+            case Http2.TYPE_CONTINUATION:
+                headerBlock.write(frame.payload, frame.offset, frame.length);
+                if (frame.streamId == streamId && frame.type == Http2.TYPE_HEADERS && frame.hasFlag(Http2.FLAG_END_STREAM)) {
+                    response.ended = true;
+                }
+                if (frame.hasFlag(Http2.FLAG_END_HEADERS)) {
+                    // The CONTINUATION frames of a block directly follow its HEADERS frame, on the same stream
+                    List<String> block = headerDecoder.decode(headerBlock.toByteArray());
+                    headerBlock.reset();
+                    if (frame.streamId != streamId) {
+                        break;
+                    }
+                    if (response.headers == null) {
+                        response.headers = block;
+                    } else {
+                        response.trailers = block;
+                    }
+                    if (response.ended && response.trailers == null) {
+                        // Trailers only response, the status is in the headers
+                        response.trailers = block;
+                    }
+                }
+                break;
+            case Http2.TYPE_RST_STREAM:
+                if (frame.streamId == streamId) {
+                    throw new IOException("Stream reset by " + endpoint() + " with error code " + frame.readInt(0));
+                }
+                break;
+            case Http2.TYPE_SETTINGS:
+                if (!frame.hasFlag(Http2.FLAG_ACK)) {
+                    applySettings(frame);
+                    Http2.writeFrame(out, Http2.TYPE_SETTINGS, Http2.FLAG_ACK, 0, new byte[0]);
+                    out.flush();
+                }
+                break;
+            case Http2.TYPE_PING:
+                if (!frame.hasFlag(Http2.FLAG_ACK)) {
+                    byte[] payload = new byte[frame.length];
+                    System.arraycopy(frame.payload, frame.offset, payload, 0, frame.length);
+                    Http2.writeFrame(out, Http2.TYPE_PING, Http2.FLAG_ACK, 0, payload);
+                    out.flush();
+                }
+                break;
+            case Http2.TYPE_GOAWAY:
+                open = false;
+                int lastStreamId = frame.readInt(0) & 0x7FFFFFFF;
+                if (lastStreamId < streamId) {
+                    throw new IOException("Connection to " + endpoint() + " closed by the server (GOAWAY)");
+                }
+                break;
+            case Http2.TYPE_WINDOW_UPDATE:
+                int increment = frame.readInt(0) & 0x7FFFFFFF;
+                if (frame.streamId == 0) {
+                    connectionSendWindow += increment;
+                } else if (frame.streamId == streamId) {
+                    streamSendWindow += increment;
+                }
+                break;
+            default:
+                // PRIORITY, PUSH_PROMISE (disabled) and unknown frames are ignored
+                break;
+        }
+    }
+
+    private void applySettings(Http2.Frame frame){
+        for (int i = 0; i + 6 <= frame.length; i += 6) {
+            int id = (frame.payload[frame.offset + i] & 0xff) << 8 | (frame.payload[frame.offset + i + 1] & 0xff);
+            int value = frame.readInt(i + 2);
+            if (id == Http2.SETTINGS_INITIAL_WINDOW_SIZE) {
+                streamSendWindow += value - peerInitialWindowSize;
+                peerInitialWindowSize = value;
+            } else if (id == Http2.SETTINGS_MAX_FRAME_SIZE) {
+                peerMaxFrameSize = value;
+            }
+        }
+    }
+
+    /**
+     * Give connection level flow control credit back to the server once half of the window has been used
+     */
+    private void replenishWindow(int received) throws IOException {
+        unacknowledgedBytes += received;
+        if (unacknowledgedBytes >= RECEIVE_WINDOW / 2) {
+            Http2.writeWindowUpdate(out, 0, unacknowledgedBytes);
+            out.flush();
+            unacknowledgedBytes = 0;
+        }
+    }
+
+    /**
+     * Check the status of a completed stream and extract the response message
+     */
+    private byte[] responseMessage(StreamResponse response) throws IOException {
+        String httpStatus = response.headers == null ? null : Http2.header(response.headers, ":status");
+        if (httpStatus != null && !httpStatus.equals("200")) {
+            throw new ModelServingException(Integer.parseInt(httpStatus), "HTTP Error Response Code " + httpStatus + " from " + endpoint());
+        }
+
+        String grpcStatus = response.trailers == null ? null : Http2.header(response.trailers, "grpc-status");
+        if (grpcStatus == null) {
+            throw new IOException("Response from " + endpoint() + " did not contain a (readable) gRPC status");
+        }
+        int status = Integer.parseInt(grpcStatus);
+        if (status != GRPC_OK) {
+            String message = Http2.header(response.trailers, "grpc-message");
+            throw new ModelServingException(status, "gRPC Error Status " + status + " \n" + (message == null ? "" : percentDecode(message)) + "\n");
+        }
+
+        byte[] data = response.data.toByteArray();
+        if (data.length < 5) {
+            throw new IOException("Response from " + endpoint() + " did not contain a message");
+        }
+        if (data[0] != 0) {
+            throw new IOException("Compressed gRPC responses are not supported");
+        }
+        int length = (data[1] & 0xff) << 24 | (data[2] & 0xff) << 16 | (data[3] & 0xff) << 8 | (data[4] & 0xff);
+        if (length != data.length - 5) {
+            throw new IOException("Malformed gRPC response from " + endpoint());
+        }
+
+        byte[] message = new byte[length];
+        System.arraycopy(data, 5, message, 0, length);
+        return message;
+    }
+
+    /**
+     * grpc-message values are percent encoded
+     */
+    private static String percentDecode(String value){
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '%' && i + 2 < value.length()) {
+                decoded.write(Integer.parseInt(value.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                decoded.write(c);
+            }
+        }
+        return new String(decoded.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore, we are discarding this connection anyway
+        }
+    }
+}
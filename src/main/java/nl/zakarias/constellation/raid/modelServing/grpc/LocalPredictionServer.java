@@ -0,0 +1,602 @@
+package nl.zakarias.constellation.raid.modelServing.grpc;
+
+import nl.zakarias.constellation.raid.configuration.Configuration;
+import nl.zakarias.constellation.raid.modelServing.protobuf.ProtoReader;
+import nl.zakarias.constellation.raid.modelServing.protobuf.ProtoWriter;
+import nl.zakarias.constellation.raid.modelServing.protobuf.Signature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stand-in for the gRPC PredictionService of TensorFlow Serving, running inside the JVM. It answers Predict and
+ * GetModelMetadata calls for registered models with deterministic outputs, so the {@link GrpcBackend} can be tested
+ * without a real TensorFlow Serving instance. Each image is classified as the sum of its values modulo the number of
+ * outputs per image. Can also be started on its own:
+ *
+ * java nl.zakarias.constellation.raid.modelServing.grpc.LocalPredictionServer [ -port <int> ]
+ */
+public class LocalPredictionServer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(LocalPredictionServer.class);
+
+    private static final int GRPC_INVALID_ARGUMENT = 3;
+    private static final int GRPC_NOT_FOUND = 5;
+    private static final int GRPC_FAILED_PRECONDITION = 9;
+    private static final int GRPC_UNIMPLEMENTED = 12;
+
+    private static final int RECEIVE_WINDOW = 16 * 1024 * 1024;
+
+    private static final String INPUT_NAME = "images";
+    private static final String OUTPUT_NAME = "scores";
+
+    private final ServerSocket serverSocket;
+    private final Map<String, Model> models = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    private static class Model {
+        final String signatureName;
+        final int[] outputShape;
+        final int outputsPerImage;
+
+        Model(String signatureName, int[] outputShape){
+            this.signatureName = signatureName;
+            this.outputShape = outputShape;
+            int size = 1;
+            for (int dim : outputShape) {
+                size *= dim;
+            }
+            this.outputsPerImage = size;
+        }
+
+        /**
+         * @return The output shape of a batch, with the given size of the batch dimension
+         */
+        long[] batchShape(long batch){
+            long[] shape = new long[outputShape.length + 1];
+            shape[0] = batch;
+            for (int i = 0; i < outputShape.length; i++) {
+                shape[i + 1] = outputShape[i];
+            }
+            return shape;
+        }
+    }
+
+    /**
+     * Thrown while handling a call, answered with a gRPC error status
+     */
+    private static class CallException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        CallException(int status, String message){
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * State of one stream of a connection
+     */
+    private static class Stream {
+        final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        String path;
+        long sendWindow;
+    }
+
+    /**
+     * Start listening, calls are handled in background threads until {@link #close()} is called.
+     *
+     * @param port Port to listen on, 0 to pick any free port
+     * @throws IOException If the port can not be opened
+     */
+    public LocalPredictionServer(int port) throws IOException {
+        serverSocket = new ServerSocket(port);
+
+        Thread acceptor = new Thread(this::acceptConnections, "raid-local-prediction-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Serve a model taking a single DT_FLOAT input named "images" and producing a single DT_FLOAT output "scores" of
+     * shape [batch, outputShape...].
+     *
+     * @param modelName Name of the model
+     * @param signatureName Name of the only signature of the model
+     * @param outputShape Shape of the output values for each image
+     */
+    public void addModel(String modelName, String signatureName, int... outputShape){
+        models.put(modelName, new Model(signatureName, outputShape));
+    }
+
+    /**
+     * Serve all models in {@link Configuration.ModelName}, with the output shapes of the models in this repository.
+     */
+    public void addDefaultModels(){
+        for (Configuration.ModelName modelName : Configuration.ModelName.values()) {
+            int[] outputs;
+            switch (modelName) {
+                case YOLO:
+                    outputs = new int[]{19, 19, 425};
+                    break;
+                case TINY_YOLO:
+                    outputs = new int[]{19, 19, 125};
+                    break;
+                default:
+                    outputs = new int[]{10};
+            }
+            addModel(modelName.toString().toLowerCase(), "predict", outputs);
+        }
+    }
+
+    public int port(){
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptConnections(){
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread handler = new Thread(() -> handleConnection(socket), "raid-local-prediction-connection");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Failed to accept connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handleConnection(Socket socket){
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+            BufferedOutputStream out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024);
+            new ConnectionHandler(in, out).run();
+        } catch (EOFException | SocketException e) {
+            // Client closed the connection
+        } catch (IOException e) {
+            logger.error("Connection failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serves the calls of one connection, one after the other
+     */
+    private class ConnectionHandler {
+        private final DataInputStream in;
+        private final BufferedOutputStream out;
+        private final Map<Integer, Stream> streams = new HashMap<>();
+        private final HpackDecoder headerDecoder = new HpackDecoder(Http2.DEFAULT_HEADER_TABLE_SIZE);
+
+        private long connectionSendWindow = Http2.DEFAULT_WINDOW_SIZE;
+        private int peerInitialWindowSize = Http2.DEFAULT_WINDOW_SIZE;
+
+        ConnectionHandler(DataInputStream in, BufferedOutputStream out){
+            this.in = in;
+            this.out = out;
+        }
+
+        void run() throws IOException {
+            byte[] preface = new byte[Http2.PREFACE.length];
+            in.readFully(preface);
+            if (!Arrays.equals(preface, Http2.PREFACE)) {
+                throw new IOException("Client did not send the HTTP/2 connection preface");
+            }
+            Http2.writeSettings(out, Http2.SETTINGS_INITIAL_WINDOW_SIZE, RECEIVE_WINDOW);
+            Http2.writeWindowUpdate(out, 0, RECEIVE_WINDOW - Http2.DEFAULT_WINDOW_SIZE);
+            out.flush();
+
+            while (running) {
+                Http2.Frame frame = Http2.readFrame(in, Http2.DEFAULT_MAX_FRAME_SIZE);
+                if (frame.type == Http2.TYPE_GOAWAY) {
+                    return;
+                }
+                handleFrame(frame);
+            }
+        }
+
+        /**
+         * Add the fragment of a HEADERS or CONTINUATION frame to the header block of its stream, and read the path of
+         * the call once the block is complete
+         */
+        private void headerBlock(Stream stream, Http2.Frame frame) throws IOException {
+            stream.headerBlock.write(frame.payload, frame.offset, frame.length);
+            if (frame.hasFlag(Http2.FLAG_END_HEADERS)) {
+                List<String> headers = headerDecoder.decode(stream.headerBlock.toByteArray());
+                stream.path = Http2.header(headers, ":path");
+            }
+        }
+
+        private void handleFrame(Http2.Frame frame) throws IOException {
+            Stream stream;
+            switch (frame.type) {
+                case Http2.TYPE_HEADERS:
+                    stream = new Stream();
+                    stream.sendWindow = peerInitialWindowSize;
+                    streams.put(frame.streamId, stream);
+                    headerBlock(stream, frame);
+                    if (frame.hasFlag(Http2.FLAG_END_STREAM)) {
+                        dispatch(frame.streamId);
+                    }
+                    break;
+                case Http2.TYPE_CONTINUATION:
+                    stream = streams.get(frame.streamId);
+                    if (stream != null) {
+                        headerBlock(stream, frame);
+                    }
+                    break;
+                case Http2.TYPE_DATA:
+                    stream = streams.get(frame.streamId);
+                    if (frame.payload.length > 0) {
+                        Http2.writeWindowUpdate(out, 0, frame.payload.length);
+                    }
+                    if (stream == null) {
+                        out.flush();
+                        break;
+                    }
+                    stream.data.write(frame.payload, frame.offset, frame.length);
+                    if (frame.hasFlag(Http2.FLAG_END_STREAM)) {
+                        dispatch(frame.streamId);
+                    } else if (frame.payload.length > 0) {
+                        Http2.writeWindowUpdate(out, frame.streamId, frame.payload.length);
+                    }
+                    out.flush();
+                    break;
+                case Http2.TYPE_SETTINGS:
+                    if (!frame.hasFlag(Http2.FLAG_ACK)) {
+                        for (int i = 0; i + 6 <= frame.length; i += 6) {
+                            int id = (frame.payload[frame.offset + i] & 0xff) << 8 | (frame.payload[frame.offset + i + 1] & 0xff);
+                            if (id == Http2.SETTINGS_INITIAL_WINDOW_SIZE) {
+                                peerInitialWindowSize = frame.readInt(i + 2);
+                            }
+                        }
+                        Http2.writeFrame(out, Http2.TYPE_SETTINGS, Http2.FLAG_ACK, 0, new byte[0]);
+                        out.flush();
+                    }
+                    break;
+                case Http2.TYPE_PING:
+                    if (!frame.hasFlag(Http2.FLAG_ACK)) {
+                        byte[] payload = new byte[frame.length];
+                        System.arraycopy(frame.payload, frame.offset, payload, 0, frame.length);
+                        Http2.writeFrame(out, Http2.TYPE_PING, Http2.FLAG_ACK, 0, payload);
+                        out.flush();
+                    }
+                    break;
+                case Http2.TYPE_WINDOW_UPDATE:
+                    int increment = frame.readInt(0) & 0x7FFFFFFF;
+                    if (frame.streamId == 0) {
+                        connectionSendWindow += increment;
+                    } else if ((stream = streams.get(frame.streamId)) != null) {
+                        stream.sendWindow += increment;
+                    }
+                    break;
+                case Http2.TYPE_RST_STREAM:
+                    streams.remove(frame.streamId);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * The request of a stream is complete, make the call and send the response
+         */
+        private void dispatch(int streamId) throws IOException {
+            Stream stream = streams.get(streamId);
+            try {
+                byte[] data = stream.data.toByteArray();
+                if (data.length < 5 || data[0] != 0) {
+                    throw new CallException(GRPC_INVALID_ARGUMENT, "Expected a single uncompressed message");
+                }
+                byte[] request = new byte[data.length - 5];
+                System.arraycopy(data, 5, request, 0, request.length);
+
+                byte[] response;
+                if (TensorProtos.PREDICT_METHOD.equals(stream.path)) {
+                    response = predict(request);
+                } else if (TensorProtos.GET_MODEL_METADATA_METHOD.equals(stream.path)) {
+                    response = modelMetadata(request);
+                } else {
+                    throw new CallException(GRPC_UNIMPLEMENTED, "Method not found: " + stream.path);
+                }
+                sendResponse(streamId, stream, response);
+            } catch (CallException e) {
+                Http2.writeFrame(out, Http2.TYPE_HEADERS, Http2.FLAG_END_HEADERS | Http2.FLAG_END_STREAM, streamId,
+                        Http2.encodeHeaders(":status", "200", "content-type", "application/grpc",
+                                "grpc-status", Integer.toString(e.status), "grpc-message", percentEncode(e.getMessage())));
+            }
+            out.flush();
+            streams.remove(streamId);
+        }
+
+        private void sendResponse(int streamId, Stream stream, byte[] message) throws IOException {
+            Http2.writeFrame(out, Http2.TYPE_HEADERS, Http2.FLAG_END_HEADERS, streamId,
+                    Http2.encodeHeaders(":status", "200", "content-type", "application/grpc"));
+
+            byte[] data = new byte[message.length + 5];
+            data[1] = (byte) (message.length >>> 24);
+            data[2] = (byte) (message.length >>> 16);
+            data[3] = (byte) (message.length >>> 8);
+            data[4] = (byte) message.length;
+            System.arraycopy(message, 0, data, 5, message.length);
+
+            int sent = 0;
+            while (sent < data.length) {
+                int length = (int) Math.min(Math.min(data.length - sent, Http2.DEFAULT_MAX_FRAME_SIZE), Math.min(connectionSendWindow, stream.sendWindow));
+                if (length <= 0) {
+                    out.flush();
+                    handleFrame(Http2.readFrame(in, Http2.DEFAULT_MAX_FRAME_SIZE));
+                    continue;
+                }
+                Http2.writeFrameHeader(out, length, Http2.TYPE_DATA, 0, streamId);
+                out.write(data, sent, length);
+                sent += length;
+                connectionSendWindow -= length;
+                stream.sendWindow -= length;
+            }
+
+            Http2.writeFrame(out, Http2.TYPE_HEADERS, Http2.FLAG_END_HEADERS | Http2.FLAG_END_STREAM, streamId,
+                    Http2.encodeHeaders("grpc-status", "0"));
+        }
+    }
+
+    /**
+     * Read the model spec of a request
+     *
+     * @return The name and signature name of the model
+     */
+    private static String[] readModelSpec(ProtoReader spec) throws IOException {
+        String[] nameAndSignature = new String[2];
+        while (spec.next()) {
+            if (spec.field() == TensorProtos.MODEL_SPEC_NAME) {
+                nameAndSignature[0] = spec.readString();
+            } else if (spec.field() == TensorProtos.MODEL_SPEC_SIGNATURE_NAME) {
+                nameAndSignature[1] = spec.readString();
+            } else {
+                spec.skip();
+            }
+        }
+        return nameAndSignature;
+    }
+
+    private Model model(String modelName) throws CallException {
+        Model model = modelName == null ? null : models.get(modelName);
+        if (model == null) {
+            throw new CallException(GRPC_NOT_FOUND, "Servable not found for request: Latest(" + modelName + ")");
+        }
+        return model;
+    }
+
+    private byte[] predict(byte[] request) throws IOException, CallException {
+        ProtoReader reader = new ProtoReader(request);
+        String[] spec = {null, null};
+        ProtoReader input = null;
+        String inputName = null;
+
+        while (reader.next()) {
+            if (reader.field() == TensorProtos.PREDICT_REQUEST_MODEL_SPEC) {
+                spec = readModelSpec(reader.readMessage());
+            } else if (reader.field() == TensorProtos.PREDICT_REQUEST_INPUTS) {
+                ProtoReader entry = reader.readMessage();
+                while (entry.next()) {
+                    if (entry.field() == TensorProtos.MAP_KEY) {
+                        inputName = entry.readString();
+                    } else if (entry.field() == TensorProtos.MAP_VALUE) {
+                        input = entry.readMessage();
+                    } else {
+                        entry.skip();
+                    }
+                }
+            } else {
+                reader.skip();
+            }
+        }
+
+        Model model = model(spec[0]);
+        if (spec[1] != null && !spec[1].equals(model.signatureName)) {
+            throw new CallException(GRPC_FAILED_PRECONDITION, "Serving signature key \"" + spec[1] + "\" not found.");
+        }
+        if (input == null || !INPUT_NAME.equals(inputName)) {
+            throw new CallException(GRPC_INVALID_ARGUMENT, "input tensor alias not found in signature: " + inputName);
+        }
+
+        // Sum the values of each image
+        int dtype = 0;
+        long batch = -1;
+        long elements = 1;
+        byte[] content = null;
+        int contentOffset = 0;
+        int contentLength = 0;
+        while (input.next()) {
+            if (input.field() == TensorProtos.TENSOR_DTYPE) {
+                dtype = (int) input.readVarint();
+            } else if (input.field() == TensorProtos.TENSOR_SHAPE) {
+                ProtoReader shape = input.readMessage();
+                while (shape.next()) {
+                    if (shape.field() == TensorProtos.SHAPE_DIM) {
+                        ProtoReader dim = shape.readMessage();
+                        while (dim.next()) {
+                            if (dim.field() == TensorProtos.DIM_SIZE) {
+                                long size = dim.readVarint();
+                                if (batch < 0) {
+                                    batch = size;
+                                } else {
+                                    elements *= size;
+                                }
+                            } else {
+                                dim.skip();
+                            }
+                        }
+                    } else {
+                        shape.skip();
+                    }
+                }
+            } else if (input.field() == TensorProtos.TENSOR_CONTENT) {
+                contentLength = input.readLength();
+                content = input.buffer();
+                contentOffset = input.offset();
+                input.skipBytes(contentLength);
+            } else {
+                input.skip();
+            }
+        }
+        if (dtype != Signature.DT_FLOAT) {
+            throw new CallException(GRPC_INVALID_ARGUMENT, "Expects arg[0] to be float but " + dtype + " is provided");
+        }
+        if (batch < 0 || content == null || contentLength != batch * elements * 4) {
+            throw new CallException(GRPC_INVALID_ARGUMENT, "Input tensor content does not match its shape");
+        }
+
+        ProtoWriter scores = new ProtoWriter();
+        for (int i = 0; i < batch; i++) {
+            long sum = 0;
+            for (long x = 0; x < elements; x++) {
+                int pos = contentOffset + (int) ((i * elements + x) * 4);
+                int bits = (content[pos] & 0xff) | (content[pos + 1] & 0xff) << 8 | (content[pos + 2] & 0xff) << 16 | (content[pos + 3] & 0xff) << 24;
+                sum += (long) Float.intBitsToFloat(bits);
+            }
+            int predicted = (int) (sum % model.outputsPerImage);
+            for (int j = 0; j < model.outputsPerImage; j++) {
+                scores.writeFloat(j == predicted ? 1f : 0f);
+            }
+        }
+
+        ProtoWriter shape = new ProtoWriter();
+        for (long size : model.batchShape(batch)) {
+            ProtoWriter dim = new ProtoWriter();
+            dim.writeVarintField(TensorProtos.DIM_SIZE, size);
+            shape.writeMessageField(TensorProtos.SHAPE_DIM, dim);
+        }
+        ProtoWriter tensor = new ProtoWriter();
+        tensor.writeVarintField(TensorProtos.TENSOR_DTYPE, Signature.DT_FLOAT);
+        tensor.writeMessageField(TensorProtos.TENSOR_SHAPE, shape);
+        tensor.writeMessageField(TensorProtos.TENSOR_CONTENT, scores);
+
+        ProtoWriter entry = new ProtoWriter();
+        entry.writeStringField(TensorProtos.MAP_KEY, OUTPUT_NAME);
+        entry.writeMessageField(TensorProtos.MAP_VALUE, tensor);
+
+        ProtoWriter response = new ProtoWriter();
+        response.writeMessageField(TensorProtos.PREDICT_RESPONSE_OUTPUTS, entry);
+        return response.toByteArray();
+    }
+
+    private byte[] modelMetadata(byte[] request) throws IOException, CallException {
+        ProtoReader reader = new ProtoReader(request);
+        String modelName = null;
+        while (reader.next()) {
+            if (reader.field() == TensorProtos.METADATA_REQUEST_MODEL_SPEC) {
+                modelName = readModelSpec(reader.readMessage())[0];
+            } else if (reader.field() == TensorProtos.METADATA_REQUEST_FIELD) {
+                String field = reader.readString();
+                if (!TensorProtos.SIGNATURE_DEF_FIELD.equals(field)) {
+                    throw new CallException(GRPC_INVALID_ARGUMENT, "Metadata field " + field + " is not supported");
+                }
+            } else {
+                reader.skip();
+            }
+        }
+        Model model = model(modelName);
+
+        ProtoWriter signatureDef = new ProtoWriter();
+        // Any input shape is accepted, so only the shape of the output is known
+        signatureDef.writeMessageField(TensorProtos.SIGNATURE_DEF_INPUTS, tensorInfoEntry(INPUT_NAME, null));
+        signatureDef.writeMessageField(TensorProtos.SIGNATURE_DEF_OUTPUTS, tensorInfoEntry(OUTPUT_NAME, model.batchShape(-1)));
+        signatureDef.writeStringField(TensorProtos.SIGNATURE_DEF_METHOD_NAME, "tensorflow/serving/predict");
+
+        ProtoWriter signatureEntry = new ProtoWriter();
+        signatureEntry.writeStringField(TensorProtos.MAP_KEY, model.signatureName);
+        signatureEntry.writeMessageField(TensorProtos.MAP_VALUE, signatureDef);
+
+        ProtoWriter signatureDefMap = new ProtoWriter();
+        signatureDefMap.writeMessageField(TensorProtos.SIGNATURE_DEF_MAP_SIGNATURE_DEF, signatureEntry);
+
+        ProtoWriter any = new ProtoWriter();
+        any.writeStringField(TensorProtos.ANY_TYPE_URL, TensorProtos.SIGNATURE_DEF_MAP_TYPE);
+        any.writeMessageField(TensorProtos.ANY_VALUE, signatureDefMap);
+
+        ProtoWriter metadataEntry = new ProtoWriter();
+        metadataEntry.writeStringField(TensorProtos.MAP_KEY, TensorProtos.SIGNATURE_DEF_FIELD);
+        metadataEntry.writeMessageField(TensorProtos.MAP_VALUE, any);
+
+        ProtoWriter response = new ProtoWriter();
+        response.writeMessageField(TensorProtos.METADATA_REQUEST_MODEL_SPEC, TensorProtos.modelSpec(modelName, 0, null));
+        response.writeMessageField(TensorProtos.METADATA_RESPONSE_METADATA, metadataEntry);
+        return response.toByteArray();
+    }
+
+    private static ProtoWriter tensorInfoEntry(String name, long[] dims){
+        ProtoWriter tensorInfo = new ProtoWriter();
+        tensorInfo.writeStringField(TensorProtos.TENSOR_INFO_NAME, name + ":0");
+        tensorInfo.writeVarintField(TensorProtos.TENSOR_INFO_DTYPE, Signature.DT_FLOAT);
+        if (dims != null) {
+            ProtoWriter shape = new ProtoWriter();
+            for (long size : dims) {
+                ProtoWriter dim = new ProtoWriter();
+                dim.writeVarintField(TensorProtos.DIM_SIZE, size);
+                shape.writeMessageField(TensorProtos.SHAPE_DIM, dim);
+            }
+            tensorInfo.writeMessageField(TensorProtos.TENSOR_INFO_TENSOR_SHAPE, shape);
+        }
+
+        ProtoWriter entry = new ProtoWriter();
+        entry.writeStringField(TensorProtos.MAP_KEY, name);
+        entry.writeMessageField(TensorProtos.MAP_VALUE, tensorInfo);
+        return entry;
+    }
+
+    private static String percentEncode(String message){
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : message.getBytes(StandardCharsets.UTF_8)) {
+            if (b >= 0x20 && b < 0x7F && b != '%') {
+                encoded.append((char) b);
+            } else {
+                encoded.append(String.format("%%%02X", b & 0xff));
+            }
+        }
+        return encoded.toString();
+    }
+
+    @Override
+    public void close(){
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // ignore, we are shutting down
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = 8500;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-port")) {
+                i++;
+                port = Integer.parseInt(args[i]);
+            } else {
+                System.out.println("Usage: java " + LocalPredictionServer.class.getName() + " [ -port <int> ]");
+                System.exit(1);
+            }
+        }
+
+        LocalPredictionServer server = new LocalPredictionServer(port);
+        server.addDefaultModels();
+        logger.info("Local prediction server listening on port " + server.port());
+
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,172 @@
+package nl.zakarias.constellation.raid.modelServing.grpc;
+
+import nl.zakarias.constellation.raid.modelServing.ModelServingException;
+import nl.zakarias.constellation.raid.modelServing.RequestBody;
+import nl.zakarias.constellation.raid.modelServing.protobuf.ProtoWriter;
+import nl.zakarias.constellation.raid.modelServing.protobuf.Signature;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A serialized PredictRequest with a single input tensor, written directly from the byte array holding the images.
+ * The small fields (model spec, map key, dtype, shape) are encoded up front, the pixels follow as raw tensor_content
+ * in the type expected by the signature, so the request is never held in memory as a whole. Encoded images follow as
+ * the string_val entries of a DT_STRING tensor instead.
+ */
+class PredictRequestBody implements RequestBody {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** gRPC status of a request the server cannot handle, not worth retrying on another endpoint */
+    private static final int GRPC_UNIMPLEMENTED = 12;
+
+    /** Encoded JPEG or PNG files, or null when sending pixel values */
+    private final byte[][] encodedImages;
+    private final byte[] images;
+    private final int inputType;
+    private final long contentLength;
+
+    /** Everything in front of the tensor content */
+    private final ProtoWriter head = new ProtoWriter();
+
+    /**
+     * @param modelSpec Encoded ModelSpec of the model to use
+     * @param inputName Alias of the DT_STRING input of the signature
+     * @param images A batch of encoded images, each holding the bytes of a JPEG or PNG file
+     */
+    private PredictRequestBody(ProtoWriter modelSpec, String inputName, byte[][] images){
+        this.encodedImages = images;
+        this.images = null;
+        this.inputType = Signature.DT_STRING;
+
+        long length = 0;
+        for (byte[] image : images) {
+            length += ProtoWriter.lengthDelimitedSize(TensorProtos.TENSOR_STRING_VAL, image.length);
+        }
+        this.contentLength = length;
+
+        writeHead(modelSpec, inputName, images.length);
+    }
+
+    /**
+     * @param modelSpec Encoded ModelSpec of the model to use
+     * @param signature Input of the signature of the model, which must take encoded images
+     * @param images A batch of encoded images, each holding the bytes of a JPEG or PNG file
+     * @return The request
+     * @throws IOException If the signature does not take encoded images
+     */
+    static PredictRequestBody encoded(ProtoWriter modelSpec, Signature signature, byte[][] images) throws IOException {
+        if (signature.inputType != Signature.DT_STRING) {
+            throw new IOException("Input " + signature.inputName + " of type " + signature.inputType + " does not take encoded images, expected DT_STRING");
+        }
+        return new PredictRequestBody(modelSpec, signature.inputName, images);
+    }
+
+    /**
+     * @param modelSpec Encoded ModelSpec of the model to use
+     * @param signature Input of the signature of the model
+     * @param images A batch of images stored one after the other, in row major order
+     * @param shape Shape of the batch, the first dimension is the number of images
+     * @throws ModelServingException If the input type of the signature is not supported
+     */
+    PredictRequestBody(ProtoWriter modelSpec, Signature signature, byte[] images, int[] shape) throws ModelServingException {
+        this.encodedImages = null;
+        this.images = images;
+        this.inputType = signature.inputType;
+        this.contentLength = (long) images.length * elementSize(inputType);
+
+        writeHead(modelSpec, signature.inputName, shape);
+    }
+
+    /**
+     * @return Number of bytes of a single value in the tensor_content, for the types {@link #writeTo} can write
+     */
+    private static int elementSize(int type) throws ModelServingException {
+        switch (type) {
+            case Signature.DT_UINT8:
+                return 1;
+            case Signature.DT_FLOAT:
+            case Signature.DT_INT32:
+                return 4;
+            default:
+                throw new ModelServingException(GRPC_UNIMPLEMENTED, "Input type " + type + " is not supported, expected DT_FLOAT, DT_INT32 or DT_UINT8");
+        }
+    }
+
+    private void writeHead(ProtoWriter modelSpec, String inputName, int... shape){
+        ProtoWriter tensorShape = new ProtoWriter();
+        for (int size : shape) {
+            ProtoWriter dim = new ProtoWriter();
+            dim.writeVarintField(TensorProtos.DIM_SIZE, size);
+            tensorShape.writeMessageField(TensorProtos.SHAPE_DIM, dim);
+        }
+
+        ProtoWriter tensorHead = new ProtoWriter();
+        tensorHead.writeVarintField(TensorProtos.TENSOR_DTYPE, inputType);
+        tensorHead.writeMessageField(TensorProtos.TENSOR_SHAPE, tensorShape);
+        if (encodedImages == null) {
+            tensorHead.writeLengthDelimitedHeader(TensorProtos.TENSOR_CONTENT, contentLength);
+        }
+        long tensorLength = tensorHead.size() + contentLength;
+
+        ProtoWriter entryHead = new ProtoWriter();
+        entryHead.writeStringField(TensorProtos.MAP_KEY, inputName);
+        entryHead.writeLengthDelimitedHeader(TensorProtos.MAP_VALUE, tensorLength);
+        long entryLength = entryHead.size() + tensorLength;
+
+        head.writeMessageField(TensorProtos.PREDICT_REQUEST_MODEL_SPEC, modelSpec);
+        head.writeLengthDelimitedHeader(TensorProtos.PREDICT_REQUEST_INPUTS, entryLength);
+        head.writeBytes(entryHead);
+        head.writeBytes(tensorHead);
+    }
+
+    @Override
+    public long contentLength(){
+        return head.size() + contentLength;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        head.writeTo(out);
+
+        if (encodedImages != null) {
+            for (byte[] image : encodedImages) {
+                ProtoWriter header = new ProtoWriter();
+                header.writeLengthDelimitedHeader(TensorProtos.TENSOR_STRING_VAL, image.length);
+                header.writeTo(out);
+                out.write(image);
+            }
+            return;
+        }
+
+        if (inputType == Signature.DT_UINT8) {
+            // The pixels are already in the right format
+            out.write(images);
+            return;
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int pos = writeValues(out, buffer, 0, images);
+        out.write(buffer, 0, pos);
+    }
+
+    /**
+     * Convert unsigned pixel values to little endian floats or ints in the buffer, writing it out when full
+     *
+     * @return The new position in the buffer
+     */
+    private int writeValues(OutputStream out, byte[] buffer, int pos, byte[] values) throws IOException {
+        for (byte value : values) {
+            if (pos + 4 > buffer.length) {
+                out.write(buffer, 0, pos);
+                pos = 0;
+            }
+            int bits = inputType == Signature.DT_FLOAT ? Float.floatToRawIntBits(value & 0xff) : value & 0xff;
+            buffer[pos++] = (byte) bits;
+            buffer[pos++] = (byte) (bits >>> 8);
+            buffer[pos++] = (byte) (bits >>> 16);
+            buffer[pos++] = (byte) (bits >>> 24);
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,231 @@
+package nl.zakarias.constellation.raid.modelServing.grpc;
+
+import nl.zakarias.constellation.raid.modelServing.protobuf.ProtoReader;
+import nl.zakarias.constellation.raid.modelServing.protobuf.ProtoWriter;
+import nl.zakarias.constellation.raid.modelServing.protobuf.Signature;
+
+import java.io.IOException;
+
+/**
+ * Field numbers and helpers for the TensorFlow Serving messages used by the PredictionService
+ * (tensorflow_serving/apis/predict.proto, get_model_metadata.proto and model.proto) and the TensorFlow messages they
+ * contain (tensor.proto, tensor_shape.proto, meta_graph.proto).
+ */
+final class TensorProtos {
+    static final String PREDICT_METHOD = "/tensorflow.serving.PredictionService/Predict";
+    static final String GET_MODEL_METADATA_METHOD = "/tensorflow.serving.PredictionService/GetModelMetadata";
+    static final String SIGNATURE_DEF_FIELD = "signature_def";
+    static final String SIGNATURE_DEF_MAP_TYPE = "type.googleapis.com/tensorflow.serving.SignatureDefMap";
+
+    // ModelSpec
+    static final int MODEL_SPEC_NAME = 1;
+    static final int MODEL_SPEC_VERSION = 2;
+    static final int MODEL_SPEC_SIGNATURE_NAME = 3;
+    static final int INT64_VALUE_VALUE = 1;
+
+    // PredictRequest and PredictResponse
+    static final int PREDICT_REQUEST_MODEL_SPEC = 1;
+    static final int PREDICT_REQUEST_INPUTS = 2;
+    static final int PREDICT_RESPONSE_OUTPUTS = 1;
+
+    // GetModelMetadataRequest and GetModelMetadataResponse
+    static final int METADATA_REQUEST_MODEL_SPEC = 1;
+    static final int METADATA_REQUEST_FIELD = 2;
+    static final int METADATA_RESPONSE_METADATA = 2;
+    static final int ANY_TYPE_URL = 1;
+    static final int ANY_VALUE = 2;
+
+    // SignatureDefMap, SignatureDef and TensorInfo
+    static final int SIGNATURE_DEF_MAP_SIGNATURE_DEF = 1;
+    static final int SIGNATURE_DEF_INPUTS = 1;
+    static final int SIGNATURE_DEF_OUTPUTS = 2;
+    static final int SIGNATURE_DEF_METHOD_NAME = 3;
+    static final int TENSOR_INFO_NAME = 1;
+    static final int TENSOR_INFO_DTYPE = 2;
+    static final int TENSOR_INFO_TENSOR_SHAPE = 3;
+
+    // TensorProto and TensorShapeProto
+    static final int TENSOR_DTYPE = 1;
+    static final int TENSOR_SHAPE = 2;
+    static final int TENSOR_CONTENT = 4;
+    static final int TENSOR_FLOAT_VAL = 5;
+    static final int TENSOR_STRING_VAL = 8;
+    static final int SHAPE_DIM = 2;
+    static final int DIM_SIZE = 1;
+
+    // Entries of protobuf maps
+    static final int MAP_KEY = 1;
+    static final int MAP_VALUE = 2;
+
+    private TensorProtos(){
+    }
+
+    /**
+     * @param version Model version number, or 0 for the latest version
+     */
+    static ProtoWriter modelSpec(String modelName, int version, String signatureName){
+        ProtoWriter spec = new ProtoWriter();
+        spec.writeStringField(MODEL_SPEC_NAME, modelName);
+        if (version > 0) {
+            ProtoWriter versionValue = new ProtoWriter();
+            versionValue.writeVarintField(INT64_VALUE_VALUE, version);
+            spec.writeMessageField(MODEL_SPEC_VERSION, versionValue);
+        }
+        if (signatureName != null) {
+            spec.writeStringField(MODEL_SPEC_SIGNATURE_NAME, signatureName);
+        }
+        return spec;
+    }
+
+    /**
+     * @return A GetModelMetadataRequest asking for the signatures of the model
+     */
+    static byte[] metadataRequest(String modelName, int version){
+        ProtoWriter request = new ProtoWriter();
+        request.writeMessageField(METADATA_REQUEST_MODEL_SPEC, modelSpec(modelName, version, null));
+        request.writeStringField(METADATA_REQUEST_FIELD, SIGNATURE_DEF_FIELD);
+        return request.toByteArray();
+    }
+
+    /**
+     * Find a signature in a GetModelMetadataResponse
+     *
+     * @param response The serialized response
+     * @param signatureName Name of the signature we will use for predictions
+     * @return The input and output of the signature
+     * @throws IOException If the response is malformed, or the signature is not found or not supported
+     */
+    static Signature parseSignature(byte[] response, String signatureName) throws IOException {
+        ProtoReader metadata = new ProtoReader(response);
+        while (metadata.next()) {
+            if (metadata.field() != METADATA_RESPONSE_METADATA) {
+                metadata.skip();
+                continue;
+            }
+            ProtoReader entry = metadata.readMessage();
+            String key = null;
+            ProtoReader any = null;
+            while (entry.next()) {
+                if (entry.field() == MAP_KEY) {
+                    key = entry.readString();
+                } else if (entry.field() == MAP_VALUE) {
+                    any = entry.readMessage();
+                } else {
+                    entry.skip();
+                }
+            }
+            if (SIGNATURE_DEF_FIELD.equals(key) && any != null) {
+                while (any.next()) {
+                    if (any.field() == ANY_VALUE) {
+                        return Signature.find(any.readMessage(), SIGNATURE_DEF_MAP_SIGNATURE_DEF, signatureName);
+                    }
+                    any.skip();
+                }
+            }
+        }
+        throw new IOException("Model metadata does not contain any signatures");
+    }
+
+    /**
+     * Decode the output tensor of a PredictResponse into the output array.
+     *
+     * @param response The serialized response
+     * @param outputName Name of the output tensor, may be null if the response has a single output
+     * @param output Preallocated array, must have exactly as many elements as the output tensor
+     * @throws IOException If the response is malformed or does not match the size of the output
+     */
+    static void parsePredictResponse(byte[] response, String outputName, float[] output) throws IOException {
+        ProtoReader reader = new ProtoReader(response);
+        ProtoReader tensor = null;
+        int outputs = 0;
+
+        while (reader.next()) {
+            if (reader.field() != PREDICT_RESPONSE_OUTPUTS) {
+                reader.skip();
+                continue;
+            }
+            ProtoReader entry = reader.readMessage();
+            String key = null;
+            ProtoReader value = null;
+            while (entry.next()) {
+                if (entry.field() == MAP_KEY) {
+                    key = entry.readString();
+                } else if (entry.field() == MAP_VALUE) {
+                    value = entry.readMessage();
+                } else {
+                    entry.skip();
+                }
+            }
+            outputs++;
+            if (outputName == null || outputName.equals(key)) {
+                tensor = value;
+            }
+        }
+
+        if (tensor == null) {
+            throw new IOException("Response does not contain any predictions");
+        } else if (outputName == null && outputs > 1) {
+            throw new IOException("Predictions with multiple named outputs are not supported");
+        }
+
+        int count = readFloats(tensor, output);
+        if (count != output.length) {
+            throw new IOException("Expected " + output.length + " predicted values, got " + count);
+        }
+    }
+
+    /**
+     * Read the values of a DT_FLOAT TensorProto, from either tensor_content or float_val
+     *
+     * @return The number of values in the tensor
+     */
+    private static int readFloats(ProtoReader tensor, float[] output) throws IOException {
+        int count = 0;
+        while (tensor.next()) {
+            switch (tensor.field()) {
+                case TENSOR_DTYPE:
+                    int dtype = (int) tensor.readVarint();
+                    if (dtype != Signature.DT_FLOAT) {
+                        throw new IOException("Output type " + dtype + " is not supported, expected DT_FLOAT");
+                    }
+                    break;
+                case TENSOR_CONTENT: {
+                    int length = tensor.readLength();
+                    byte[] bytes = tensor.buffer();
+                    int offset = tensor.offset();
+                    for (int i = 0; i + 4 <= length; i += 4) {
+                        if (count < output.length) {
+                            int bits = (bytes[offset + i] & 0xff) | (bytes[offset + i + 1] & 0xff) << 8
+                                    | (bytes[offset + i + 2] & 0xff) << 16 | (bytes[offset + i + 3] & 0xff) << 24;
+                            output[count] = Float.intBitsToFloat(bits);
+                        }
+                        count++;
+                    }
+                    tensor.skipBytes(length);
+                    break;
+                }
+                case TENSOR_FLOAT_VAL:
+                    if (tensor.wireType() == ProtoWriter.LENGTH_DELIMITED) {
+                        ProtoReader packed = tensor.readMessage();
+                        while (packed.hasRemaining()) {
+                            float value = packed.readFloat();
+                            if (count < output.length) {
+                                output[count] = value;
+                            }
+                            count++;
+                        }
+                    } else {
+                        float value = tensor.readFloat();
+                        if (count < output.length) {
+                            output[count] = value;
+                        }
+                        count++;
+                    }
+                    break;
+                default:
+                    tensor.skip();
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,156 @@
+package nl.zakarias.constellation.raid.modelServing.protobuf;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal protocol buffers decoder, reads the fields of a message from a byte array one at a time. Nested messages
+ * are read with a new reader over the same array, so no bytes are copied.
+ */
+public class ProtoReader {
+    private final byte[] buffer;
+    private int pos;
+    private final int limit;
+
+    private int tag = 0;
+
+    public ProtoReader(byte[] buffer){
+        this(buffer, 0, buffer.length);
+    }
+
+    public ProtoReader(byte[] buffer, int offset, int length){
+        this.buffer = buffer;
+        this.pos = offset;
+        this.limit = offset + length;
+    }
+
+    /**
+     * Move to the next field
+     *
+     * @return False if there are no more fields in the message
+     * @throws IOException If the message is malformed
+     */
+    public boolean next() throws IOException {
+        if (!hasRemaining()) {
+            return false;
+        }
+        tag = (int) readVarint();
+        if (tag == 0) {
+            throw new IOException("Invalid protobuf field tag 0");
+        }
+        return true;
+    }
+
+    public boolean hasRemaining(){
+        return pos < limit;
+    }
+
+    public int field(){
+        return tag >>> 3;
+    }
+
+    public int wireType(){
+        return tag & 0x7;
+    }
+
+    public long readVarint() throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos >= limit) {
+                throw new IOException("Truncated protobuf varint");
+            }
+            byte b = buffer[pos++];
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed protobuf varint");
+    }
+
+    public int readFixed32() throws IOException {
+        require(4);
+        int value = (buffer[pos] & 0xff) | (buffer[pos + 1] & 0xff) << 8 | (buffer[pos + 2] & 0xff) << 16 | (buffer[pos + 3] & 0xff) << 24;
+        pos += 4;
+        return value;
+    }
+
+    public long readFixed64() throws IOException {
+        long low = readFixed32() & 0xFFFFFFFFL;
+        long high = readFixed32() & 0xFFFFFFFFL;
+        return low | high << 32;
+    }
+
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readFixed32());
+    }
+
+    /**
+     * @return The length of the current length delimited field, after which {@link #offset()} points at its content
+     */
+    public int readLength() throws IOException {
+        long length = readVarint();
+        if (length < 0 || length > limit - pos) {
+            throw new IOException("Truncated protobuf field");
+        }
+        return (int) length;
+    }
+
+    /**
+     * @return A reader over the content of the current length delimited field
+     */
+    public ProtoReader readMessage() throws IOException {
+        int length = readLength();
+        ProtoReader message = new ProtoReader(buffer, pos, length);
+        pos += length;
+        return message;
+    }
+
+    public String readString() throws IOException {
+        int length = readLength();
+        String value = new String(buffer, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+        return value;
+    }
+
+    public byte[] buffer(){
+        return buffer;
+    }
+
+    public int offset(){
+        return pos;
+    }
+
+    public void skipBytes(int length) throws IOException {
+        require(length);
+        pos += length;
+    }
+
+    /**
+     * Skip the value of the current field
+     */
+    public void skip() throws IOException {
+        switch (wireType()) {
+            case ProtoWriter.VARINT:
+                readVarint();
+                break;
+            case ProtoWriter.FIXED64:
+                skipBytes(8);
+                break;
+            case ProtoWriter.LENGTH_DELIMITED:
+                skipBytes(readLength());
+                break;
+            case ProtoWriter.FIXED32:
+                skipBytes(4);
+                break;
+            default:
+                throw new IOException("Unsupported protobuf wire type " + wireType());
+        }
+    }
+
+    private void require(int length) throws IOException {
+        if (length > limit - pos) {
+            throw new IOException("Truncated protobuf field");
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package nl.zakarias.constellation.raid.modelServing.protobuf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal protocol buffers encoder, writes fields in the binary wire format into a growing byte array. Only used for
+ * the small parts of a message, large tensor contents are streamed separately (e.g. the images of a PredictRequest).
+ */
+public class ProtoWriter {
+    public static final int VARINT = 0;
+    public static final int FIXED64 = 1;
+    public static final int LENGTH_DELIMITED = 2;
+    public static final int FIXED32 = 5;
+
+    private byte[] buffer = new byte[128];
+    private int size = 0;
+
+    /**
+     * @param value Unsigned value to encode
+     * @return Number of bytes needed to encode the value as varint
+     */
+    public static int varintSize(long value){
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * @param field Field number
+     * @param length Length of the content of a length delimited field
+     * @return Number of bytes of the complete field: tag, length and content
+     */
+    public static long lengthDelimitedSize(int field, long length){
+        return varintSize(field << 3) + varintSize(length) + length;
+    }
+
+    private void ensure(int extra){
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+
+    public void writeVarint(long value){
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+    }
+
+    public void writeTag(int field, int wireType){
+        writeVarint((field << 3) | wireType);
+    }
+
+    public void writeVarintField(int field, long value){
+        writeTag(field, VARINT);
+        writeVarint(value);
+    }
+
+    public void writeBytesField(int field, byte[] value){
+        writeTag(field, LENGTH_DELIMITED);
+        writeVarint(value.length);
+        ensure(value.length);
+        System.arraycopy(value, 0, buffer, size, value.length);
+        size += value.length;
+    }
+
+    public void writeStringField(int field, String value){
+        writeBytesField(field, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void writeMessageField(int field, ProtoWriter message){
+        writeBytesField(field, message.toByteArray());
+    }
+
+    /**
+     * Write only the tag and length of a length delimited field, the content has to follow directly after
+     */
+    public void writeLengthDelimitedHeader(int field, long length){
+        writeTag(field, LENGTH_DELIMITED);
+        writeVarint(length);
+    }
+
+    /**
+     * Append the content of another writer, without a tag or length
+     */
+    public void writeBytes(ProtoWriter other){
+        ensure(other.size);
+        System.arraycopy(other.buffer, 0, buffer, size, other.size);
+        size += other.size;
+    }
+
+    public void writeFloat(float value){
+        ensure(4);
+        int bits = Float.floatToRawIntBits(value);
+        buffer[size++] = (byte) bits;
+        buffer[size++] = (byte) (bits >>> 8);
+        buffer[size++] = (byte) (bits >>> 16);
+        buffer[size++] = (byte) (bits >>> 24);
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public byte[] toByteArray(){
+        return Arrays.copyOf(buffer, size);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+}
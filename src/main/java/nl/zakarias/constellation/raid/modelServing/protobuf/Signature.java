@@ -0,0 +1,188 @@
+package nl.zakarias.constellation.raid.modelServing.protobuf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The input and output of a SignatureDef (tensorflow/core/protobuf/meta_graph.proto), as far as we need them to make
+ * a prediction and to size its input and output. Only signatures with a single input tensor are supported.
+ */
+public class Signature {
+    /** DataType enum values from types.proto */
+    public static final int DT_FLOAT = 1;
+    public static final int DT_INT32 = 3;
+    public static final int DT_UINT8 = 4;
+    /** Encoded images, decoded by the model */
+    public static final int DT_STRING = 7;
+
+    private static final int MAP_KEY = 1;
+    private static final int MAP_VALUE = 2;
+
+    private static final int SIGNATURE_DEF_INPUTS = 1;
+    private static final int SIGNATURE_DEF_OUTPUTS = 2;
+    private static final int TENSOR_INFO_NAME = 1;
+    private static final int TENSOR_INFO_DTYPE = 2;
+    private static final int TENSOR_INFO_TENSOR_SHAPE = 3;
+    private static final int SHAPE_DIM = 2;
+    private static final int SHAPE_UNKNOWN_RANK = 3;
+    private static final int DIM_SIZE = 1;
+
+    /** Alias of the input in the signature, used as key in a PredictRequest */
+    public final String inputName;
+    /** Name of the input tensor in the graph, e.g. images:0 */
+    public final String inputTensor;
+    public final int inputType;
+    /** Shape of the input including the batch dimension, -1 for dimensions of any size, null if the rank is unknown */
+    public final long[] inputShape;
+    /** Alias of the only output, or null if the signature has more than one output */
+    public final String outputName;
+    /** Name of the only output tensor in the graph, or null if the signature has more than one output */
+    public final String outputTensor;
+    /** Shape of the only output including the batch dimension, null if unknown or the signature has more outputs */
+    public final long[] outputShape;
+
+    private Signature(String inputName, String inputTensor, int inputType, long[] inputShape, String outputName, String outputTensor, long[] outputShape){
+        this.inputName = inputName;
+        this.inputTensor = inputTensor;
+        this.inputType = inputType;
+        this.inputShape = inputShape;
+        this.outputName = outputName;
+        this.outputTensor = outputTensor;
+        this.outputShape = outputShape;
+    }
+
+    /**
+     * Find a signature in a message containing a map of SignatureDefs, such as a SignatureDefMap or a MetaGraphDef.
+     *
+     * @param message Reader over the message containing the map
+     * @param mapField Field number of the map in the message
+     * @param signatureName Name of the signature
+     * @return The input and output of the signature
+     * @throws IOException If the message is malformed, or the signature is not found or not supported
+     */
+    public static Signature find(ProtoReader message, int mapField, String signatureName) throws IOException {
+        while (message.next()) {
+            if (message.field() != mapField) {
+                message.skip();
+                continue;
+            }
+            ProtoReader entry = message.readMessage();
+            String key = null;
+            ProtoReader signatureDef = null;
+            while (entry.next()) {
+                if (entry.field() == MAP_KEY) {
+                    key = entry.readString();
+                } else if (entry.field() == MAP_VALUE) {
+                    signatureDef = entry.readMessage();
+                } else {
+                    entry.skip();
+                }
+            }
+            if (signatureName.equals(key) && signatureDef != null) {
+                return parse(signatureDef, signatureName);
+            }
+        }
+        throw new IOException("Model has no signature named " + signatureName);
+    }
+
+    private static Signature parse(ProtoReader signatureDef, String signatureName) throws IOException {
+        List<String> inputNames = new ArrayList<>();
+        List<String> inputTensors = new ArrayList<>();
+        List<Integer> inputTypes = new ArrayList<>();
+        List<long[]> inputShapes = new ArrayList<>();
+        List<String> outputNames = new ArrayList<>();
+        List<String> outputTensors = new ArrayList<>();
+        List<long[]> outputShapes = new ArrayList<>();
+
+        while (signatureDef.next()) {
+            int field = signatureDef.field();
+            if (field != SIGNATURE_DEF_INPUTS && field != SIGNATURE_DEF_OUTPUTS) {
+                signatureDef.skip();
+                continue;
+            }
+            ProtoReader entry = signatureDef.readMessage();
+            String key = null;
+            String tensor = null;
+            int dtype = 0;
+            long[] shape = null;
+            while (entry.next()) {
+                if (entry.field() == MAP_KEY) {
+                    key = entry.readString();
+                } else if (entry.field() == MAP_VALUE) {
+                    ProtoReader tensorInfo = entry.readMessage();
+                    while (tensorInfo.next()) {
+                        if (tensorInfo.field() == TENSOR_INFO_NAME) {
+                            tensor = tensorInfo.readString();
+                        } else if (tensorInfo.field() == TENSOR_INFO_DTYPE) {
+                            dtype = (int) tensorInfo.readVarint();
+                        } else if (tensorInfo.field() == TENSOR_INFO_TENSOR_SHAPE) {
+                            shape = parseShape(tensorInfo.readMessage());
+                        } else {
+                            tensorInfo.skip();
+                        }
+                    }
+                } else {
+                    entry.skip();
+                }
+            }
+            if (field == SIGNATURE_DEF_INPUTS) {
+                inputNames.add(key);
+                inputTensors.add(tensor);
+                inputTypes.add(dtype);
+                inputShapes.add(shape);
+            } else {
+                outputNames.add(key);
+                outputTensors.add(tensor);
+                outputShapes.add(shape);
+            }
+        }
+
+        if (inputNames.size() != 1) {
+            throw new IOException("Signature " + signatureName + " has " + inputNames.size() + " inputs, only signatures with a single input are supported");
+        }
+        int inputType = inputTypes.get(0);
+        if (inputType != DT_FLOAT && inputType != DT_INT32 && inputType != DT_UINT8 && inputType != DT_STRING) {
+            throw new IOException("Input type " + inputType + " of signature " + signatureName + " is not supported");
+        }
+        boolean singleOutput = outputNames.size() == 1;
+        return new Signature(inputNames.get(0), inputTensors.get(0), inputType, inputShapes.get(0),
+                singleOutput ? outputNames.get(0) : null, singleOutput ? outputTensors.get(0) : null,
+                singleOutput ? outputShapes.get(0) : null);
+    }
+
+    /**
+     * @param shapeProto Reader over a TensorShapeProto
+     * @return The size of each dimension, -1 for dimensions of any size, or null if the rank is unknown
+     */
+    private static long[] parseShape(ProtoReader shapeProto) throws IOException {
+        List<Long> dims = new ArrayList<>();
+        boolean unknownRank = false;
+        while (shapeProto.next()) {
+            if (shapeProto.field() == SHAPE_DIM) {
+                ProtoReader dim = shapeProto.readMessage();
+                long size = 0;
+                while (dim.next()) {
+                    if (dim.field() == DIM_SIZE) {
+                        size = dim.readVarint();
+                    } else {
+                        dim.skip();
+                    }
+                }
+                dims.add(size);
+            } else if (shapeProto.field() == SHAPE_UNKNOWN_RANK) {
+                unknownRank = shapeProto.readVarint() != 0;
+            } else {
+                shapeProto.skip();
+            }
+        }
+        if (unknownRank) {
+            return null;
+        }
+        long[] shape = new long[dims.size()];
+        for (int i = 0; i < shape.length; i++) {
+            shape[i] = dims.get(i);
+        }
+        return shape;
+    }
+}
@@ -0,0 +1,93 @@
+package nl.zakarias.constellation.raid.modelServing.tensorflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the models from the TensorFlow Serving model config file (tensorflow/tensorflow_serving/ModelServerConfig.conf),
+ * so the in process backend serves the same models as TensorFlow Serving would.
+ */
+class ModelServerConfig {
+    private static final Pattern CONFIG = Pattern.compile("config\\s*\\{([^}]*)}");
+    private static final Pattern FIELD = Pattern.compile("(\\w+)\\s*:\\s*(['\"])(.*?)\\2");
+
+    /** Base path of each model, by model name */
+    private final Map<String, String> basePaths = new HashMap<>();
+
+    /**
+     * @param configFile Path to the model config file
+     * @throws IOException If the file cannot be read or contains no models
+     */
+    ModelServerConfig(String configFile) throws IOException {
+        String content = new String(Files.readAllBytes(Paths.get(configFile)), StandardCharsets.UTF_8);
+
+        Matcher config = CONFIG.matcher(content);
+        while (config.find()) {
+            String name = null;
+            String basePath = null;
+
+            Matcher field = FIELD.matcher(config.group(1));
+            while (field.find()) {
+                if (field.group(1).equals("name")) {
+                    name = field.group(3);
+                } else if (field.group(1).equals("base_path")) {
+                    basePath = field.group(3);
+                }
+            }
+            if (name != null && basePath != null) {
+                basePaths.put(name, basePath);
+            }
+        }
+
+        if (basePaths.isEmpty()) {
+            throw new IOException("No models found in TensorFlow model config file " + configFile);
+        }
+    }
+
+    /**
+     * Find the SavedModel directory of a model version, TensorFlow Serving stores each version in a numbered
+     * directory inside the base path of the model.
+     *
+     * @param modelName Name of the model
+     * @param version Model version number, 0 for the latest version
+     * @return The directory containing saved_model.pb
+     * @throws IOException If the model or version does not exist
+     */
+    String modelDirectory(String modelName, int version) throws IOException {
+        String basePath = basePaths.get(modelName);
+        if (basePath == null) {
+            throw new IOException("Model " + modelName + " is not in the TensorFlow model config file");
+        }
+
+        if (version > 0) {
+            File directory = new File(basePath, Integer.toString(version));
+            if (!directory.isDirectory()) {
+                throw new IOException("Version " + version + " of model " + modelName + " not found in " + basePath);
+            }
+            return directory.getPath();
+        }
+
+        long latest = -1;
+        File[] versions = new File(basePath).listFiles(File::isDirectory);
+        if (versions != null) {
+            for (File directory : versions) {
+                try {
+                    latest = Math.max(latest, Long.parseLong(directory.getName()));
+                } catch (NumberFormatException e) {
+                    // Not a version directory
+                }
+            }
+        }
+        if (latest < 0) {
+            throw new IOException("No versions of model " + modelName + " found in " + basePath);
+        }
+        return new File(basePath, Long.toString(latest)).getPath();
+    }
+}
@@ -0,0 +1,237 @@
+package nl.zakarias.constellation.raid.modelServing.tensorflow;
+
+import nl.zakarias.constellation.raid.modelServing.InferenceBackend;
+import nl.zakarias.constellation.raid.modelServing.ModelMetadata;
+import nl.zakarias.constellation.raid.modelServing.ModelServingException;
+import nl.zakarias.constellation.raid.modelServing.protobuf.ProtoReader;
+import nl.zakarias.constellation.raid.modelServing.protobuf.Signature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tensorflow.DataType;
+import org.tensorflow.SavedModelBundle;
+import org.tensorflow.Tensor;
+import org.tensorflow.TensorFlowException;
+import org.tensorflow.Tensors;
+import org.tensorflow.types.UInt8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Makes predictions inside the JVM with the TensorFlow Java API, without TensorFlow Serving. The SavedModels listed in
+ * the TensorFlow Serving model config file are loaded once per process, when first used, and run in the thread of the
+ * executor calling {@link #predict}. Input tensors are filled straight from the image array, no request is encoded
+ * and nothing is sent over the network.
+ */
+public class TensorFlowBackend implements InferenceBackend {
+    private static final Logger logger = LoggerFactory.getLogger(TensorFlowBackend.class);
+
+    /** Tag of the MetaGraph TensorFlow Serving loads from a SavedModel */
+    private static final String SERVE_TAG = "serve";
+
+    /** Field number of the signature_def map in a MetaGraphDef */
+    private static final int META_GRAPH_SIGNATURE_DEF = 5;
+
+    /** gRPC status code TensorFlow Serving answers requests with when their input type is not supported */
+    private static final int GRPC_UNIMPLEMENTED = 12;
+
+    private final ModelServerConfig config;
+    private final Map<String, Model> models = new ConcurrentHashMap<>();
+
+    /** Reused for the input values of each executor thread */
+    private final ThreadLocal<float[]> floatInputs = ThreadLocal.withInitial(() -> new float[0]);
+    private final ThreadLocal<int[]> intInputs = ThreadLocal.withInitial(() -> new int[0]);
+
+    /**
+     * A loaded SavedModel and the signatures used so far
+     */
+    private static class Model {
+        final SavedModelBundle bundle;
+        final Map<String, Signature> signatures = new ConcurrentHashMap<>();
+
+        Model(SavedModelBundle bundle){
+            this.bundle = bundle;
+        }
+
+        Signature signature(String signatureName) throws IOException {
+            Signature signature = signatures.get(signatureName);
+            if (signature == null) {
+                signature = Signature.find(new ProtoReader(bundle.metaGraphDef()), META_GRAPH_SIGNATURE_DEF, signatureName);
+                if (signature.outputTensor == null) {
+                    throw new IOException("Predictions with multiple named outputs are not supported");
+                }
+                signatures.put(signatureName, signature);
+            }
+            return signature;
+        }
+    }
+
+    /**
+     * @param configFile Path to the TensorFlow Serving model config file listing the models and their base paths
+     * @throws IOException If the config file cannot be read
+     */
+    public TensorFlowBackend(String configFile) throws IOException {
+        this.config = new ModelServerConfig(configFile);
+    }
+
+    private Model model(String modelName, int version) throws IOException {
+        String key = modelName + ":" + version;
+        Model model = models.get(key);
+        if (model != null) {
+            return model;
+        }
+
+        synchronized (models) {
+            model = models.get(key);
+            if (model == null) {
+                String directory = config.modelDirectory(modelName, version);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Loading SavedModel " + directory);
+                }
+                try {
+                    model = new Model(SavedModelBundle.load(directory, SERVE_TAG));
+                } catch (TensorFlowException e) {
+                    throw new IOException("Could not load SavedModel " + directory + ": " + e.getMessage(), e);
+                }
+                models.put(key, model);
+            }
+            return model;
+        }
+    }
+
+    @Override
+    public void predict(String modelName, int version, byte[] images, int[] shape, String signatureName, float[] output) throws IOException {
+        long[] tensorShape = new long[shape.length];
+        for (int i = 0; i < shape.length; i++) {
+            tensorShape[i] = shape[i];
+        }
+
+        // The images are laid out as the input tensor already, no copy is needed
+        predict(modelName, version, signatureName, tensorShape, images, output);
+    }
+
+    /**
+     * @param shape Shape of the input tensor, the first dimension is the batch
+     * @param pixels The pixel values of the batch in row major order, may be longer than the tensor
+     */
+    private void predict(String modelName, int version, String signatureName, long[] shape, byte[] pixels, float[] output) throws IOException {
+        long startTime = System.nanoTime();
+
+        Model model = model(modelName, version);
+        Signature signature = model.signature(signatureName);
+
+        int elements = 1;
+        for (long size : shape) {
+            elements *= (int) size;
+        }
+
+        try (Tensor<?> input = createInput(signature.inputType, shape, pixels, elements)) {
+            run(modelName, model, signature, input, output);
+        } catch (TensorFlowException | IllegalArgumentException e) {
+            throw new IOException("Prediction with model " + modelName + " failed: " + e.getMessage(), e);
+        }
+
+        if (logger.isDebugEnabled()) {
+            long duration = (System.nanoTime() - startTime) / 1000000;
+            logger.debug("Classification took: " + duration + "ms");
+        }
+    }
+
+    @Override
+    public void predictEncoded(String modelName, int version, byte[][] images, String signatureName, float[] output) throws IOException {
+        long startTime = System.nanoTime();
+
+        Model model = model(modelName, version);
+        Signature signature = model.signature(signatureName);
+        if (signature.inputType != Signature.DT_STRING) {
+            throw new IOException("Input " + signature.inputName + " of type " + signature.inputType + " does not take encoded images, expected DT_STRING");
+        }
+
+        // A one dimensional string tensor holding the encoded bytes of each image
+        try (Tensor<String> input = Tensors.create(images)) {
+            run(modelName, model, signature, input, output);
+        } catch (TensorFlowException | IllegalArgumentException e) {
+            throw new IOException("Prediction with model " + modelName + " failed: " + e.getMessage(), e);
+        }
+
+        if (logger.isDebugEnabled()) {
+            long duration = (System.nanoTime() - startTime) / 1000000;
+            logger.debug("Classification took: " + duration + "ms");
+        }
+    }
+
+    /**
+     * Feed the input tensor to the signature of the model and copy the predictions to the output
+     */
+    private static void run(String modelName, Model model, Signature signature, Tensor<?> input, float[] output) throws IOException {
+        List<Tensor<?>> results = model.bundle.session().runner()
+                .feed(signature.inputTensor, input)
+                .fetch(signature.outputTensor)
+                .run();
+
+        try (Tensor<?> result = results.get(0)) {
+            if (result.dataType() != DataType.FLOAT) {
+                throw new IOException("Output type " + result.dataType() + " of model " + modelName + " is not supported, expected FLOAT");
+            } else if (result.numElements() != output.length) {
+                throw new IOException("Expected " + output.length + " predicted values, got " + result.numElements());
+            }
+            result.writeTo(FloatBuffer.wrap(output));
+        }
+    }
+
+    /**
+     * Create the input tensor in the type expected by the signature, pixels are unsigned bytes
+     *
+     * @throws ModelServingException If the signature does not take pixels, but e.g. encoded images
+     */
+    private Tensor<?> createInput(int type, long[] shape, byte[] pixels, int elements) throws ModelServingException {
+        switch (type) {
+            case Signature.DT_FLOAT: {
+                float[] values = floatInputs.get();
+                if (values.length < elements) {
+                    values = new float[elements];
+                    floatInputs.set(values);
+                }
+                for (int i = 0; i < elements; i++) {
+                    values[i] = pixels[i] & 0xff;
+                }
+                return Tensor.create(shape, FloatBuffer.wrap(values, 0, elements));
+            }
+            case Signature.DT_INT32: {
+                int[] values = intInputs.get();
+                if (values.length < elements) {
+                    values = new int[elements];
+                    intInputs.set(values);
+                }
+                for (int i = 0; i < elements; i++) {
+                    values[i] = pixels[i] & 0xff;
+                }
+                return Tensor.create(shape, IntBuffer.wrap(values, 0, elements));
+            }
+            case Signature.DT_UINT8:
+                return Tensor.create(UInt8.class, shape, ByteBuffer.wrap(pixels, 0, elements));
+            default:
+                throw new ModelServingException(GRPC_UNIMPLEMENTED, "Input type " + type + " is not supported, expected DT_FLOAT, DT_INT32 or DT_UINT8");
+        }
+    }
+
+    @Override
+    public ModelMetadata metadata(String modelName, int version, String signatureName) throws IOException {
+        return ModelMetadata.fromSignature(model(modelName, version).signature(signatureName));
+    }
+
+    @Override
+    public void close(){
+        synchronized (models) {
+            for (Model model : models.values()) {
+                model.bundle.close();
+            }
+            models.clear();
+        }
+    }
+}
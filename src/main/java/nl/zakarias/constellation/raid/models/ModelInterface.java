@@ -18,17 +18,13 @@ public interface ModelInterface {
      *
      * @param constellation The {@link ibis.constellation.Constellation} instance initiated by this process
      * @param targetActivityIdentifier {@link ibis.constellation.ActivityIdentifier} matching a {@link nl.zakarias.constellation.raid.Target}
-     * @param sourceDir The source directory where all data to be classified is stored (e.g. a directory of images)
      * @param contexts The {@link ibis.constellation.AbstractContext} for this process, provided by the argument
      *                -contexts <list_of_contexts>
-     * @param batchSize The number of images to send in each Activity
-     * @param timeInterval Time between sending images (in milliseconds)
-     * @param batchSize The number of images to send in each Activity
-     * @param endless Whether to keep sending batches forever or to sop after the batchCount has been reached.
+     * @param options What to send and how, e.g. the source directory, batch size and pacing
      * @throws IOException In case we cannot read the data in the sourceDir
      * @throws NoSuitableExecutorException In case something goes wrong when submitting an
      *                                     {@link ibis.constellation.Activity} associated with a one input batch
      *                                     (e.g. a batch of images)
      */
-    void run(Constellation constellation, ActivityIdentifier targetActivityIdentifier, String sourceDir, AbstractContext contexts, int batchSize, int timeInterval, int batchCount, boolean endless) throws IOException, NoSuitableExecutorException;
+    void run(Constellation constellation, ActivityIdentifier targetActivityIdentifier, AbstractContext contexts, ShardOptions options) throws IOException, NoSuitableExecutorException;
 }
\ No newline at end of file
@@ -0,0 +1,52 @@
+package nl.zakarias.constellation.raid.models;
+
+import nl.zakarias.constellation.raid.flowControl.CreditWindow;
+import nl.zakarias.constellation.raid.flowControl.DuplicateFilter;
+import nl.zakarias.constellation.raid.flowControl.Pacer;
+import nl.zakarias.constellation.raid.utils.SpoolDirectory;
+
+/**
+ * What a {@link ModelInterface} sends for one shard of the Source, and how. Settings which do not apply to a model are
+ * ignored by it, e.g. models reading a binary dataset have no files to send encoded or to watch.
+ */
+public class ShardOptions {
+    /** The source directory where all data to be classified is stored (e.g. a directory of images) */
+    public final String sourceDir;
+    /** The number of images to send in each Activity */
+    public final int batchSize;
+    /** The number of batches to send before stopping, unless endless */
+    public final int batchCount;
+    /** Whether to keep sending batches forever or to stop after the batchCount has been reached */
+    public final boolean endless;
+    /** Whether to send image files as they are stored (e.g. JPEG) instead of decoded pixels */
+    public final boolean encoded;
+    /**
+     * Whether to compress the pixels of every batch with {@link nl.zakarias.constellation.raid.utils.LZ4} before
+     * submitting it, ignored when sending encoded images
+     */
+    public final boolean compress;
+    /**
+     * Decides when each batch is sent, {@link Pacer#await()} must be called before reading a batch and
+     * {@link Pacer#submitted(int)} after submitting it
+     */
+    public final Pacer pacer;
+    /** Files arriving in the sourceDir while it is being watched, or null to only read the files in it at the start */
+    public final SpoolDirectory spool;
+    /** Window limiting the number of batches in flight, a credit must be acquired for every batch and handed to its Activity */
+    public final CreditWindow credits;
+    /** Drops frames looking almost the same as the last frame sent of their stream */
+    public final DuplicateFilter duplicates;
+
+    public ShardOptions(String sourceDir, int batchSize, int batchCount, boolean endless, boolean encoded, boolean compress, Pacer pacer, SpoolDirectory spool, CreditWindow credits, DuplicateFilter duplicates){
+        this.sourceDir = sourceDir;
+        this.batchSize = batchSize;
+        this.batchCount = batchCount;
+        this.endless = endless;
+        this.encoded = encoded;
+        this.compress = compress;
+        this.pacer = pacer;
+        this.spool = spool;
+        this.credits = credits;
+        this.duplicates = duplicates;
+    }
+}
@@ -5,7 +5,13 @@ import ibis.constellation.ActivityIdentifier;
 import ibis.constellation.Constellation;
 import ibis.constellation.NoSuitableExecutorException;
 import nl.zakarias.constellation.raid.configuration.Configuration;
+import nl.zakarias.constellation.raid.flowControl.Credit;
+import nl.zakarias.constellation.raid.flowControl.CreditWindow;
+import nl.zakarias.constellation.raid.flowControl.Pacer;
 import nl.zakarias.constellation.raid.models.ModelInterface;
+import nl.zakarias.constellation.raid.models.ShardOptions;
+import nl.zakarias.constellation.raid.utils.ImageDataset;
+import nl.zakarias.constellation.raid.utils.Tensor;
 import nl.zakarias.constellation.raid.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,23 +22,25 @@ public class Cifar10 implements ModelInterface {
     private static Logger logger = LoggerFactory.getLogger(Cifar10.class);
 
     static String modelName = Configuration.ModelName.CIFAR10.toString().toLowerCase();  // Matches tensorflow_serving
-    static String signatureString = "predict";  // Matches tensorflow_serving
+    static String signatureString = Configuration.SIGNATURE_NAME;
 
     private int batchSize = 1;
     private int batchCount = Configuration.BATCH_COUNT;
-    private int timeInterval = Configuration.TIME_INTERVAL;
     private boolean endless = Configuration.ENDLESS;
+    private boolean compress = false;
+    private CreditWindow credits;
+    private Pacer pacer;
 
-    private void sendCifar10ImageBatch(byte[][][][] images, byte[] targets, Constellation constellation, ActivityIdentifier aid, AbstractContext contexts) throws IOException, NoSuitableExecutorException {
+    private void sendCifar10ImageBatch(Tensor images, byte[] targets, Credit credit, Constellation constellation, ActivityIdentifier aid, AbstractContext contexts) throws IOException, NoSuitableExecutorException {
         // Generate imageIdentifiers in order to link back the result to the image CURRENTLY DISCARDED UPON METHOD EXIT
-        int[] imageIdentifiers = new int[images.length];
-        // Create imageIdentifiers
-        for(int i=0; i<imageIdentifiers.length; i++){
-            imageIdentifiers[i] = Utils.imageIdentifier(images[i]);
+        long[] imageIdentifiers = Utils.nextImageIdentifiers(images.count());
+        long[] imageHashes = Configuration.HASH_IMAGES ? images.imageHashes() : null;
+        if (compress) {
+            images.compress();
         }
 
         // Generate activity
-        Cifar10Activity activity = new Cifar10Activity(constellation.identifier().toString(), contexts, true, false, images, targets, aid, imageIdentifiers);
+        Cifar10Activity activity = new Cifar10Activity(constellation.identifier().toString(), contexts, true, true, images, targets, aid, imageIdentifiers, imageHashes, credit);
 
         // submit activity
         if (logger.isDebugEnabled()) {
@@ -46,43 +54,24 @@ public class Cifar10 implements ModelInterface {
             logger.debug("Reading Cifar10 image and label file...");
         }
 
-        byte[][][][] images = Utils.readCifar10(sourceDir + "/data_batch_1.bin");
+        // The images are mapped, each batch is copied out of the file when it is sent
+        ImageDataset images = ImageDataset.cifar10(sourceDir + "/data_batch_1.bin");
 
         int counter = 0;
         while(true) {
-            // Check if we are approaching the Java heap memory limitations, in that case stop uploading until
-            // We have more memory available
-            if (Runtime.getRuntime().totalMemory() == Runtime.getRuntime().maxMemory() && Runtime.getRuntime().freeMemory() < (Configuration.HEAP_MEMORY_THRESHOLD*1000)) {
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Memory threshold reached, Activity submission blocked. Avail memory: " + Runtime.getRuntime().freeMemory()/1000 + "KB");
-                }
-
-                try {
-                    Thread.sleep(this.timeInterval);
-                } catch (InterruptedException e) {
-                    logger.error("Failed to sleep when approaching Java heap memory limitation");
+            for (int i = 0; i < images.count(); i += batchSize) {
+                // Wait until the next batch is due
+                if (!pacer.await()) {
+                    return;
                 }
 
-                // Start over as other nodes might have stolen some Activities from this node
-                continue;
-            }
-
-            for (int i = 0; i < images.length; i += batchSize) {
-                byte[][][][] imageBatch = new byte[batchSize][images[i].length][images[i][0].length][images[i][0][0].length];
-    //            byte[] targetBatch = new byte[batchSize];
-
-                for (int x = 0; x < batchSize; x++){
-                    imageBatch[x] = images[i+x];
-    //                targetBatch[x] = targets[i+x];
-                }
+                // Wait until the source may have another batch in flight, before copying it
+                Credit credit = credits.acquire();
+                Tensor imageBatch = images.batch3D(i, Math.min(batchSize, images.count() - i));
 
-                sendCifar10ImageBatch(imageBatch, null, constellation, target, contexts);
+                sendCifar10ImageBatch(imageBatch, null, credit, constellation, target, contexts);
 
-                try {
-                    Thread.sleep(this.timeInterval);
-                } catch (InterruptedException e) {
-                    logger.error("Failed to sleep between submitting batches");
-                }
+                pacer.submitted(imageBatch.count());
 
                 counter++;
                 if (counter == batchCount && !endless){
@@ -93,11 +82,13 @@ public class Cifar10 implements ModelInterface {
     }
 
     @Override
-    public void run(Constellation constellation, ActivityIdentifier targetActivityIdentifier, String sourceDir, AbstractContext contexts, int batchSize, int timeInterval, int batchCount, boolean endless) throws IOException, NoSuitableExecutorException {
-        this.batchSize = batchSize;
-        this.timeInterval = timeInterval;
-        this.batchCount = batchCount;
-        this.endless = endless;
-        runCifar10(constellation, targetActivityIdentifier, sourceDir, contexts);
+    public void run(Constellation constellation, ActivityIdentifier targetActivityIdentifier, AbstractContext contexts, ShardOptions options) throws IOException, NoSuitableExecutorException {
+        this.batchSize = options.batchSize;
+        this.pacer = options.pacer;
+        this.batchCount = options.batchCount;
+        this.endless = options.endless;
+        this.compress = options.compress;
+        this.credits = options.credits;
+        runCifar10(constellation, targetActivityIdentifier, options.sourceDir, contexts);
     }
 }
@@ -2,7 +2,13 @@ package nl.zakarias.constellation.raid.models.mnist;
 
 import ibis.constellation.*;
 import nl.zakarias.constellation.raid.configuration.Configuration;
+import nl.zakarias.constellation.raid.flowControl.Credit;
+import nl.zakarias.constellation.raid.flowControl.CreditWindow;
+import nl.zakarias.constellation.raid.flowControl.Pacer;
 import nl.zakarias.constellation.raid.models.ModelInterface;
+import nl.zakarias.constellation.raid.models.ShardOptions;
+import nl.zakarias.constellation.raid.utils.ImageDataset;
+import nl.zakarias.constellation.raid.utils.Tensor;
 import nl.zakarias.constellation.raid.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,23 +19,25 @@ public class Mnist implements ModelInterface {
     private static Logger logger = LoggerFactory.getLogger(Mnist.class);
 
     static String modelName = Configuration.ModelName.MNIST.toString().toLowerCase();  // Matches tensorflow_serving
-    static String signatureString = "predict";  // Matches tensorflow_serving
+    static String signatureString = Configuration.SIGNATURE_NAME;
 
     private int batchSize = 1;
     private int batchCount = Configuration.BATCH_COUNT;
-    private int timeInterval = Configuration.TIME_INTERVAL;
     private boolean endless = Configuration.ENDLESS;
+    private boolean compress = false;
+    private CreditWindow credits;
+    private Pacer pacer;
 
-    private void sendMnistImageBatch(byte[][] images, byte[] targets, Constellation constellation, ActivityIdentifier aid, AbstractContext contexts) throws IOException, NoSuitableExecutorException {
+    private void sendMnistImageBatch(Tensor images, byte[] targets, Credit credit, Constellation constellation, ActivityIdentifier aid, AbstractContext contexts) throws IOException, NoSuitableExecutorException {
         // Generate imageIdentifiers in order to link back the result to the image CURRENTLY DISCARDED UPON METHOD EXIT
-        int[] imageIdentifiers = new int[images.length];
-        // Create imageIdentifiers
-        for(int i=0; i<imageIdentifiers.length; i++){
-            imageIdentifiers[i] = Utils.imageIdentifier(images[i]);
+        long[] imageIdentifiers = Utils.nextImageIdentifiers(images.count());
+        long[] imageHashes = Configuration.HASH_IMAGES ? images.imageHashes() : null;
+        if (compress) {
+            images.compress();
         }
 
         // Generate activity
-        MnistActivity activity = new MnistActivity(constellation.identifier().toString(), contexts, true, false, images, targets, aid, imageIdentifiers);
+        MnistActivity activity = new MnistActivity(constellation.identifier().toString(), contexts, true, true, images, targets, aid, imageIdentifiers, imageHashes, credit);
 
         // submit activity
         if (logger.isDebugEnabled()) {
@@ -43,46 +51,30 @@ public class Mnist implements ModelInterface {
             logger.debug("Reading MNIST image and label file...");
         }
 
-        byte[][] images = Utils.readMnist_1D(sourceDir + "/t10k-images-idx3-ubyte");
-        byte[] targets = Utils.readLabelsMnist(sourceDir + "/t10k-labels-idx1-ubyte");
+        // The images are mapped, each batch is copied out of the file when it is sent
+        ImageDataset images = ImageDataset.mnist(sourceDir + "/t10k-images-idx3-ubyte");
+        byte[] targets = ImageDataset.mnistLabels(sourceDir + "/t10k-labels-idx1-ubyte");
         if (logger.isDebugEnabled()) {
             logger.debug("Done importing images");
         }
 
         int counter = 0;
         while(true){
-            // Check if we are approaching the Java heap memory limitations, in that case stop uploading until
-            // We have more memory available
-            if (Runtime.getRuntime().totalMemory() == Runtime.getRuntime().maxMemory() && Runtime.getRuntime().freeMemory() < (Configuration.HEAP_MEMORY_THRESHOLD*1000)) {
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Memory threshold reached, Activity submission blocked. Avail memory: " + Runtime.getRuntime().freeMemory()/1000 + "KB");
-                }
-
-                try {
-                    Thread.sleep(this.timeInterval);
-                } catch (InterruptedException e) {
-                    logger.error("Failed to sleep when approaching Java heap memory limitation");
+            for (int i = 0; i < images.count(); i += batchSize) {
+                // Wait until the next batch is due
+                if (!pacer.await()) {
+                    return;
                 }
 
-                // Start over as other nodes might have stolen some Activities from this node
-                continue;
-            }
-
-            for (int i = 0; i < images.length; i += batchSize) {
-                byte[][] imageBatch = new byte[batchSize][images[i].length];
-                byte[] targetBatch = new byte[batchSize];
-
-                for (int x = 0; x < batchSize; x++) {
-                    imageBatch[x] = images[i + x];
-                    targetBatch[x] = targets[i + x];
-                }
+                // Wait until the source may have another batch in flight, before copying it
+                Credit credit = credits.acquire();
+                int size = Math.min(batchSize, images.count() - i);
+                Tensor imageBatch = images.batch1D(i, size);
+                byte[] targetBatch = new byte[size];
+                System.arraycopy(targets, i, targetBatch, 0, size);
 
-                sendMnistImageBatch(imageBatch, targetBatch, constellation, target, contexts);
-                try {
-                    Thread.sleep(this.timeInterval);
-                } catch (InterruptedException e) {
-                    logger.error("Failed to sleep between submitting batches");
-                }
+                sendMnistImageBatch(imageBatch, targetBatch, credit, constellation, target, contexts);
+                pacer.submitted(imageBatch.count());
 
                 counter++;
                 if (counter == this.batchCount && !endless){
@@ -93,11 +85,13 @@ public class Mnist implements ModelInterface {
     }
 
     @Override
-    public void run(Constellation constellation, ActivityIdentifier targetActivityIdentifier, String sourceDir, AbstractContext contexts, int batchSize, int timeInterval, int batchCount, boolean endless) throws IOException, NoSuitableExecutorException {
-        this.batchSize = batchSize;
-        this.endless = endless;
-        this.batchCount = batchCount;
-        this.timeInterval = timeInterval;
-        runMnist(constellation, targetActivityIdentifier, sourceDir, contexts);
+    public void run(Constellation constellation, ActivityIdentifier targetActivityIdentifier, AbstractContext contexts, ShardOptions options) throws IOException, NoSuitableExecutorException {
+        this.batchSize = options.batchSize;
+        this.endless = options.endless;
+        this.compress = options.compress;
+        this.credits = options.credits;
+        this.batchCount = options.batchCount;
+        this.pacer = options.pacer;
+        runMnist(constellation, targetActivityIdentifier, options.sourceDir, contexts);
     }
 }
@@ -1,42 +1,58 @@
 package nl.zakarias.constellation.raid.models.mnist_cnn;
 
 import ibis.constellation.*;
+import ibis.constellation.util.ByteBuffers;
 import nl.zakarias.constellation.raid.ResultEvent;
+import nl.zakarias.constellation.raid.configuration.Configuration;
+import nl.zakarias.constellation.raid.flowControl.Credit;
+import nl.zakarias.constellation.raid.modelServing.AsyncInference;
+import nl.zakarias.constellation.raid.utils.BufferPool;
 import nl.zakarias.constellation.raid.utils.CrunchifyGetIPHostname;
+import nl.zakarias.constellation.raid.utils.Tensor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.List;
 
-public class MnistCnnActivity extends Activity {
+public class MnistCnnActivity extends Activity implements ByteBuffers {
     private static Logger logger = LoggerFactory.getLogger(MnistCnnActivity.class);
 
-    private byte[][][][] data;
+    /** The batch of images, its values are taken from the {@link BufferPool} */
+    private Tensor images;
     private byte[] correctLabels; // Possible targets, should be null if labels are unknown
 
     private ResultEvent result;
     private ActivityIdentifier targetIdentifier;
-    private int[] imageIdentifiers;
+    private long[] imageIdentifiers;
+    private long[] imageHashes;
+    private Credit credit;
 
     private CrunchifyGetIPHostname currentNetworkInfo;
     private CrunchifyGetIPHostname sourceNetworkInfo;
 
+    private transient Timer timer;
+    private int timing;
 
-    MnistCnnActivity(String constellationId, AbstractContext context, boolean mayBeStolen, boolean expectsEvents, byte[][][][] data, byte[] correctLabels, ActivityIdentifier aid, int[] imageIdentifiers) throws UnknownHostException {
+
+    MnistCnnActivity(String constellationId, AbstractContext context, boolean mayBeStolen, boolean expectsEvents, Tensor images, byte[] correctLabels, ActivityIdentifier aid, long[] imageIdentifiers, long[] imageHashes, Credit credit) throws UnknownHostException {
         super(context, mayBeStolen, expectsEvents);
 
-        this.data = data;
+        this.images = images;
         this.correctLabels = correctLabels;
         targetIdentifier = aid;
         result = null;
         this.imageIdentifiers = imageIdentifiers;
+        this.imageHashes = imageHashes;
+        this.credit = credit;
         this.sourceNetworkInfo = new CrunchifyGetIPHostname(constellationId);
     }
 
     @Override
     public int initialize(Constellation constellation) {
-        Timer timer = constellation.getTimer("java", constellation.identifier().toString(), "MNIST_CNN");
-        int timing = timer.start();
+        timer = constellation.getTimer("java", constellation.identifier().toString(), "MNIST_CNN");
+        timing = timer.start();
 
         // Get the location of where we are currently executing
         try {
@@ -48,10 +64,17 @@ public class MnistCnnActivity extends Activity {
         if (logger.isDebugEnabled()) {
             logger.debug("Executing on host: " + currentNetworkInfo.hostname());
         }
+        if (AsyncInference.enabled()) {
+            // The executor is free to run other activities, process() is called once the prediction completes
+            AsyncInference.submit(identifier(), () -> MnistCnnClassifier.classify(this.images, Configuration.MODEL_VERSION, this.correctLabels));
+            return SUSPEND;
+        }
+
         try {
-            this.result = MnistCnnClassifier.classify(this.data, 1, this.correctLabels);
+            this.result = MnistCnnClassifier.classify(this.images, Configuration.MODEL_VERSION, this.correctLabels);
         } catch (Exception e) {
-            throw new Error(String.format("Error applying model with message: %s", e.getMessage()));
+            // Finish without a result, the failure is reported in cleanup() and the executor keeps running
+            logger.error(String.format("Error applying model with message: %s", e.getMessage()));
         }
 
         timer.stop(timing);
@@ -61,11 +84,27 @@ public class MnistCnnActivity extends Activity {
 
     @Override
     public int process(Constellation constellation, Event event) {
+        if (event.getData() instanceof Error) {
+            throw (Error) event.getData();
+        } else if (event.getData() instanceof Throwable) {
+            logger.error(String.format("Error applying model with message: %s", ((Throwable) event.getData()).getMessage()));
+        } else {
+            this.result = (ResultEvent) event.getData();
+        }
+
+        timer.stop(timing);
+
         return FINISH;
     }
 
     @Override
     public void cleanup(Constellation constellation) {
+        // The prediction is done, the values can be reused by the next batch received on this node
+        if (this.images != null) {
+            this.images.release();
+            this.images = null;
+        }
+
         if (logger.isDebugEnabled()){
             logger.debug("Sending results to target");
         }
@@ -73,12 +112,36 @@ public class MnistCnnActivity extends Activity {
         if (this.result == null) {
             // Something went wrong during predictions
             logger.error("No predictions result transmitted to target " + targetIdentifier + ", result from predictions is null. Check that predictions executed correctly.");
+
+            // The Target never sees this batch, so the credit is returned to the source from here
+            if (this.credit != null) {
+                constellation.send(new Event(identifier(), this.credit.collector(), this.credit));
+            }
         } else {
             // Set network src and host
             this.result.host = this.currentNetworkInfo;
             this.result.src = this.sourceNetworkInfo;
             this.result.imageIdentifiers = this.imageIdentifiers;
+            this.result.imageHashes = this.imageHashes;
+            this.result.credit = this.credit;
             constellation.send(new Event(identifier(), targetIdentifier, this.result));
         }
     }
+
+    /**
+     * Called by Constellation when this Activity is stolen, the images are sent next to the serialized Activity
+     */
+    @Override
+    public void pushByteBuffers(List<ByteBuffer> list) {
+        if (this.images != null) {
+            this.images.pushByteBuffers(list);
+        }
+    }
+
+    @Override
+    public void popByteBuffers(List<ByteBuffer> list) {
+        if (this.images != null) {
+            this.images.popByteBuffers(list);
+        }
+    }
 }
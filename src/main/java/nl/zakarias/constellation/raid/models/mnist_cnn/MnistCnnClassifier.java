@@ -1,61 +1,57 @@
 package nl.zakarias.constellation.raid.models.mnist_cnn;
 
-import com.google.gson.Gson;
 import nl.zakarias.constellation.raid.ResultEvent;
 import nl.zakarias.constellation.raid.configuration.Configuration;
-import nl.zakarias.constellation.raid.modelServing.API;
+import nl.zakarias.constellation.raid.modelServing.InferenceBackends;
+import nl.zakarias.constellation.raid.utils.Tensor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 
 /**
- * Specific class used for classifying Mnist images. It uses the {@link API} for connecting to tensorflow model server
+ * Specific class used for classifying Mnist images. It uses the {@link InferenceBackends} for making predictions with the model
  */
 class MnistCnnClassifier {
     private static Logger logger = LoggerFactory.getLogger(MnistCnnClassifier.class);
 
-    static private int PORT = Integer.parseInt(System.getenv("TENSORFLOW_SERVING_PORT"));
-
-    private class MnistResult {
-        float[][] predictions;
-    }
+    /** Number of classes in the output tensor of the model, used when the model server does not report it */
+    private static final int NUM_CLASSES = 10;
 
     /**
      * Run a classification on an image which already has a target label.
      *
-     * @param data The batch of images we wish to classify
+     * @param images The batch of images we wish to classify
      * @param version The version number
      * @param target The target label of a correct classification, use _null_ if nonexistent
      *
      * @return ResultEvent(...) containing the certainty, prediction and correct label (if existing)
      * @throws IOException If something goes wrong with the connection to the server
      */
-    static ResultEvent classify(byte[][][][] data, int version, byte[] target) throws IOException {
+    static ResultEvent classify(Tensor images, int version, byte[] target) throws IOException {
         if (logger.isDebugEnabled()){
             logger.debug("Performing prediction...");
         }
 
-        String result = API.predict(PORT, MnistCnn.modelName, version, data, MnistCnn.signatureString);
-        Gson g = new Gson();
-        MnistResult mnistResult = g.fromJson(result, MnistResult.class);
+        int numClasses = InferenceBackends.metadata(Configuration.ModelName.MNIST_CNN, MnistCnn.modelName, version, MnistCnn.signatureString).outputSize(NUM_CLASSES);
+        float[] output = new float[images.count() * numClasses];
+        InferenceBackends.get(Configuration.ModelName.MNIST_CNN).predict(MnistCnn.modelName, version, images.data(), images.shape(), MnistCnn.signatureString, output);
 
-        byte[] predictions = new byte[mnistResult.predictions.length];
-        float[] certainty = new float[mnistResult.predictions.length];
+        byte[] predictions = new byte[images.count()];
+        float[] certainty = new float[images.count()];
 
         // Check each result
-        for (int i=0; i<mnistResult.predictions.length; i++){
+        for (int i=0; i<images.count(); i++){
             float val = 0;
             int pos = 0;
-            for (int x=0; x<mnistResult.predictions[i].length; x++){
-                if (mnistResult.predictions[i][x] > val){
-                    val = mnistResult.predictions[i][x];
+            for (int x=0; x<numClasses; x++){
+                if (output[i * numClasses + x] > val){
+                    val = output[i * numClasses + x];
                     pos = x;
                 }
             }
             certainty[i] = val; // Store the certainty of the result
             predictions[i] = (byte) pos; // Store the predictions, can be 0, 1 ... 8, 9
-
         }
 
         return new ResultEvent(Configuration.ModelName.MNIST_CNN, target, predictions, certainty);
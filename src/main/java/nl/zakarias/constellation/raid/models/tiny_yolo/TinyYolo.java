@@ -5,170 +5,241 @@ import ibis.constellation.ActivityIdentifier;
 import ibis.constellation.Constellation;
 import ibis.constellation.NoSuitableExecutorException;
 import nl.zakarias.constellation.raid.configuration.Configuration;
+import nl.zakarias.constellation.raid.flowControl.CreditWindow;
+import nl.zakarias.constellation.raid.flowControl.DuplicateFilter;
+import nl.zakarias.constellation.raid.flowControl.Pacer;
 import nl.zakarias.constellation.raid.models.ModelInterface;
+import nl.zakarias.constellation.raid.models.ShardOptions;
+import nl.zakarias.constellation.raid.utils.ImagePrefetcher;
+import nl.zakarias.constellation.raid.utils.ImagePreprocessor;
+import nl.zakarias.constellation.raid.utils.PerceptualHash;
+import nl.zakarias.constellation.raid.utils.SpoolDirectory;
+import nl.zakarias.constellation.raid.utils.Tensor;
 import nl.zakarias.constellation.raid.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 
 public class TinyYolo implements ModelInterface {
     private static Logger logger = LoggerFactory.getLogger(TinyYolo.class);
 
     static public String modelName = Configuration.ModelName.TINY_YOLO.toString().toLowerCase(); // Matches tensorflow_serving
-    static String signatureString = "predict";  // Matches tensorflow_serving
+    static String signatureString = Configuration.SIGNATURE_NAME;
+    static String encodedSignatureString = Configuration.ENCODED_SIGNATURE_NAME;
 
     private static int yoloImgRowLen = 608;
     private static int yoloImgColLen = 608;
-    private static int yoloRGBColors = 3;
+
+    /** Scales and packs the decoded images, shared by all prefetch threads and the Activities decoding encoded images */
+    static final ImagePreprocessor preprocessor = new ImagePreprocessor(yoloImgColLen, yoloImgRowLen,
+            Configuration.LETTERBOX_IMAGES, Configuration.LETTERBOX_PAD_VALUE);
 
     private int batchSize = 1;
     private int batchCount = Configuration.BATCH_COUNT;
-    private int timeInterval = Configuration.TIME_INTERVAL;
     private boolean endless = Configuration.ENDLESS;
-
-    /** Fit the image to the yolo TF model input tensor dimensions by adding padding if necessary and otherwise
-     * cropping. Padding is added on the right side and the bottom.
-     *
-     * @param image The image to fit
-     * @return The fitted image
+    private boolean encoded = Configuration.ENCODED_IMAGES;
+    private boolean compress = false;
+    private CreditWindow credits;
+    private DuplicateFilter duplicates;
+    private Pacer pacer;
+
+    /**
+     * The Activity of a batch, together with the perceptual hashes of its images when dropping near duplicates
      */
-    private BufferedImage fitImageToYolo(BufferedImage image){
-
+    private static class LoadedBatch {
+        /** Null if none of the files could be loaded */
+        final TinyYoloActivity activity;
+        /** The files of the images in the Activity, without the files which could not be loaded */
+        final List<Path> files;
+        final long[] frameHashes;
+
+        LoadedBatch(TinyYoloActivity activity, List<Path> files, long[] frameHashes){
+            this.activity = activity;
+            this.files = files;
+            this.frameHashes = frameHashes;
+        }
+    }
 
-        BufferedImage newImage = new BufferedImage(yoloImgRowLen, yoloImgColLen, image.getType());
-        Graphics g = newImage.getGraphics();
+    /**
+     * Read the files of a batch and create the Activity carrying them, called on a prefetch thread. Files which cannot
+     * be read or decoded are left out of the batch, so a single broken file does not stop the source. They are still
+     * reported as submitted with the rest of the batch, and not read again after a restart.
+     */
+    private LoadedBatch loadBatch(Constellation constellation, ActivityIdentifier aid, AbstractContext contexts, List<Path> files, long[] imageIdentifiers) throws IOException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Loading batch starting with " + files.get(0) + " - " + imageIdentifiers[0]);
+        }
 
-        g.setColor(Color.white);
-        g.fillRect(0,0, yoloImgRowLen, yoloImgColLen);
-        g.drawImage(image, 0, 0, null);
-        g.dispose();
-        image = newImage;
+        long[] imageHashes = Configuration.HASH_IMAGES ? new long[files.size()] : null;
+        long[] frameHashes = duplicates.enabled() ? new long[files.size()] : null;
+        int[] loaded = new int[files.size()];
+        int count = 0;
+        TinyYoloActivity activity;
 
-        return image;
-    }
+        if (encoded) {
+            // Send the files as they are, they are decoded on the Predictor
+            byte[][] encodedImages = new byte[files.size()][];
+            for (int i=0; i<files.size(); i++){
+                try {
+                    encodedImages[i] = Utils.readAllBytes(files.get(i));
+                    if (frameHashes != null) {
+                        // Only decoded to compare it, the Predictor decodes it again
+                        frameHashes[i] = PerceptualHash.dHash(Utils.decodeImage(encodedImages[i]));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Skipping " + files.get(i) + ": " + e.getMessage());
+                    continue;
+                }
+                if (imageHashes != null) {
+                    imageHashes[i] = Utils.imageHash(encodedImages[i]);
+                }
+                loaded[count++] = i;
+            }
+            if (count == 0) {
+                return new LoadedBatch(null, Collections.emptyList(), null);
+            }
+            if (count < files.size()) {
+                loaded = Arrays.copyOf(loaded, count);
+                imageIdentifiers = Utils.select(imageIdentifiers, loaded);
+                if (imageHashes != null) {
+                    imageHashes = Utils.select(imageHashes, loaded);
+                }
+                encodedImages = Utils.select(encodedImages, loaded);
+            }
 
-    private byte[][][] convertBufferedImageTo3DByteArray(BufferedImage image){
-        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
-        int pixelLength = 3; // RGB
-
-        byte[][][] result = new byte[yoloImgRowLen][yoloImgColLen][pixelLength];
-
-        // Check if image has alpha channel
-        if (image.getAlphaRaster() != null){
-            // Copy pixel values into the byte array
-            for (int pixel = 0, row = 0, col = 0; pixel + 3 < pixels.length; pixel += pixelLength+1) {
-                // Ignore alpha = pixels[pixel]
-                result[row][col][0] = pixels[pixel+1];
-                result[row][col][1] = pixels[pixel+2];
-                result[row][col][2] = pixels[pixel+3];
-
-                col++;
-                if (col == yoloImgRowLen) {
-                    col = 0;
-                    row++;
+            // Generate activity
+            activity = new TinyYoloActivity(constellation.identifier().toString(), contexts, true, true, encodedImages, aid, imageIdentifiers, imageHashes);
+        } else {
+            // The images are scaled and packed straight into one pooled tensor, released by the Activity
+            Tensor images = Tensor.allocate(files.size(), yoloImgRowLen, yoloImgColLen, ImagePreprocessor.CHANNELS);
+            try {
+                for (int i=0; i<files.size(); i++){
+                    // Packed after the images loaded so far, the slots of skipped files are left at the end
+                    try {
+                        preprocessor.process(Utils.readJPG(files.get(i).toString(), yoloImgRowLen, yoloImgColLen), images.data(), count * images.imageSize());
+                    } catch (IOException | RuntimeException e) {
+                        logger.warn("Skipping " + files.get(i) + ": " + e.getMessage());
+                        continue;
+                    }
+                    if (imageHashes != null) {
+                        imageHashes[i] = images.imageHash(count);
+                    }
+                    if (frameHashes != null) {
+                        frameHashes[i] = PerceptualHash.dHash(images.data(), count * images.imageSize(), yoloImgColLen, yoloImgRowLen);
+                    }
+                    loaded[count++] = i;
+                }
+                if (count == 0) {
+                    images.release();
+                    return new LoadedBatch(null, Collections.emptyList(), null);
                 }
+                if (count < files.size()) {
+                    loaded = Arrays.copyOf(loaded, count);
+                    imageIdentifiers = Utils.select(imageIdentifiers, loaded);
+                    if (imageHashes != null) {
+                        imageHashes = Utils.select(imageHashes, loaded);
+                    }
+                    int[] packed = new int[count];
+                    for (int i = 0; i < count; i++) {
+                        packed[i] = i;
+                    }
+                    images = images.select(packed);
+                }
+                if (compress) {
+                    images.compress();
+                }
+            } catch (RuntimeException e) {
+                images.release();
+                throw e;
             }
 
-            return result;
+            // Generate activity
+            activity = new TinyYoloActivity(constellation.identifier().toString(), contexts, true, true, images, aid, imageIdentifiers, imageHashes);
         }
 
-        // No Alpha
-        // Copy pixel values into the byte array
-        for (int pixel = 0, row = 0, col = 0; pixel + 2 < pixels.length; pixel += pixelLength) {
-            result[row][col][0] = pixels[pixel];
-            result[row][col][1] = pixels[pixel+1];
-            result[row][col][2] = pixels[pixel+2];
-
-            col++;
-            if (col == yoloImgRowLen) {
-                col = 0;
-                row++;
+        if (count < files.size()) {
+            // Only the loaded files are left
+            List<Path> loadedFiles = new ArrayList<>(count);
+            for (int i : loaded) {
+                loadedFiles.add(files.get(i));
             }
+            return new LoadedBatch(activity, loadedFiles, frameHashes == null ? null : Utils.select(frameHashes, loaded));
         }
-
-        return result;
+        return new LoadedBatch(activity, files, frameHashes);
     }
 
-    private void runYolo(Constellation constellation, ActivityIdentifier aid, String sourceDir, AbstractContext contexts) throws IOException, NoSuitableExecutorException {
+    private void runYolo(Constellation constellation, ActivityIdentifier aid, String sourceDir, AbstractContext contexts, SpoolDirectory spool) throws IOException, NoSuitableExecutorException {
         if (logger.isDebugEnabled()) {
             logger.debug("Checking source path");
         }
-        Object[] files = Files.list(Paths.get(sourceDir)).filter(Files::isRegularFile).toArray();
 
         if (logger.isDebugEnabled()) {
             logger.debug("Starting to submit images in batches of " + batchSize);
         }
 
-        int pos = 0;
-        while (pos < files.length){
-            // Check if we are approaching the Java heap memory limitations, in that case stop uploading until
-            // We have more memory available
-            if (Runtime.getRuntime().totalMemory() == Runtime.getRuntime().maxMemory() && Runtime.getRuntime().freeMemory() < (Configuration.HEAP_MEMORY_THRESHOLD*1000)) {
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Memory threshold reached, Activity submission blocked. Avail memory: " + Runtime.getRuntime().freeMemory()/1000 + "KB");
-                }
-
-                try {
-                    Thread.sleep(this.timeInterval);
-                } catch (InterruptedException e) {
-                    logger.error("Failed to sleep when approaching Java heap memory limitation");
+        // Files are read and decoded on other threads, ahead of submitting them
+        ImagePrefetcher.Loader<LoadedBatch> loader = (files, imageIdentifiers) -> loadBatch(constellation, aid, contexts, files, imageIdentifiers);
+        try (ImagePrefetcher<LoadedBatch> prefetcher = spool == null
+                ? new ImagePrefetcher<>(Paths.get(sourceDir), batchSize, loader, Configuration.PREFETCH_THREADS, Configuration.PREFETCH_BATCHES)
+                : new ImagePrefetcher<>(spool, batchSize, loader, Configuration.PREFETCH_THREADS, Configuration.PREFETCH_BATCHES)) {
+            int pos = 0;
+            while (prefetcher.hasNext()){
+                // Wait until the next batch is due
+                if (!pacer.await()) {
+                    break;
                 }
 
-                // Start over as other nodes might have stolen some Activities from this node
-                continue;
-            }
+                ImagePrefetcher.Batch<LoadedBatch> batch = prefetcher.next();
+                TinyYoloActivity activity = batch.value.activity;
 
-            byte[][][][] images = new byte[batchSize][yoloImgRowLen][yoloImgColLen][yoloRGBColors];
-            int min = Math.min(pos + batchSize, files.length);
+                // Drop the frames looking the same as the last frame sent of their stream
+                int count = batch.value.files.size();
+                if (count > 0 && duplicates.enabled()) {
+                    count = activity.retain(duplicates.filter(batch.value.files, batch.value.frameHashes));
+                }
 
-            for (int i=pos; i<min; i++){
-                BufferedImage image = fitImageToYolo(Utils.readJPG(files[i].toString(), yoloImgRowLen, yoloImgColLen));
+                if (count > 0) {
+                    activity.setSkippedFrames(duplicates.takeSkipped());
 
-                images[i-pos] = convertBufferedImageTo3DByteArray(image);
-            }
+                    // Wait until the source may have another batch in flight
+                    activity.setCredit(credits.acquire());
 
-            // Generate imageIdentifiers in order to link back the result to the image CURRENTLY DISCARDED UPON METHOD EXIT
-            int[] imageIdentifiers = new int[images.length];
-            // Create imageIdentifiers
-            for(int i=0; i<batchSize; i++){
-                imageIdentifiers[i] = Utils.imageIdentifier(images[i]);
-            }
-
-            // Generate activity
-            TinyYoloActivity activity = new TinyYoloActivity(constellation.identifier().toString(), contexts, true, false, images, aid, imageIdentifiers);
+                    // submit activity
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Submitting TinyYoloActivity with contexts " + contexts.toString());
+                    }
+                    constellation.submit(activity);
+                    pacer.submitted(count);
+                }
+                prefetcher.submitted(batch);
 
-            // submit activity
-            if (logger.isDebugEnabled()) {
-                logger.debug("Submitting TinyYoloActivity with contexts " + contexts.toString());
-            }
-            constellation.submit(activity);
+                pos += batch.files.size();
 
-            pos = min;
-            try {
-                Thread.sleep(this.timeInterval);
-            } catch (InterruptedException e) {
-                logger.error("Failed to sleep between submitting batches");
-            }
-            if (pos == this.batchCount && !this.endless){
-                break;
+                if (pos >= this.batchCount && !this.endless){
+                    break;
+                }
             }
         }
-
     }
 
     @Override
-    public void run(Constellation constellation, ActivityIdentifier targetActivityIdentifier, String sourceDir, AbstractContext contexts, int batchSize, int timeInterval, int batchCount, boolean endless) throws IOException, NoSuitableExecutorException {
-        this.batchSize = batchSize;
-        this.timeInterval = timeInterval;
-        this.batchCount = batchCount;
-        this.endless = endless;
-        runYolo(constellation, targetActivityIdentifier, sourceDir, contexts);
+    public void run(Constellation constellation, ActivityIdentifier targetActivityIdentifier, AbstractContext contexts, ShardOptions options) throws IOException, NoSuitableExecutorException {
+        this.batchSize = options.batchSize;
+        this.pacer = options.pacer;
+        this.batchCount = options.batchCount;
+        this.endless = options.endless;
+        this.encoded = options.encoded;
+        this.compress = options.compress;
+        this.credits = options.credits;
+        this.duplicates = options.duplicates;
+        runYolo(constellation, targetActivityIdentifier, options.sourceDir, contexts, options.spool);
     }
 }
\ No newline at end of file
@@ -1,40 +1,116 @@
 package nl.zakarias.constellation.raid.models.tiny_yolo;
 
 import ibis.constellation.*;
+import ibis.constellation.util.ByteBuffers;
 import nl.zakarias.constellation.raid.ResultEvent;
+import nl.zakarias.constellation.raid.configuration.Configuration;
+import nl.zakarias.constellation.raid.flowControl.Credit;
+import nl.zakarias.constellation.raid.modelServing.AsyncInference;
+import nl.zakarias.constellation.raid.modelServing.InferenceBackends;
+import nl.zakarias.constellation.raid.utils.BufferPool;
 import nl.zakarias.constellation.raid.utils.CrunchifyGetIPHostname;
+import nl.zakarias.constellation.raid.utils.Tensor;
+import nl.zakarias.constellation.raid.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.List;
 
-public class TinyYoloActivity extends Activity {
+public class TinyYoloActivity extends Activity implements ByteBuffers {
     private static Logger logger = LoggerFactory.getLogger(TinyYoloActivity.class);
 
-    private byte[][][][] data;
+    /** The RGB pixels of the batch, its values are taken from the {@link BufferPool} */
+    private Tensor images;
+    /** The images as JPEG or PNG files, set instead of images when the source sends encoded images */
+    private byte[][] encodedImages;
 
     private ResultEvent result;
     private ActivityIdentifier targetIdentifier;
-    private int[] imageIdentifiers;
+    private long[] imageIdentifiers;
+    private long[] imageHashes;
+    private Credit credit;
+    private int skippedFrames;
 
     private CrunchifyGetIPHostname currentNetworkInfo;
     private CrunchifyGetIPHostname sourceNetworkInfo;
 
+    private transient Timer timer;
+    private int timing;
 
-    TinyYoloActivity(String constellationID, AbstractContext context, boolean mayBeStolen, boolean expectsEvents, byte[][][][] data, ActivityIdentifier aid, int[] imageIdentifiers) throws UnknownHostException {
+
+    TinyYoloActivity(String constellationID, AbstractContext context, boolean mayBeStolen, boolean expectsEvents, Tensor images, ActivityIdentifier aid, long[] imageIdentifiers, long[] imageHashes) throws UnknownHostException {
         super(context, mayBeStolen, expectsEvents);
 
-        this.data = data;
+        this.images = images;
         targetIdentifier = aid;
         result = null;
         this.imageIdentifiers = imageIdentifiers;
+        this.imageHashes = imageHashes;
         this.sourceNetworkInfo = new CrunchifyGetIPHostname(constellationID);
     }
 
+    /**
+     * An Activity carrying encoded images (e.g. JPEG files) instead of pixels, decoded on the Predictor which runs it
+     */
+    TinyYoloActivity(String constellationID, AbstractContext context, boolean mayBeStolen, boolean expectsEvents, byte[][] encodedImages, ActivityIdentifier aid, long[] imageIdentifiers, long[] imageHashes) throws UnknownHostException {
+        super(context, mayBeStolen, expectsEvents);
+
+        this.encodedImages = encodedImages;
+        targetIdentifier = aid;
+        result = null;
+        this.imageIdentifiers = imageIdentifiers;
+        this.imageHashes = imageHashes;
+        this.sourceNetworkInfo = new CrunchifyGetIPHostname(constellationID);
+    }
+
+    /**
+     * Set when the batch is submitted, the Activity is created ahead of that on a prefetch thread
+     *
+     * @param credit The credit of the batch, null if the source does not limit its batches
+     */
+    void setCredit(Credit credit) {
+        this.credit = credit;
+    }
+
+    /**
+     * @param skippedFrames Number of frames the source dropped as near duplicates since the batch sent before this one
+     */
+    void setSkippedFrames(int skippedFrames) {
+        this.skippedFrames = skippedFrames;
+    }
+
+    /**
+     * Drop the images which are not kept, called on the source before the Activity is submitted
+     *
+     * @param keep Positions of the images to keep, in increasing order
+     * @return Number of images left, the Activity must not be submitted if there are none
+     */
+    int retain(int[] keep) {
+        if (keep.length == imageIdentifiers.length) {
+            return keep.length;
+        }
+        if (this.images != null && keep.length == 0) {
+            this.images.release();
+            this.images = null;
+        } else if (this.images != null) {
+            this.images = this.images.select(keep);
+        } else {
+            this.encodedImages = Utils.select(this.encodedImages, keep);
+        }
+        this.imageIdentifiers = Utils.select(this.imageIdentifiers, keep);
+        if (this.imageHashes != null) {
+            this.imageHashes = Utils.select(this.imageHashes, keep);
+        }
+        return keep.length;
+    }
+
     @Override
     public int initialize(Constellation constellation) {
-        Timer timer = constellation.getTimer("java", constellation.identifier().toString(), "Tiny_Yolo");
-        int timing = timer.start();
+        timer = constellation.getTimer("java", constellation.identifier().toString(), "Tiny_Yolo");
+        timing = timer.start();
 
         // Get the location of where we are currently executing
         try {
@@ -46,10 +122,17 @@ public class TinyYoloActivity extends Activity {
         if (logger.isDebugEnabled()) {
             logger.debug("Executing on host: " + currentNetworkInfo.hostname());
         }
+        if (AsyncInference.enabled()) {
+            // The executor is free to run other activities, process() is called once the prediction completes
+            AsyncInference.submit(identifier(), this::classify);
+            return SUSPEND;
+        }
+
         try {
-            this.result = TinyYoloClassifier.classify(this.data, 1, null);
+            this.result = classify();
         } catch (Exception e) {
-            throw new Error(String.format("Error applying model with message: %s", e.getMessage()));
+            // Finish without a result, the failure is reported in cleanup() and the executor keeps running
+            logger.error(String.format("Error applying model with message: %s", e.getMessage()));
         }
 
         timer.stop(timing);
@@ -57,13 +140,41 @@ public class TinyYoloActivity extends Activity {
         return FINISH;
     }
 
+    private ResultEvent classify() throws IOException {
+        if (encodedImages != null && InferenceBackends.decodeImages()) {
+            // Decoded on the cores of this Predictor rather than on the source, the model gets the pixels as usual
+            this.images = TinyYolo.preprocessor.decode(this.encodedImages);
+            this.encodedImages = null;
+        }
+        if (encodedImages != null) {
+            return TinyYoloClassifier.classifyEncoded(this.encodedImages, Configuration.MODEL_VERSION, null);
+        }
+        return TinyYoloClassifier.classify(this.images, Configuration.MODEL_VERSION, null);
+    }
+
     @Override
     public int process(Constellation constellation, Event event) {
+        if (event.getData() instanceof Error) {
+            throw (Error) event.getData();
+        } else if (event.getData() instanceof Throwable) {
+            logger.error(String.format("Error applying model with message: %s", ((Throwable) event.getData()).getMessage()));
+        } else {
+            this.result = (ResultEvent) event.getData();
+        }
+
+        timer.stop(timing);
+
         return FINISH;
     }
 
     @Override
     public void cleanup(Constellation constellation) {
+        // The prediction is done, the values can be reused by the next batch received on this node
+        if (this.images != null) {
+            this.images.release();
+            this.images = null;
+        }
+
         if (logger.isDebugEnabled()){
             logger.debug("Sending results to target");
         }
@@ -71,12 +182,46 @@ public class TinyYoloActivity extends Activity {
         if (this.result == null) {
             // Something went wrong during predictions
             logger.error("No predictions result transmitted to target " + targetIdentifier + ", result from predictions is null. Check that predictions executed correctly.");
+
+            if (this.skippedFrames > 0) {
+                // The frames dropped before this batch are still counted, in a result without predictions. The Target
+                // returns its credit as usual
+                ResultEvent skipped = new ResultEvent(Configuration.ModelName.TINY_YOLO, null, new float[0], new int[]{0}, null);
+                skipped.host = this.currentNetworkInfo;
+                skipped.src = this.sourceNetworkInfo;
+                skipped.credit = this.credit;
+                skipped.skippedFrames = this.skippedFrames;
+                constellation.send(new Event(identifier(), targetIdentifier, skipped));
+            } else if (this.credit != null) {
+                // The Target never sees this batch, so the credit is returned to the source from here
+                constellation.send(new Event(identifier(), this.credit.collector(), this.credit));
+            }
         } else {
             // Set network src and host
             this.result.host = this.currentNetworkInfo;
             this.result.src = this.sourceNetworkInfo;
             this.result.imageIdentifiers = this.imageIdentifiers;
+            this.result.imageHashes = this.imageHashes;
+            this.result.credit = this.credit;
+            this.result.skippedFrames = this.skippedFrames;
             constellation.send(new Event(identifier(), targetIdentifier, this.result));
         }
     }
+
+    /**
+     * Called by Constellation when this Activity is stolen, the images are sent next to the serialized Activity
+     */
+    @Override
+    public void pushByteBuffers(List<ByteBuffer> list) {
+        if (this.images != null) {
+            this.images.pushByteBuffers(list);
+        }
+    }
+
+    @Override
+    public void popByteBuffers(List<ByteBuffer> list) {
+        if (this.images != null) {
+            this.images.popByteBuffers(list);
+        }
+    }
 }
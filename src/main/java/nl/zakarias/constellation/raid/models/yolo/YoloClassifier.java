@@ -1,9 +1,10 @@
 package nl.zakarias.constellation.raid.models.yolo;
 
-import com.google.gson.Gson;
 import nl.zakarias.constellation.raid.ResultEvent;
-import nl.zakarias.constellation.raid.modelServing.API;
+import nl.zakarias.constellation.raid.modelServing.InferenceBackends;
+import nl.zakarias.constellation.raid.modelServing.ModelMetadata;
 import nl.zakarias.constellation.raid.configuration.Configuration;
+import nl.zakarias.constellation.raid.utils.Tensor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -12,43 +13,60 @@ import java.io.IOException;
 class YoloClassifier {
     private static Logger logger = LoggerFactory.getLogger(YoloClassifier.class);
 
-    static private int PORT = Integer.parseInt(System.getenv("TENSORFLOW_SERVING_PORT"));
-
-    private class YoloResults {
-        float[][][][] predictions;
-    }
+    /** Output tensor dimensions of the model excluding the batch dimension, used when the model server does not report them */
+    private static final int[] OUTPUT_SHAPE = {19, 19, 425};
 
     /**
      * Run a classification on an image.
      *
-     * @param data The batch of images we wish to classify
+     * @param images The batch of images we wish to classify, of shape {images, rows, columns, channels}
      * @param version The version number
      * @param target The target label of a correct classification, use _null_ if nonexistent
      *
      * @return ResultEvent(...) containing the certainty, prediction and correct label (if existing)
      * @throws IOException If something goes wrong with the connection to the server
      */
-    static ResultEvent classify(byte[][][][] data, int version, byte[] target) throws IOException {
+    static ResultEvent classify(Tensor images, int version, byte[] target) throws IOException {
         if (logger.isDebugEnabled()){
             logger.debug("Performing prediction...");
         }
 
-        String result = API.predict(PORT, Yolo.modelName, version, data, Yolo.signatureString);
-        Gson g = new Gson();
-        YoloResults yoloResults = g.fromJson(result, YoloResults.class);
-
-        // Output tensor dimensions of YOLO
-        float[][][][] predictions = new float[data.length][19][19][425];
-        for(int i=0; i<data.length; i++){
-            for(int x=0; x<19; x++){
-                for(int y=0; y<19; y++){
-                    System.arraycopy(yoloResults.predictions[i][x][y], 0, predictions[i][x][y], 0, 425);
-                }
-            }
+        int[] outputShape = InferenceBackends.metadata(Configuration.ModelName.YOLO, Yolo.modelName, version, Yolo.signatureString).outputShape(OUTPUT_SHAPE);
+        int[] resultShape = new int[outputShape.length + 1];
+        resultShape[0] = images.count();
+        System.arraycopy(outputShape, 0, resultShape, 1, outputShape.length);
+        float[] predictions = new float[images.count() * ModelMetadata.size(outputShape)];
+        InferenceBackends.get(Configuration.ModelName.YOLO).predict(Yolo.modelName, version, images.data(), images.shape(), Yolo.signatureString, predictions);
+
+        float[] certainty = null;
+
+        return new ResultEvent(Configuration.ModelName.YOLO, target, predictions, resultShape, certainty);
+    }
+
+    /**
+     * Run a classification on encoded images, decoded by the model itself.
+     *
+     * @param images The batch of JPEG or PNG files we wish to classify
+     * @param version The version number
+     * @param target The target label of a correct classification, use _null_ if nonexistent
+     *
+     * @return ResultEvent(...) containing the certainty, prediction and correct label (if existing)
+     * @throws IOException If something goes wrong with the connection to the server
+     */
+    static ResultEvent classifyEncoded(byte[][] images, int version, byte[] target) throws IOException {
+        if (logger.isDebugEnabled()){
+            logger.debug("Performing prediction on encoded images...");
         }
 
+        int[] outputShape = InferenceBackends.metadata(Configuration.ModelName.YOLO, Yolo.modelName, version, Yolo.encodedSignatureString).outputShape(OUTPUT_SHAPE);
+        int[] shape = new int[outputShape.length + 1];
+        shape[0] = images.length;
+        System.arraycopy(outputShape, 0, shape, 1, outputShape.length);
+        float[] predictions = new float[images.length * ModelMetadata.size(outputShape)];
+        InferenceBackends.get(Configuration.ModelName.YOLO).predictEncoded(Yolo.modelName, version, images, Yolo.encodedSignatureString, predictions);
+
         float[] certainty = null;
 
-        return new ResultEvent(Configuration.ModelName.YOLO, target, predictions, certainty);
+        return new ResultEvent(Configuration.ModelName.YOLO, target, predictions, shape, certainty);
     }
 }
@@ -0,0 +1,43 @@
+package nl.zakarias.constellation.raid.utils;
+
+import nl.zakarias.constellation.raid.configuration.Configuration;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reuses the large byte arrays holding the pixels of a batch, instead of allocating a new one for every batch. Arrays
+ * are pooled per exact length, since a source sends batches of the same size over and over. Only a limited number of
+ * arrays of each length is kept, any more are left to the garbage collector.
+ *
+ * An array must not be used any more once it has been released. An array which is never released (e.g. because the
+ * Activity holding it was stolen by another node) is simply collected as garbage.
+ */
+public class BufferPool {
+    private static final Map<Integer, ArrayBlockingQueue<byte[]>> pools = new ConcurrentHashMap<>();
+
+    private static ArrayBlockingQueue<byte[]> pool(int length){
+        return pools.computeIfAbsent(length, k -> new ArrayBlockingQueue<>(Math.max(Configuration.BUFFER_POOL_SIZE, 1)));
+    }
+
+    /**
+     * @param length Length of the array
+     * @return A released array of the given length, or a new one if there is none. Its contents are undefined.
+     */
+    public static byte[] acquire(int length){
+        byte[] buffer = pool(length).poll();
+        return buffer != null ? buffer : new byte[length];
+    }
+
+    /**
+     * Hand an array back for reuse by {@link #acquire(int)}
+     *
+     * @param buffer The array, may be null
+     */
+    public static void release(byte[] buffer){
+        if (buffer != null && Configuration.BUFFER_POOL_SIZE > 0) {
+            pool(buffer.length).offer(buffer);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package nl.zakarias.constellation.raid.utils;
+
+import nl.zakarias.constellation.raid.configuration.Configuration;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A dataset of fixed size images in a binary file, such as the MNIST IDX files or the CIFAR-10 binary batches. The
+ * file is memory mapped instead of read, so opening it costs no time and no heap: pages are loaded by the operating
+ * system when a batch is taken from them, and shared with every other process reading the same file.
+ *
+ * Images are handed out either as read-only slices of the mapping, in the layout of the file, or copied into the
+ * {@link Tensor} an Activity carries, one batch at a time. The whole dataset is never held on the heap.
+ */
+public class ImageDataset {
+    private static final int IDX_IMAGES_MAGIC = 0x00000803;
+    private static final int IDX_LABELS_MAGIC = 0x00000801;
+
+    private final MappedByteBuffer data;
+    private final int count;
+    private final int rows;
+    private final int cols;
+    private final int channels;
+    /** Whether the channels of an image are stored one after the other (CIFAR-10) instead of per pixel */
+    private final boolean planar;
+    /** Position of the first record in the file */
+    private final int offset;
+    /** Size of a record, the image and a label in front of it if the file holds labels */
+    private final int recordSize;
+    /** Size of the label in front of each image, 0 if the file holds no labels */
+    private final int labelSize;
+
+    private ImageDataset(MappedByteBuffer data, int count, int rows, int cols, int channels, boolean planar, int offset, int labelSize){
+        this.data = data;
+        this.count = count;
+        this.rows = rows;
+        this.cols = cols;
+        this.channels = channels;
+        this.planar = planar;
+        this.offset = offset;
+        this.labelSize = labelSize;
+        this.recordSize = labelSize + rows * cols * channels;
+    }
+
+    private static MappedByteBuffer map(String filePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Dataset " + filePath + " is larger than 2GB");
+            }
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Map an IDX file of MNIST images, e.g. t10k-images-idx3-ubyte
+     *
+     * @param filePath Path of the file
+     * @return The images in the file, each with a single channel
+     * @throws IOException If the file cannot be mapped or is not an IDX file of images
+     */
+    public static ImageDataset mnist(String filePath) throws IOException {
+        MappedByteBuffer data = map(filePath);
+        if (data.limit() < 16 || data.getInt(0) != IDX_IMAGES_MAGIC) {
+            throw new IOException(filePath + " is not an IDX file of images");
+        }
+        int count = data.getInt(4);
+        int rows = data.getInt(8);
+        int cols = data.getInt(12);
+        if (16 + (long) count * rows * cols > data.limit()) {
+            throw new IOException(filePath + " holds fewer images than its header says");
+        }
+        return new ImageDataset(data, count, rows, cols, 1, false, 16, 0);
+    }
+
+    /**
+     * Map an IDX file of MNIST labels, e.g. t10k-labels-idx1-ubyte, and copy the labels out of it
+     *
+     * @param filePath Path of the file
+     * @return The label of each image
+     * @throws IOException If the file cannot be mapped or is not an IDX file of labels
+     */
+    public static byte[] mnistLabels(String filePath) throws IOException {
+        MappedByteBuffer data = map(filePath);
+        if (data.limit() < 8 || data.getInt(0) != IDX_LABELS_MAGIC) {
+            throw new IOException(filePath + " is not an IDX file of labels");
+        }
+        int count = data.getInt(4);
+        if (8 + (long) count > data.limit()) {
+            throw new IOException(filePath + " holds fewer labels than its header says");
+        }
+        byte[] labels = new byte[count];
+        ByteBuffer view = data.duplicate();
+        view.position(8);
+        view.get(labels);
+        return labels;
+    }
+
+    /**
+     * Map a CIFAR-10 binary batch, e.g. data_batch_1.bin. Every record holds a label followed by the red, green and
+     * blue channel of a 32x32 image.
+     *
+     * @param filePath Path of the file
+     * @return The images in the file, each with three channels
+     * @throws IOException If the file cannot be mapped
+     */
+    public static ImageDataset cifar10(String filePath) throws IOException {
+        MappedByteBuffer data = map(filePath);
+        int rows = Configuration.CIFAR_IMAGE_HEIGHT;
+        int cols = Configuration.CIFAR_IMAGE_WIDTH;
+        int count = data.limit() / (1 + rows * cols * 3);
+        return new ImageDataset(data, count, rows, cols, 3, true, 0, 1);
+    }
+
+    /**
+     * @return Number of images in the dataset
+     */
+    public int count(){
+        return count;
+    }
+
+    /**
+     * @return Shape of a single image: rows, columns and channels
+     */
+    public int[] shape(){
+        return new int[]{rows, cols, channels};
+    }
+
+    /**
+     * @return Number of bytes of a single image
+     */
+    public int imageSize(){
+        return rows * cols * channels;
+    }
+
+    private int position(int index){
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Image " + index + " of a dataset of " + count + " images");
+        }
+        return offset + index * recordSize + labelSize;
+    }
+
+    /**
+     * @param index Position of the image in the dataset
+     * @return A read-only view of the image in the mapped file, in the layout of the file
+     */
+    public ByteBuffer image(int index){
+        ByteBuffer view = data.asReadOnlyBuffer();
+        int position = position(index);
+        view.position(position);
+        view.limit(position + imageSize());
+        return view.slice();
+    }
+
+    /**
+     * @param index Position of the image in the dataset
+     * @return The label stored in front of the image, or -1 if the file holds no labels
+     */
+    public int label(int index){
+        return labelSize == 0 ? -1 : data.get(position(index) - labelSize) & 0xff;
+    }
+
+    /**
+     * Copy a batch of images into a tensor of shape {size, rows * cols * channels}, in the layout of the file
+     *
+     * @param start Position of the first image in the dataset
+     * @param size Number of images in the batch
+     * @return A batch of images, each in a single dimension
+     */
+    public Tensor batch1D(int start, int size){
+        Tensor images = Tensor.allocate(size, imageSize());
+        copy(start, size, images.data(), false);
+        return images;
+    }
+
+    /**
+     * Copy a batch of images into a tensor of shape {size, rows, cols, channels}
+     *
+     * @param start Position of the first image in the dataset
+     * @param size Number of images in the batch
+     * @return A batch of images, each in three dimensions
+     */
+    public Tensor batch3D(int start, int size){
+        Tensor images = Tensor.allocate(size, rows, cols, channels);
+        copy(start, size, images.data(), planar);
+        return images;
+    }
+
+    /**
+     * @param interleave Whether to convert planar images to a pixel after pixel layout
+     */
+    private void copy(int start, int size, byte[] destination, boolean interleave){
+        ByteBuffer view = data.duplicate();
+        int imageSize = imageSize();
+        int plane = rows * cols;
+        byte[] image = interleave ? new byte[imageSize] : null;
+
+        for (int i = 0; i < size; i++) {
+            view.position(position(start + i));
+            if (!interleave) {
+                view.get(destination, i * imageSize, imageSize);
+                continue;
+            }
+
+            view.get(image);
+            int pos = i * imageSize;
+            for (int pixel = 0; pixel < plane; pixel++) {
+                for (int channel = 0; channel < channels; channel++) {
+                    destination[pos++] = image[channel * plane + pixel];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package nl.zakarias.constellation.raid.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads batches of image files on a pool of worker threads, ahead of the thread submitting them. The files come from a
+ * {@link FileSource}: a directory listed lazily and split into batches in listing order, or a {@link SpoolDirectory}
+ * handing out files as they arrive. Every batch is handed to the loader (reading, decoding and converting its images)
+ * on a worker, while the batches are returned in order by {@link #next()}.
+ *
+ * At most a fixed number of batches is loaded or loading at any time, a new batch is only started once the submitting
+ * thread takes one. A slow submitter (e.g. one waiting for memory) therefore stops the workers instead of filling the
+ * heap with decoded images.
+ *
+ * @param <T> The result of loading a batch, e.g. the Activity carrying its images
+ */
+public class ImagePrefetcher<T> implements Closeable {
+    /**
+     * Loads the images of a batch, called on a worker thread
+     */
+    public interface Loader<T> {
+        /**
+         * @param files The files of the batch
+         * @param imageIdentifiers Identifiers of the images, numbered in the order in which the batches are returned
+         * @return The loaded batch
+         * @throws IOException If a file cannot be read or decoded
+         */
+        T load(List<Path> files, long[] imageIdentifiers) throws IOException;
+    }
+
+    /**
+     * Hands out the files to load in batches, used by the submitting thread only
+     */
+    public interface FileSource extends Closeable {
+        /**
+         * @param max Maximum number of files in the batch
+         * @return The next batch, waiting until it is ready, or null if no more files will come
+         * @throws IOException If the files cannot be listed
+         */
+        List<Path> take(int max) throws IOException;
+
+        /**
+         * @param max Maximum number of files in the batch
+         * @return The next batch if it is ready right away, otherwise null
+         * @throws IOException If the files cannot be listed
+         */
+        List<Path> poll(int max) throws IOException;
+
+        /**
+         * Called once the files of a batch have been submitted, in the order in which the batches were taken
+         */
+        default void submitted(List<Path> files) throws IOException {
+        }
+    }
+
+    /**
+     * The regular files of a directory, as a single lazy listing
+     */
+    private static class Listing implements FileSource {
+        private final DirectoryStream<Path> directory;
+        private final Iterator<Path> files;
+
+        Listing(Path directory) throws IOException {
+            this.directory = Files.newDirectoryStream(directory, Files::isRegularFile);
+            this.files = this.directory.iterator();
+        }
+
+        @Override
+        public List<Path> take(int max){
+            return poll(max);
+        }
+
+        @Override
+        public List<Path> poll(int max){
+            if (!files.hasNext()) {
+                return null;
+            }
+            List<Path> batch = new ArrayList<>(max);
+            while (batch.size() < max && files.hasNext()) {
+                batch.add(files.next());
+            }
+            return batch;
+        }
+
+        @Override
+        public void close() throws IOException {
+            directory.close();
+        }
+    }
+
+    /**
+     * A loaded batch and the files it was loaded from
+     */
+    public static class Batch<T> {
+        public final List<Path> files;
+        public final T value;
+
+        Batch(List<Path> files, T value){
+            this.files = files;
+            this.value = value;
+        }
+    }
+
+    private final FileSource files;
+    private final int batchSize;
+    private final int capacity;
+    private final Loader<T> loader;
+    private final ExecutorService workers;
+
+    /** Batches being loaded, in listing order */
+    private final ArrayDeque<Future<Batch<T>>> queue = new ArrayDeque<>();
+
+    /**
+     * @param directory Directory of which the regular files are loaded
+     * @param batchSize Number of files in each batch, the last batch may be smaller
+     * @param loader Loads the images of a batch
+     * @param threads Number of worker threads, 0 uses one thread per core
+     * @param capacity Maximum number of batches loaded ahead of the submitting thread
+     * @throws IOException If the directory cannot be opened
+     */
+    public ImagePrefetcher(Path directory, int batchSize, Loader<T> loader, int threads, int capacity) throws IOException {
+        this(new Listing(directory), batchSize, loader, threads, capacity);
+    }
+
+    /**
+     * @param files The files to load, closed together with the prefetcher
+     * @param batchSize Maximum number of files in each batch
+     * @param loader Loads the images of a batch
+     * @param threads Number of worker threads, 0 uses one thread per core
+     * @param capacity Maximum number of batches loaded ahead of the submitting thread
+     * @throws IOException If the files cannot be listed
+     */
+    public ImagePrefetcher(FileSource files, int batchSize, Loader<T> loader, int threads, int capacity) throws IOException {
+        this.files = files;
+        this.batchSize = batchSize;
+        this.capacity = Math.max(capacity, 1);
+        this.loader = loader;
+
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "raid-prefetch-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        fill();
+    }
+
+    /**
+     * Start loading batches until the queue is full or no more files are ready
+     */
+    private void fill() throws IOException {
+        List<Path> batch;
+        while (queue.size() < capacity && (batch = files.poll(batchSize)) != null) {
+            load(batch);
+        }
+    }
+
+    private void load(List<Path> batch){
+        List<Path> batchFiles = Collections.unmodifiableList(batch);
+        // Numbered here rather than on the workers, so the identifiers follow the order of the batches
+        long[] imageIdentifiers = Utils.nextImageIdentifiers(batch.size());
+        queue.add(workers.submit(() -> new Batch<>(batchFiles, loader.load(batchFiles, imageIdentifiers))));
+    }
+
+    /**
+     * @return True if there are batches left, waits for the next files if none are being loaded
+     * @throws IOException If the files cannot be listed
+     */
+    public boolean hasNext() throws IOException {
+        if (queue.isEmpty()) {
+            List<Path> batch = files.take(batchSize);
+            if (batch == null) {
+                return false;
+            }
+            load(batch);
+        }
+        return true;
+    }
+
+    /**
+     * Wait for the next batch to be loaded, and start loading another one in its place.
+     *
+     * @return The next batch in listing order
+     * @throws IOException If the batch could not be loaded
+     * @throws NoSuchElementException If there are no batches left
+     */
+    public Batch<T> next() throws IOException {
+        Future<Batch<T>> head = queue.poll();
+        if (head == null) {
+            throw new NoSuchElementException();
+        }
+        fill();
+
+        try {
+            return head.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for images to be loaded");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Loading images failed", e.getCause());
+        }
+    }
+
+    /**
+     * Report that the Activity of a batch has been submitted, see {@link FileSource#submitted(List)}
+     *
+     * @param batch A batch returned by {@link #next()}
+     * @throws IOException If the source fails to record the submission
+     */
+    public void submitted(Batch<T> batch) throws IOException {
+        files.submitted(batch.files);
+    }
+
+    /**
+     * Stop the workers, batches which have not been taken are discarded
+     */
+    @Override
+    public void close() throws IOException {
+        workers.shutdownNow();
+        queue.clear();
+        files.close();
+    }
+}
@@ -0,0 +1,294 @@
+package nl.zakarias.constellation.raid.utils;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Fits decoded images to the input of a model and packs their pixels as RGB values, row by row, into a flat byte
+ * array. The pixels are read straight from the raster of the image, no intermediate image is drawn and no arrays are
+ * allocated per pixel row. Interleaved 8 bit rasters (BGR, ABGR, RGB, gray, with or without alpha) are read directly,
+ * any other image goes through {@link BufferedImage#getRGB}.
+ *
+ * With letterboxing, an image is scaled (bilinear) to the largest size fitting the input while keeping its aspect
+ * ratio, and centered with padding on both sides. Without it, the image is placed in the top left corner as it is,
+ * cropped on the right and bottom if too large. Transparent pixels are blended with the padding value.
+ *
+ * A preprocessor holds no state between images and can be used by several threads at once.
+ */
+public class ImagePreprocessor {
+    public static final int CHANNELS = 3;
+
+    private final int width;
+    private final int height;
+    private final boolean letterbox;
+    private final byte padValue;
+
+    /**
+     * Reads a row of the image as 0xRRGGBB values, with alpha already blended
+     */
+    private interface RowReader {
+        void read(int y, int[] rgb);
+    }
+
+    /**
+     * Rows and sampling tables of the current thread, reused for every image
+     */
+    private static class Scratch {
+        int[] upper = new int[0];
+        int[] lower = new int[0];
+        int[] x0 = new int[0];
+        int[] x1 = new int[0];
+        int[] fx = new int[0];
+    }
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * @param width Width of the model input in pixels
+     * @param height Height of the model input in pixels
+     * @param letterbox Whether to scale images to fit, instead of cropping them
+     * @param padValue Value of the RGB components of the padding, 0-255
+     */
+    public ImagePreprocessor(int width, int height, boolean letterbox, int padValue){
+        this.width = width;
+        this.height = height;
+        this.letterbox = letterbox;
+        this.padValue = (byte) padValue;
+    }
+
+    /**
+     * @return Number of bytes of a single processed image
+     */
+    public int imageSize(){
+        return width * height * CHANNELS;
+    }
+
+    /**
+     * @return Shape of a single processed image: rows, columns and channels
+     */
+    public int[] shape(){
+        return new int[]{height, width, CHANNELS};
+    }
+
+    /**
+     * Decode a batch of encoded images and fit each one to the model input
+     *
+     * @param files The images as JPEG or PNG files
+     * @return A tensor of shape {images, rows, columns, channels}, with an array taken from the {@link BufferPool}
+     * @throws IOException If an image cannot be decoded
+     */
+    public Tensor decode(byte[][] files) throws IOException {
+        Tensor images = Tensor.allocate(files.length, height, width, CHANNELS);
+        try {
+            for (int i = 0; i < files.length; i++) {
+                process(Utils.decodeImage(files[i]), images.data(), i * images.imageSize());
+            }
+        } catch (IOException | RuntimeException e) {
+            images.release();
+            throw e;
+        }
+        return images;
+    }
+
+    /**
+     * Fit the image to the model input and write its RGB pixels into the destination
+     *
+     * @param image The decoded image
+     * @param destination Array receiving {@link #imageSize()} bytes
+     * @param offset Position in the destination of the first byte of the image
+     */
+    public void process(BufferedImage image, byte[] destination, int offset){
+        int sourceWidth = image.getWidth();
+        int sourceHeight = image.getHeight();
+
+        int scaledWidth, scaledHeight;
+        if (letterbox) {
+            double scale = Math.min((double) width / sourceWidth, (double) height / sourceHeight);
+            scaledWidth = Math.max(1, Math.min(width, (int) Math.round(sourceWidth * scale)));
+            scaledHeight = Math.max(1, Math.min(height, (int) Math.round(sourceHeight * scale)));
+        } else {
+            scaledWidth = Math.min(sourceWidth, width);
+            scaledHeight = Math.min(sourceHeight, height);
+        }
+        int left = letterbox ? (width - scaledWidth) / 2 : 0;
+        int top = letterbox ? (height - scaledHeight) / 2 : 0;
+        int stride = width * CHANNELS;
+
+        // Padding above and below the image
+        Arrays.fill(destination, offset, offset + top * stride, padValue);
+        Arrays.fill(destination, offset + (top + scaledHeight) * stride, offset + height * stride, padValue);
+
+        Scratch rows = scratch(sourceWidth, scaledWidth);
+        RowReader reader = reader(image);
+        boolean resize = scaledWidth != sourceWidth || scaledHeight != sourceHeight;
+        if (resize) {
+            samplingTable(sourceWidth, scaledWidth, rows.x0, rows.x1, rows.fx);
+        }
+
+        int upperRow = -1;
+        int lowerRow = -1;
+        for (int y = 0; y < scaledHeight; y++) {
+            int rowStart = offset + (top + y) * stride;
+            int pos = rowStart + left * CHANNELS;
+
+            // Padding left and right of the image
+            Arrays.fill(destination, rowStart, pos, padValue);
+            Arrays.fill(destination, pos + scaledWidth * CHANNELS, rowStart + stride, padValue);
+
+            if (!resize) {
+                reader.read(y, rows.upper);
+                for (int x = 0; x < scaledWidth; x++) {
+                    int rgb = rows.upper[x];
+                    destination[pos++] = (byte) (rgb >> 16);
+                    destination[pos++] = (byte) (rgb >> 8);
+                    destination[pos++] = (byte) rgb;
+                }
+                continue;
+            }
+
+            double sy = Math.max(0, (y + 0.5) * sourceHeight / scaledHeight - 0.5);
+            int y0 = Math.min((int) sy, sourceHeight - 1);
+            int y1 = Math.min(y0 + 1, sourceHeight - 1);
+            int fy = (int) ((sy - y0) * 256);
+
+            // Consecutive output rows mostly share their source rows, only read the rows not yet in the scratch
+            if (upperRow != y0 && lowerRow == y0) {
+                int[] rgb = rows.upper;
+                rows.upper = rows.lower;
+                rows.lower = rgb;
+                lowerRow = upperRow;
+                upperRow = y0;
+            } else if (upperRow != y0) {
+                reader.read(y0, rows.upper);
+                upperRow = y0;
+            }
+            if (lowerRow != y1) {
+                reader.read(y1, rows.lower);
+                lowerRow = y1;
+            }
+
+            int[] upper = rows.upper;
+            int[] lower = rows.lower;
+            for (int x = 0; x < scaledWidth; x++) {
+                int x0 = rows.x0[x];
+                int x1 = rows.x1[x];
+                int fx = rows.fx[x];
+                for (int shift = 16; shift >= 0; shift -= 8) {
+                    int above = ((upper[x0] >> shift) & 0xff) * (256 - fx) + ((upper[x1] >> shift) & 0xff) * fx;
+                    int below = ((lower[x0] >> shift) & 0xff) * (256 - fx) + ((lower[x1] >> shift) & 0xff) * fx;
+                    destination[pos++] = (byte) ((above * (256 - fy) + below * fy + (1 << 15)) >> 16);
+                }
+            }
+        }
+    }
+
+    private static Scratch scratch(int sourceWidth, int scaledWidth){
+        Scratch rows = scratch.get();
+        if (rows.upper.length < sourceWidth) {
+            rows.upper = new int[sourceWidth];
+            rows.lower = new int[sourceWidth];
+        }
+        if (rows.x0.length < scaledWidth) {
+            rows.x0 = new int[scaledWidth];
+            rows.x1 = new int[scaledWidth];
+            rows.fx = new int[scaledWidth];
+        }
+        return rows;
+    }
+
+    /**
+     * For every output column, the two source columns it lies between and the weight of the second one (0-256)
+     */
+    private static void samplingTable(int sourceSize, int scaledSize, int[] x0, int[] x1, int[] fx){
+        for (int x = 0; x < scaledSize; x++) {
+            double sx = Math.max(0, (x + 0.5) * sourceSize / scaledSize - 0.5);
+            x0[x] = Math.min((int) sx, sourceSize - 1);
+            x1[x] = Math.min(x0[x] + 1, sourceSize - 1);
+            fx[x] = (int) ((sx - x0[x]) * 256);
+        }
+    }
+
+    /**
+     * @return Value of a color component on top of the padding
+     */
+    private int blend(int value, int alpha, boolean premultiplied){
+        int background = ((padValue & 0xff) * (255 - alpha) + 127) / 255;
+        if (premultiplied) {
+            return Math.min(255, value + background);
+        }
+        return (value * alpha + 127) / 255 + background;
+    }
+
+    private RowReader reader(BufferedImage image){
+        Raster raster = image.getRaster();
+        ColorModel colorModel = image.getColorModel();
+        int imageWidth = image.getWidth();
+        int colorSpace = colorModel.getColorSpace().getType();
+        boolean gray = colorSpace == ColorSpace.TYPE_GRAY;
+
+        boolean interleaved = raster.getDataBuffer() instanceof DataBufferByte
+                && raster.getDataBuffer().getNumBanks() == 1
+                && raster.getSampleModel() instanceof ComponentSampleModel
+                && colorModel instanceof ComponentColorModel
+                && colorModel.getTransferType() == DataBuffer.TYPE_BYTE
+                && (gray || colorModel.getColorSpace().isCS_sRGB());
+
+        if (!interleaved) {
+            // Indexed, packed int, 16 bit and other color spaces are converted to sRGB by Java2D
+            boolean alpha = colorModel.hasAlpha();
+            return (y, rgb) -> {
+                image.getRGB(0, y, imageWidth, 1, rgb, 0, imageWidth);
+                for (int x = 0; x < imageWidth; x++) {
+                    int argb = rgb[x];
+                    if (alpha) {
+                        int a = argb >>> 24;
+                        argb = blend((argb >> 16) & 0xff, a, false) << 16
+                                | blend((argb >> 8) & 0xff, a, false) << 8
+                                | blend(argb & 0xff, a, false);
+                    }
+                    rgb[x] = argb & 0xffffff;
+                }
+            };
+        }
+
+        ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int[] bandOffsets = sampleModel.getBandOffsets();
+        int pixelStride = sampleModel.getPixelStride();
+        int scanlineStride = sampleModel.getScanlineStride();
+        int base = raster.getDataBuffer().getOffset()
+                - raster.getSampleModelTranslateY() * scanlineStride
+                - raster.getSampleModelTranslateX() * pixelStride;
+
+        // The bands are in the order of the color model (R, G, B or gray, then alpha), whatever the memory layout
+        int red = bandOffsets[0];
+        int green = gray ? red : bandOffsets[1];
+        int blue = gray ? red : bandOffsets[2];
+        int alpha = colorModel.hasAlpha() ? bandOffsets[gray ? 1 : 3] : -1;
+        boolean premultiplied = colorModel.isAlphaPremultiplied();
+
+        return (y, rgb) -> {
+            int pos = base + y * scanlineStride;
+            for (int x = 0; x < imageWidth; x++, pos += pixelStride) {
+                int r = data[pos + red] & 0xff;
+                int g = data[pos + green] & 0xff;
+                int b = data[pos + blue] & 0xff;
+                if (alpha >= 0) {
+                    int a = data[pos + alpha] & 0xff;
+                    r = blend(r, a, premultiplied);
+                    g = blend(g, a, premultiplied);
+                    b = blend(b, a, premultiplied);
+                }
+                rgb[x] = r << 16 | g << 8 | b;
+            }
+        };
+    }
+}
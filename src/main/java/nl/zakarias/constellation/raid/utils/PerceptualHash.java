@@ -0,0 +1,78 @@
+package nl.zakarias.constellation.raid.utils;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Difference hash (dHash) of an image: the brightness of the image is averaged over a grid of 9 by 8 cells, and every
+ * bit of the hash tells whether a cell is brighter than the cell to its right. Images which look alike get hashes that
+ * differ in few bits, despite noise, compression artifacts or small changes in exposure, so the number of differing
+ * bits ({@link #distance(long, long)}) measures how different two images are.
+ */
+public final class PerceptualHash {
+    private static final int COLUMNS = 9;
+    private static final int ROWS = 8;
+
+    /** Pixels sampled along each side of a cell, larger images are subsampled */
+    private static final int SAMPLES = 8;
+
+    /** Fits decoded images to a small size before hashing them, the average of a cell only needs a few pixels */
+    private static final ImagePreprocessor thumbnail = new ImagePreprocessor(COLUMNS * SAMPLES, ROWS * SAMPLES, true, 0);
+
+    private PerceptualHash(){
+    }
+
+    /**
+     * @param rgb Array holding the image as RGB values, row by row
+     * @param offset Position of the first byte of the image
+     * @param width Width of the image in pixels
+     * @param height Height of the image in pixels
+     * @return The hash of the image
+     */
+    public static long dHash(byte[] rgb, int offset, int width, int height){
+        if (width < COLUMNS || height < ROWS) {
+            throw new IllegalArgumentException("Image of " + width + "x" + height + " is too small to hash");
+        }
+        long[] sums = new long[COLUMNS * ROWS];
+        int[] counts = new int[COLUMNS * ROWS];
+        int step = Math.max(1, Math.min(width / COLUMNS, height / ROWS) / SAMPLES);
+
+        for (int y = 0; y < height; y += step) {
+            int row = y * ROWS / height * COLUMNS;
+            int pos = offset + y * width * ImagePreprocessor.CHANNELS;
+            for (int x = 0; x < width; x += step, pos += step * ImagePreprocessor.CHANNELS) {
+                int cell = row + x * COLUMNS / width;
+                // Luma weights of ITU-R BT.601, scaled by 256
+                sums[cell] += 77 * (rgb[pos] & 0xff) + 150 * (rgb[pos + 1] & 0xff) + 29 * (rgb[pos + 2] & 0xff);
+                counts[cell]++;
+            }
+        }
+
+        long hash = 0;
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < COLUMNS - 1; column++) {
+                int left = row * COLUMNS + column;
+                // Compare the averages without dividing, the cells can hold a different number of samples
+                boolean brighter = sums[left] * counts[left + 1] > sums[left + 1] * counts[left];
+                hash = hash << 1 | (brighter ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @param image A decoded image of any size
+     * @return The hash of the image, scaled down to a thumbnail first
+     */
+    public static long dHash(BufferedImage image){
+        byte[] pixels = new byte[thumbnail.imageSize()];
+        thumbnail.process(image, pixels, 0);
+        return dHash(pixels, 0, COLUMNS * SAMPLES, ROWS * SAMPLES);
+    }
+
+    /**
+     * @return Number of bits in which the hashes differ, 0 for images looking the same and about 32 for unrelated ones
+     */
+    public static int distance(long a, long b){
+        return Long.bitCount(a ^ b);
+    }
+}
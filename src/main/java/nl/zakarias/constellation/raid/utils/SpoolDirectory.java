@@ -0,0 +1,395 @@
+package nl.zakarias.constellation.raid.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * A directory into which files keep arriving (e.g. frames dropped by cameras), watched with a {@link WatchService}.
+ * The files present when the source starts are handed out first, oldest first, followed by the files arriving later in
+ * the order in which they are completely written.
+ *
+ * A JPEG or PNG file is complete as soon as it ends with the end of image marker, any other file once its size and
+ * modification time have not changed for the settle time. Files whose name starts with a dot or ends with .tmp or
+ * .part are ignored, so writers can also create a file under such a name and rename it when done.
+ *
+ * A batch is handed out once it is full, or when its oldest file has been waiting for the batch window. After a batch
+ * has been submitted its files can be deleted or moved to an archive directory, and their names are appended to a
+ * checkpoint file. Files named in the checkpoint are skipped when the source restarts. A batch submitted just before
+ * a crash may be submitted again after the restart, but no file is lost.
+ *
+ * Submitted files which are left in the directory are only remembered for a while, to ignore the events still arriving
+ * for them. When events were lost and the directory is listed again, the checkpoint tells which files to skip; without
+ * a checkpoint, files submitted long ago which are still in the directory are submitted again.
+ */
+public class SpoolDirectory implements ImagePrefetcher.FileSource {
+    private static final Logger logger = LoggerFactory.getLogger(SpoolDirectory.class);
+
+    /** Time between two checks of files still being written */
+    private static final long CHECK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(5);
+    /** Number of submitted files left in the directory for which further events are ignored */
+    private static final int RECENTLY_SUBMITTED = 4096;
+
+    private static final byte[] PNG_END = {0x49, 0x45, 0x4e, 0x44, (byte) 0xae, 0x42, 0x60, (byte) 0x82};
+
+    private final Path directory;
+    private final WatchService watcher;
+    private final long window;
+    private final long settleTime;
+    private final Path archive;
+    private final boolean delete;
+    private final Path checkpointFile;
+    private final BufferedWriter checkpoint;
+
+    /**
+     * A file seen in the directory which is not complete yet
+     */
+    private static class Pending {
+        long size = -1;
+        long modified = -1;
+        /** Time the size or modification time last changed */
+        long since;
+        /** Whether the file ends like a complete image */
+        boolean complete;
+    }
+
+    /**
+     * A complete file waiting to be handed out
+     */
+    private static class Ready {
+        final Path file;
+        final long since;
+
+        Ready(Path file, long since){
+            this.file = file;
+            this.since = since;
+        }
+    }
+
+    private final Map<Path, Pending> pending = new LinkedHashMap<>();
+    private final ArrayDeque<Ready> ready = new ArrayDeque<>();
+    /** Files pending, ready, or handed out and not submitted yet, further events for them are ignored */
+    private final Set<Path> known = new HashSet<>();
+    /** The last submitted files left in the directory, further events for them are ignored as well */
+    private final Set<Path> recent = Collections.newSetFromMap(new LinkedHashMap<Path, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Boolean> eldest){
+            return size() > RECENTLY_SUBMITTED;
+        }
+    });
+
+    /**
+     * @param directory The directory to watch
+     * @param window Maximum time a complete file waits for its batch to fill up, in milliseconds
+     * @param settleTime Time the size of a file which is not a JPEG or PNG must stay the same, in milliseconds
+     * @param archive Directory to move submitted files to, or null to leave them
+     * @param delete Whether to delete submitted files, when not archiving them
+     * @param checkpoint File recording the names of the submitted files, or null to not keep one
+     * @throws IOException If the directory cannot be watched or the checkpoint cannot be read or written
+     */
+    public SpoolDirectory(Path directory, int window, int settleTime, Path archive, boolean delete, Path checkpoint) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            throw new IOException(directory + " is not a directory");
+        }
+        this.directory = directory;
+        this.window = TimeUnit.MILLISECONDS.toNanos(window);
+        this.settleTime = TimeUnit.MILLISECONDS.toNanos(settleTime);
+        this.archive = archive;
+        this.delete = delete;
+        if (archive != null) {
+            Files.createDirectories(archive);
+        }
+
+        // Watch before listing the directory, so no file arriving in between is missed
+        this.watcher = directory.getFileSystem().newWatchService();
+        directory.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+
+        Set<String> submitted = new HashSet<>();
+        if (checkpoint != null && Files.exists(checkpoint)) {
+            submitted.addAll(Files.readAllLines(checkpoint));
+        }
+        List<String> remaining = scan(submitted);
+        this.checkpointFile = checkpoint;
+        this.checkpoint = checkpoint == null ? null : openCheckpoint(checkpoint, remaining);
+
+        logger.info("Watching " + directory + " for new files, " + pending.size() + " files waiting, "
+                + remaining.size() + " already submitted");
+    }
+
+    /**
+     * Add the files in the directory which have not been seen yet, oldest first
+     *
+     * @param submitted Names of the files to skip
+     * @return Names of the skipped files still in the directory
+     */
+    private List<String> scan(Set<String> submitted) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory, Files::isRegularFile)) {
+            listing.forEach(files::add);
+        }
+        files.sort(Comparator.comparingLong(SpoolDirectory::lastModified).thenComparing(Path::getFileName));
+
+        List<String> skipped = new ArrayList<>();
+        for (Path file : files) {
+            if (submitted.contains(file.getFileName().toString())) {
+                skipped.add(file.getFileName().toString());
+            } else {
+                add(file);
+            }
+        }
+        return skipped;
+    }
+
+    private static long lastModified(Path file){
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Rewrite the checkpoint with the names of the files still in the directory, and open it for appending
+     */
+    private static BufferedWriter openCheckpoint(Path checkpoint, List<String> names) throws IOException {
+        Path temporary = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        Files.write(temporary, names);
+        Files.move(temporary, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return Files.newBufferedWriter(checkpoint, StandardOpenOption.APPEND);
+    }
+
+    private void add(Path file){
+        String name = file.getFileName().toString();
+        if (name.startsWith(".") || name.endsWith(".tmp") || name.endsWith(".part") || recent.contains(file) || !known.add(file)) {
+            return;
+        }
+        Pending state = new Pending();
+        state.since = System.nanoTime();
+        pending.put(file, state);
+    }
+
+    /**
+     * Handle the events of the watch service, waiting at most the given time for the first one
+     *
+     * @return False if the watch service has been closed
+     */
+    private boolean events(long timeout) throws IOException {
+        WatchKey key;
+        try {
+            if (timeout <= 0) {
+                key = watcher.poll();
+            } else if (timeout == Long.MAX_VALUE) {
+                key = watcher.take();
+            } else {
+                key = watcher.poll(timeout, TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while watching " + directory);
+        } catch (ClosedWatchServiceException e) {
+            return false;
+        }
+
+        while (key != null) {
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    // Events were lost, look for files which have not been seen
+                    logger.warn("Too many files arriving in " + directory + ", listing it again");
+                    Set<String> submitted = new HashSet<>();
+                    if (checkpointFile != null) {
+                        submitted.addAll(Files.readAllLines(checkpointFile));
+                    }
+                    scan(submitted);
+                } else {
+                    add(directory.resolve((Path) event.context()));
+                }
+            }
+            if (!key.reset()) {
+                throw new IOException(directory + " can no longer be watched");
+            }
+            key = watcher.poll();
+        }
+        return true;
+    }
+
+    /**
+     * Move the files which have been completely written to the ready queue
+     */
+    private void check(){
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Path, Pending>> files = pending.entrySet().iterator();
+        while (files.hasNext()) {
+            Map.Entry<Path, Pending> entry = files.next();
+            Path file = entry.getKey();
+            Pending state = entry.getValue();
+
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                // Removed before it was complete, e.g. renamed by its writer
+                files.remove();
+                known.remove(file);
+                continue;
+            } catch (IOException e) {
+                continue;
+            }
+            if (!attributes.isRegularFile()) {
+                files.remove();
+                known.remove(file);
+                continue;
+            }
+
+            long modified = attributes.lastModifiedTime().toMillis();
+            if (attributes.size() != state.size || modified != state.modified) {
+                state.size = attributes.size();
+                state.modified = modified;
+                state.since = now;
+                state.complete = isCompleteImage(file, state.size);
+            }
+
+            if (state.complete || (state.size > 0 && now - state.since >= settleTime)) {
+                files.remove();
+                ready.add(new Ready(file, now));
+            }
+        }
+    }
+
+    /**
+     * @return True if the file is a JPEG file ending with the end of image marker, or a PNG file ending with its IEND
+     * chunk
+     */
+    private static boolean isCompleteImage(Path file, long size){
+        if (size < PNG_END.length + 8) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate(2);
+            ByteBuffer tail = ByteBuffer.allocate(PNG_END.length);
+            channel.read(head, 0);
+            channel.read(tail, size - PNG_END.length);
+            if (head.position() < 2 || tail.position() < PNG_END.length) {
+                return false;
+            }
+
+            if (head.get(0) == (byte) 0xff && head.get(1) == (byte) 0xd8) {
+                return tail.get(PNG_END.length - 2) == (byte) 0xff && tail.get(PNG_END.length - 1) == (byte) 0xd9;
+            }
+            if (head.get(0) == (byte) 0x89 && head.get(1) == 0x50) {
+                for (int i = 0; i < PNG_END.length; i++) {
+                    if (tail.get(i) != PNG_END[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        } catch (IOException e) {
+            // Check again later
+        }
+        return false;
+    }
+
+    /**
+     * @return The next batch if it is full or its oldest file has waited for the batch window, otherwise null
+     */
+    private List<Path> batch(int max){
+        if (ready.isEmpty() || (ready.size() < max && System.nanoTime() - ready.peek().since < window)) {
+            return null;
+        }
+        List<Path> batch = new ArrayList<>(Math.min(max, ready.size()));
+        while (batch.size() < max && !ready.isEmpty()) {
+            batch.add(ready.poll().file);
+        }
+        return batch;
+    }
+
+    @Override
+    public List<Path> take(int max) throws IOException {
+        long timeout = 0;
+        while (events(timeout)) {
+            check();
+            List<Path> batch = batch(max);
+            if (batch != null) {
+                return batch;
+            }
+
+            // Wake up when the batch window ends or to check the files being written, or on the next event
+            timeout = Long.MAX_VALUE;
+            if (!ready.isEmpty()) {
+                timeout = Math.max(1, ready.peek().since + window - System.nanoTime());
+            }
+            if (!pending.isEmpty()) {
+                timeout = Math.min(timeout, CHECK_INTERVAL);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<Path> poll(int max) throws IOException {
+        if (!events(0)) {
+            return null;
+        }
+        check();
+        return batch(max);
+    }
+
+    @Override
+    public void submitted(List<Path> files) throws IOException {
+        for (Path file : files) {
+            if (checkpoint != null) {
+                checkpoint.write(file.getFileName().toString());
+                checkpoint.newLine();
+            }
+            if (archive != null) {
+                Files.move(file, archive.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            } else if (delete) {
+                Files.deleteIfExists(file);
+            } else {
+                recent.add(file);
+            }
+            known.remove(file);
+        }
+        if (checkpoint != null) {
+            checkpoint.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+        if (checkpoint != null) {
+            checkpoint.close();
+        }
+    }
+}
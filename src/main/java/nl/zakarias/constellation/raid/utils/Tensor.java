@@ -0,0 +1,336 @@
+package nl.zakarias.constellation.raid.utils;
+
+import ibis.constellation.util.ByteBufferCache;
+import ibis.constellation.util.ByteBuffers;
+import nl.zakarias.constellation.raid.configuration.Configuration;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A batch of images carried by an Activity: the values of all images one after the other in a single array, in row
+ * major order, together with the shape of the batch and the type of its values. The first dimension of the shape is
+ * the number of images, e.g. {2, 28, 28, 1} for two MNIST images.
+ *
+ * When an Activity is stolen by another node, only a small header is serialized. With
+ * {@link Configuration#BYTE_BUFFER_TRANSFER} the values are handed to Constellation as a {@link ByteBuffer} wrapping
+ * the array, and Constellation writes it after the message. The receiving node reads it into a direct buffer from the
+ * {@link ByteBufferCache}, and the values are copied from that buffer into an array from the {@link BufferPool} when
+ * they are first used. A buffer holding compressed values is dropped instead of being handed back to the cache, as
+ * each block has its own length. Without it, the values follow the header in one bulk write. Either way the array is
+ * returned to the pool by {@link #release()} once the images have been classified.
+ *
+ * A tensor can be {@link #compress() compressed} with {@link LZ4} before it is submitted. It then holds the compressed
+ * values only, and stays compressed while it waits to be stolen and while it is transferred, until its values are
+ * first used by {@link #data()}.
+ *
+ * Only Constellation calls {@link #pushByteBuffers(List)}, a tensor serialized in any other way with
+ * {@link Configuration#BYTE_BUFFER_TRANSFER} set does not carry its values.
+ */
+public class Tensor implements Serializable, ByteBuffers {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Type of the values of a tensor, matching the input types of the models
+     */
+    public enum DataType {
+        UINT8("uint8", 1);
+
+        private final String name;
+        private final int size;
+
+        DataType(String name, int size){
+            this.name = name;
+            this.size = size;
+        }
+
+        /**
+         * @return Number of bytes of a single value
+         */
+        public int size(){
+            return size;
+        }
+
+        @Override
+        public String toString(){
+            return name;
+        }
+    }
+
+    // Written by writeObject
+    private transient DataType dataType;
+    private transient int[] shape;
+    private transient byte[] data;
+    /** Whether the values are still to be received through {@link #popByteBuffers(List)} */
+    private transient boolean awaitingBuffer;
+    /** The values as received by Constellation, until they are copied into the array */
+    private transient ByteBuffer received;
+    /** The values compressed with {@link LZ4}, exactly as long as the block, until they are decompressed */
+    private transient byte[] compressed;
+    /** Length of the compressed values still to be received, or of the received buffer, -1 if they are not compressed */
+    private transient int compressedLength = -1;
+
+    /**
+     * @param data The values of the batch, exactly as many as the shape holds
+     * @param shape Shape of the batch, the first dimension is the number of images
+     */
+    public Tensor(byte[] data, int... shape){
+        if (shape.length == 0 || data.length != elements(shape)) {
+            throw new IllegalArgumentException("Tensor of shape " + Arrays.toString(shape) + " cannot hold " + data.length + " values");
+        }
+        this.dataType = DataType.UINT8;
+        this.shape = shape.clone();
+        this.data = data;
+    }
+
+    /**
+     * @param shape Shape of the batch, the first dimension is the number of images
+     * @return A tensor with an array taken from the {@link BufferPool}, its values are undefined
+     */
+    public static Tensor allocate(int... shape){
+        return new Tensor(BufferPool.acquire((int) elements(shape)), shape);
+    }
+
+    private static long elements(int[] shape){
+        long elements = 1;
+        for (int size : shape) {
+            elements *= size;
+        }
+        return elements;
+    }
+
+    /**
+     * @return The values of the batch, in row major order
+     */
+    public byte[] data(){
+        if (received != null && compressedLength < 0) {
+            data = BufferPool.acquire(received.capacity());
+            received.position(0);
+            received.get(data);
+            ByteBufferCache.makeAvailableByteBuffer(received);
+            received = null;
+        }
+        byte[] block = compressed();
+        if (block != null) {
+            data = BufferPool.acquire(byteSize());
+            LZ4.decompress(block, 0, block.length, data, 0, data.length);
+            compressed = null;
+            compressedLength = -1;
+        }
+        return data;
+    }
+
+    /**
+     * @return The compressed values, null if the values are not compressed
+     */
+    private byte[] compressed(){
+        if (received != null && compressedLength >= 0) {
+            compressed = new byte[received.capacity()];
+            received.position(0);
+            received.get(compressed);
+            // Sized to this block only, the cache would keep it for a request of exactly the same size
+            received = null;
+        }
+        return compressed;
+    }
+
+    /**
+     * @return Whether the values are held compressed
+     */
+    public boolean isCompressed(){
+        return compressed != null || compressedLength >= 0;
+    }
+
+    /**
+     * Compress the values with {@link LZ4}, unless that saves less than {@link Configuration#COMPRESSION_MIN_SAVING} of
+     * their size. The array holding the values is handed back to the {@link BufferPool}.
+     *
+     * @return Whether the values are held compressed
+     */
+    public boolean compress(){
+        if (isCompressed()) {
+            return true;
+        }
+        byte[] values = data();
+        byte[] block = BufferPool.acquire(LZ4.maxCompressedLength(values.length));
+        int length = LZ4.compress(values, 0, values.length, block, 0);
+        if (length <= values.length * (1 - Configuration.COMPRESSION_MIN_SAVING)) {
+            compressed = Arrays.copyOf(block, length);
+            compressedLength = length;
+            BufferPool.release(data);
+            data = null;
+        }
+        BufferPool.release(block);
+        return isCompressed();
+    }
+
+    private int byteSize(){
+        return (int) (elements(shape) * dataType.size());
+    }
+
+    /**
+     * @return Shape of the batch, the first dimension is the number of images
+     */
+    public int[] shape(){
+        return shape.clone();
+    }
+
+    public DataType dataType(){
+        return dataType;
+    }
+
+    /**
+     * @return Number of images in the batch
+     */
+    public int count(){
+        return shape[0];
+    }
+
+    /**
+     * @return Number of bytes of a single image
+     */
+    public int imageSize(){
+        return shape[0] == 0 ? 0 : (int) (elements(shape) * dataType.size() / shape[0]);
+    }
+
+    /**
+     * @param index Position of the image in the batch
+     * @return Hash of the values of the image, see {@link Utils#imageHash(byte[], int, int)}
+     */
+    public long imageHash(int index){
+        return Utils.imageHash(data(), index * imageSize(), imageSize());
+    }
+
+    /**
+     * @return Hashes of the values of all images of the batch
+     */
+    public long[] imageHashes(){
+        long[] hashes = new long[count()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = imageHash(i);
+        }
+        return hashes;
+    }
+
+    /**
+     * @param images Positions of the images to keep
+     * @return A tensor holding only these images, in an array taken from the {@link BufferPool}. This tensor is
+     * released, it must not be used afterwards
+     */
+    public Tensor select(int[] images){
+        boolean compress = isCompressed();
+        int[] selected = shape.clone();
+        selected[0] = images.length;
+        Tensor result = allocate(selected);
+        int size = imageSize();
+        byte[] values = data();
+        for (int i = 0; i < images.length; i++) {
+            System.arraycopy(values, images[i] * size, result.data, i * size, size);
+        }
+        release();
+        if (compress) {
+            result.compress();
+        }
+        return result;
+    }
+
+    /**
+     * Hand the values back to the {@link BufferPool}, the tensor must not be used afterwards
+     */
+    public void release(){
+        BufferPool.release(data);
+        data = null;
+        // Only buffers of uncompressed values have a size the cache is asked for again
+        if (received != null && compressedLength < 0) {
+            ByteBufferCache.makeAvailableByteBuffer(received);
+        }
+        received = null;
+        compressed = null;
+        compressedLength = -1;
+    }
+
+    @Override
+    public void pushByteBuffers(List<ByteBuffer> list){
+        if (Configuration.BYTE_BUFFER_TRANSFER) {
+            // Written by Constellation before the Activity is discarded on this node, so the array is not copied
+            list.add(ByteBuffer.wrap(isCompressed() ? compressed() : data()));
+        }
+    }
+
+    @Override
+    public void popByteBuffers(List<ByteBuffer> list){
+        if (!awaitingBuffer) {
+            return;
+        }
+        // The buffers are handed back in the order in which they were pushed
+        ByteBuffer buffer = list.remove(0);
+        if (buffer.capacity() != (compressedLength >= 0 ? compressedLength : byteSize())) {
+            throw new IllegalStateException("Received " + buffer.capacity() + " bytes for " + this);
+        }
+        received = buffer;
+        awaitingBuffer = false;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeByte(dataType.ordinal());
+        out.writeByte(shape.length);
+        for (int size : shape) {
+            out.writeInt(size);
+        }
+        byte[] block = compressed();
+        out.writeInt(block == null ? -1 : block.length);
+        out.writeBoolean(Configuration.BYTE_BUFFER_TRANSFER);
+        if (!Configuration.BYTE_BUFFER_TRANSFER) {
+            out.write(block == null ? data() : block);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int type = in.readUnsignedByte();
+        if (type >= DataType.values().length) {
+            throw new InvalidObjectException("Unknown tensor data type " + type);
+        }
+        dataType = DataType.values()[type];
+
+        shape = new int[in.readUnsignedByte()];
+        for (int dim = 0; dim < shape.length; dim++) {
+            shape[dim] = in.readInt();
+            if (shape[dim] < 0) {
+                throw new InvalidObjectException("Negative tensor dimension " + shape[dim]);
+            }
+        }
+        long elements = elements(shape) * dataType.size();
+        if (shape.length == 0 || elements > Integer.MAX_VALUE) {
+            throw new InvalidObjectException("Invalid tensor shape " + Arrays.toString(shape));
+        }
+
+        compressedLength = in.readInt();
+        if (compressedLength > LZ4.maxCompressedLength((int) elements)) {
+            throw new InvalidObjectException("Invalid compressed tensor length " + compressedLength);
+        }
+
+        awaitingBuffer = in.readBoolean();
+        if (!awaitingBuffer) {
+            if (compressedLength >= 0) {
+                compressed = new byte[compressedLength];
+                in.readFully(compressed);
+            } else {
+                data = BufferPool.acquire((int) elements);
+                in.readFully(data);
+            }
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "Tensor(" + dataType + ", " + Arrays.toString(shape) + ")";
+    }
+}
@@ -10,7 +10,7 @@ import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Utils {
     public static Logger logger = LoggerFactory.getLogger(Utils.class);
@@ -20,6 +20,9 @@ public class Utils {
     public static final int CIFAR_IMAGE_WIDTH = Configuration.CIFAR_IMAGE_WIDTH;
     public static final int CIFAR_IMAGE_HEIGHT = Configuration.CIFAR_IMAGE_HEIGHT;
 
+    /** Identifier of the next image sent by this source */
+    private static final AtomicLong imageSequence = new AtomicLong();
+
     public static String printArray(String[] contexts){
         StringBuilder result = new StringBuilder();
 
@@ -77,108 +80,107 @@ public class Utils {
     }
 
 
-    public static byte[][] readMnist_1D(String filePath) throws IOException {
-        DataInputStream dataInputStream = new DataInputStream(new FileInputStream(filePath));
-
-        dataInputStream.readInt(); // Magic number
-        int imageCount = dataInputStream.readInt();
-        int rows = dataInputStream.readInt();
-        int cols = dataInputStream.readInt();
-
-        byte[][] images = new byte[imageCount][rows*cols];
-
-        for(int i=0; i<imageCount; i++){
-            for(int x=0; x<rows*cols; x++){
-                images[i][x] = (byte) dataInputStream.readUnsignedByte();
-            }
-        }
-
-        dataInputStream.close();
-
-        return images;
+    /**
+     * Read all images of an IDX file of MNIST images, see {@link ImageDataset#mnist(String)} to take batches from the
+     * file without reading all of it.
+     */
+    public static Tensor readMnist_1D(String filePath) throws IOException {
+        ImageDataset dataset = ImageDataset.mnist(filePath);
+        return dataset.batch1D(0, dataset.count());
     }
 
-    public static byte[][][][] readMnist_3D(String filePath) throws IOException {
-        DataInputStream dataInputStream = new DataInputStream(new FileInputStream(filePath));
-
-        dataInputStream.readInt(); // Magic number
-        int imageCount = dataInputStream.readInt();
-        int rows = dataInputStream.readInt();
-        int cols = dataInputStream.readInt();
-
-        // Data must be structured as a matrix, with each number in a 1-digit array
-        byte[][][][] images = new byte[imageCount][rows][cols][1];
-
-        for(int image=0; image<imageCount; image++){
-            for(int row=0; row<rows; row++){
-                for(int col=0; col<cols; col++) {
-                    images[image][row][col][0] = (byte) dataInputStream.readUnsignedByte();
-                }
-            }
-        }
-
-        dataInputStream.close();
-
-        return images;
+    /**
+     * Read all images of an IDX file of MNIST images, each number in a 1-digit array, see
+     * {@link ImageDataset#mnist(String)} to take batches from the file without reading all of it.
+     */
+    public static Tensor readMnist_3D(String filePath) throws IOException {
+        ImageDataset dataset = ImageDataset.mnist(filePath);
+        return dataset.batch3D(0, dataset.count());
     }
 
     public static byte[] readLabelsMnist(String filePath) throws IOException {
-        DataInputStream labelInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath)));
-
-        labelInputStream.readInt(); // Magic number
-        int labelCount = labelInputStream.readInt();
-
-        byte[] labels = new byte[labelCount];
-
-        for(int i=0; i<labelCount; i++){
-            labels[i] = (byte) labelInputStream.readUnsignedByte();
-        }
-
-        return labels;
+        return ImageDataset.mnistLabels(filePath);
     }
 
-    public static byte[][][][] readCifar10(String filePath) throws IOException {
-        DataInputStream dataInputStream = new DataInputStream(new FileInputStream(filePath));
-
-        byte[][][][] images = new byte[CIFAR_10_FILE_LENGTH][CIFAR_IMAGE_WIDTH][CIFAR_IMAGE_HEIGHT][3]; //RGB
-
-        for(int i=0; i<CIFAR_10_FILE_LENGTH; i++) {
-            byte label = (byte) dataInputStream.readUnsignedByte();
+    /**
+     * Read all images of a CIFAR-10 binary batch, see {@link ImageDataset#cifar10(String)} to take batches from the
+     * file without reading all of it.
+     */
+    public static Tensor readCifar10(String filePath) throws IOException {
+        ImageDataset dataset = ImageDataset.cifar10(filePath);
+        return dataset.batch3D(0, dataset.count());
+    }
 
-            // Read red values
-            for(int rgb = 0; rgb < 3; rgb++) {
-                for(int row = 0; row < CIFAR_IMAGE_HEIGHT; row++){
-                    for (int col = 0; col < CIFAR_IMAGE_WIDTH; col++) {
-                        images[i][row][col][rgb] = (byte) dataInputStream.readUnsignedByte();
-                    }
-                }
-            }
+    /**
+     * @param data The bytes of an image file, e.g. a JPEG or PNG file
+     * @return The decoded image
+     * @throws IOException If the image cannot be decoded
+     */
+    public static BufferedImage decodeImage(byte[] data) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+        if (image == null) {
+            throw new IOException("Could not decode image of " + data.length + " bytes");
         }
-
-        return images;
+        return image;
     }
 
     public static BufferedImage readJPG(String filePath, int rows, int cols) throws IOException {
-        DataInputStream dataInputStream = new DataInputStream(new FileInputStream(filePath));
-
-        // Read an RGB image
-        byte[][][] image = new byte[rows][cols][3];
-
         BufferedImage bImage = ImageIO.read(new File(filePath));
+        if (bImage == null) {
+            throw new IOException("Could not decode image " + filePath);
+        }
 
         return bImage;
     }
 
-    public static int imageIdentifier(byte[] data){
-        return Arrays.hashCode(data);
+    /**
+     * @param count Number of images in a batch
+     * @return Identifiers of the images, the next numbers of the sequence of images sent by this source
+     */
+    public static long[] nextImageIdentifiers(int count){
+        long first = imageSequence.getAndAdd(count);
+        long[] identifiers = new long[count];
+        for (int i = 0; i < count; i++) {
+            identifiers[i] = first + i;
+        }
+        return identifiers;
     }
-    public static int imageIdentifier(byte[][] data){
-        return Arrays.deepHashCode(data);
+
+    /**
+     * @return The 64 bit xxHash of the bytes of an image, e.g. an encoded JPEG file
+     */
+    public static long imageHash(byte[] data){
+        return XXHash64.hash(data, 0, data.length, 0);
     }
-    public static int imageIdentifier(byte[][][] data){
-        return Arrays.deepHashCode(data);
+
+    /**
+     * Hash of an image stored in a larger array, equal to {@link #imageHash(byte[])} of a copy of it
+     */
+    public static long imageHash(byte[] data, int offset, int length){
+        return XXHash64.hash(data, offset, length, 0);
     }
-    public static int imageIdentifier(byte[][][][] data){
-        return Arrays.deepHashCode(data);
+
+    /**
+     * @param values An array with a value for every image of a batch
+     * @param positions Positions of the values to keep
+     * @return The values at the positions
+     */
+    public static long[] select(long[] values, int[] positions){
+        long[] result = new long[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            result[i] = values[positions[i]];
+        }
+        return result;
+    }
+
+    /**
+     * @see #select(long[], int[])
+     */
+    public static byte[][] select(byte[][] values, int[] positions){
+        byte[][] result = new byte[positions.length][];
+        for (int i = 0; i < positions.length; i++) {
+            result[i] = values[positions[i]];
+        }
+        return result;
     }
 }